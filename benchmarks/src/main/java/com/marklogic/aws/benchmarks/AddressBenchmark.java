@@ -0,0 +1,58 @@
+package com.marklogic.aws.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.aws.ELBBalancePolicy;
+import com.marklogic.aws.ELBConnectionProvider;
+
+/**
+ * The SingleHostAddress accessors XCC calls when building requests and logging.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AddressBenchmark {
+    private ELBConnectionProvider provider;
+
+    @Setup
+    public void setUp() throws Exception {
+        provider = new ELBConnectionProvider(Fixtures.ELB_HOST, 8000, new FakeResolver(3),
+                ELBBalancePolicy.ROUND_ROBIN);
+    }
+
+    @TearDown
+    public void tearDown() {
+        provider.shutdown(ProviderRoundTripBenchmark.LOGGER);
+    }
+
+    @Benchmark
+    public InetSocketAddress getAddress() {
+        return provider.getAddress();
+    }
+
+    @Benchmark
+    public int getPort() {
+        return provider.getPort();
+    }
+
+    @Benchmark
+    public String getHostName() {
+        return provider.getHostName();
+    }
+}
@@ -0,0 +1,37 @@
+package com.marklogic.aws.benchmarks;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import com.marklogic.aws.ELBAddressResolver;
+
+/**
+ * Resolves any hostname to a settable list of loopback addresses, so the providers can be
+ * driven without DNS or AWS.
+ */
+public class FakeResolver implements ELBAddressResolver {
+    private volatile InetAddress[] addresses;
+
+    public FakeResolver(int count) throws UnknownHostException {
+        this.addresses = loopback(0, count);
+    }
+
+    /**
+     * @return 127.0.0.(first + 1) to 127.0.0.(first + count)
+     */
+    public static InetAddress[] loopback(int first, int count) throws UnknownHostException {
+        InetAddress[] addresses = new InetAddress[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) (first + i + 1) });
+        }
+        return addresses;
+    }
+
+    public void setAddresses(InetAddress[] addresses) {
+        this.addresses = addresses.clone();
+    }
+
+    public InetAddress[] resolve(String hostName) {
+        return addresses.clone();
+    }
+}
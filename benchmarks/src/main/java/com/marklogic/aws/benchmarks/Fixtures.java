@@ -0,0 +1,29 @@
+package com.marklogic.aws.benchmarks;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+
+import com.marklogic.sim.SimElb;
+
+final class Fixtures {
+    static final String ELB_HOST = "localhost";
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return a server context using the simulator's self-signed localhost certificate
+     */
+    static SSLContext serverContext() throws IOException, GeneralSecurityException {
+        return SimElb.serverContext();
+    }
+
+    /**
+     * @return a client context trusting any certificate
+     */
+    static SSLContext clientContext() throws GeneralSecurityException {
+        return SimElb.clientContext();
+    }
+}
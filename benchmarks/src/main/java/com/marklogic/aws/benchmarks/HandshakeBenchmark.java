@@ -0,0 +1,107 @@
+package com.marklogic.aws.benchmarks;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.aws.ELBConnection;
+import com.marklogic.aws.ELBSSLConnection;
+import com.marklogic.aws.ELBSSLConnectionProvider;
+import com.marklogic.xcc.SecurityOptions;
+
+/**
+ * Connects, builds an ELBSSLConnection (which runs the TLS handshake) and exchanges one
+ * byte, with and without session resumption.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark {
+    @Param({ "TLSv1.2", "TLSv1.3" })
+    public String protocol;
+
+    @Param({ "true", "false" })
+    public boolean resume;
+
+    private LoopbackServer server;
+    private SecurityOptions options;
+    private ELBSSLConnectionProvider provider;
+    private InetSocketAddress address;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LoopbackServer(Fixtures.serverContext());
+        options = new SecurityOptions(Fixtures.clientContext());
+        options.setEnabledProtocols(new String[] { protocol });
+        provider = new ELBSSLConnectionProvider(Fixtures.ELB_HOST, server.getPort(), options, new FakeResolver(1));
+        address = new InetSocketAddress("127.0.0.1", server.getPort());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.out.println();
+        System.out.println(provider.getSessionCache());
+        provider.shutdown(ProviderRoundTripBenchmark.LOGGER);
+        server.close();
+    }
+
+    @Benchmark
+    public int handshake() throws IOException {
+        if (!resume) {
+            invalidate(options.getSslContext().getClientSessionContext());
+        }
+
+        SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+
+        ELBSSLConnection connection = new ELBSSLConnection(new ELBConnection(channel, provider), options, provider,
+                ProviderRoundTripBenchmark.LOGGER);
+        try {
+            // Reading also takes in the TLS 1.3 session ticket the next handshake resumes with
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            connection.channel().write(ByteBuffer.wrap(new byte[] { 1 }));
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (connection.channel().read(buffer) < 0) {
+                    throw new EOFException();
+                }
+            }
+            return buffer.get(0);
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static void invalidate(SSLSessionContext sessions) {
+        Enumeration<byte[]> ids = sessions.getIds();
+        while (ids.hasMoreElements()) {
+            SSLSession session = sessions.getSession(ids.nextElement());
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+    }
+}
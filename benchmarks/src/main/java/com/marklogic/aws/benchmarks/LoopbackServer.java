@@ -0,0 +1,105 @@
+package com.marklogic.aws.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Stand-in for the ELB: accepts plain or TLS connections on every loopback address and
+ * echoes whatever it is sent until the client closes.
+ */
+public class LoopbackServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final AtomicLong accepted = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param sslContext server context for TLS, or null for plain sockets
+     */
+    public LoopbackServer(SSLContext sslContext) throws IOException {
+        InetAddress any = InetAddress.getByName("0.0.0.0");
+        serverSocket = (sslContext == null) ? new ServerSocket(0, 1024, any)
+                : sslContext.getServerSocketFactory().createServerSocket(0, 1024, any);
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "loopback-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                continue;
+            }
+            accepted.incrementAndGet();
+            sockets.add(socket);
+
+            Thread echo = new Thread(new Runnable() {
+                public void run() {
+                    echo(socket);
+                }
+            }, "loopback-echo");
+            echo.setDaemon(true);
+            echo.start();
+        }
+    }
+
+    private void echo(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket) socket).startHandshake();
+            }
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+}
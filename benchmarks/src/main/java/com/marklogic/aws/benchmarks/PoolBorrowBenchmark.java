@@ -0,0 +1,100 @@
+package com.marklogic.aws.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.aws.ELBBalancePolicy;
+import com.marklogic.aws.ELBConnectionProvider;
+import com.marklogic.aws.ELBSSLConnectionProvider;
+import com.marklogic.xcc.ContentSourceFactory;
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.SecurityOptions;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.spi.ConnectionProvider;
+import com.marklogic.xcc.spi.ServerConnection;
+
+/**
+ * One thread borrowing a pooled connection and returning it, with nothing else going on:
+ * the provider's own cost per request, in time and, run with -prof gc, in garbage. Once
+ * warm, the pool path should allocate nothing, so gc.alloc.rate.norm should be close to
+ * 0 B/op for both providers, with and without a session and request to route.
+ *
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar PoolBorrow -prof gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class PoolBorrowBenchmark {
+    @Param({ "false", "true" })
+    public boolean tls;
+
+    @Param({ "1", "3" })
+    public int nodes;
+
+    private LoopbackServer server;
+    private ConnectionProvider provider;
+    private Session session;
+    private Request request;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LoopbackServer(tls ? Fixtures.serverContext() : null);
+        FakeResolver resolver = new FakeResolver(nodes);
+        ELBBalancePolicy policy = (nodes == 1) ? ELBBalancePolicy.FIRST_ADDRESS : ELBBalancePolicy.ROUND_ROBIN;
+
+        if (tls) {
+            provider = new ELBSSLConnectionProvider(Fixtures.ELB_HOST, server.getPort(),
+                    new SecurityOptions(Fixtures.clientContext()), resolver, policy);
+        } else {
+            provider = new ELBConnectionProvider(Fixtures.ELB_HOST, server.getPort(), resolver, policy);
+        }
+        session = ContentSourceFactory.newContentSource(provider, "admin", "admin", "Documents").newSession();
+        request = session.newAdhocQuery("()");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.out.println();
+        System.out.println(provider);
+        session.close();
+        provider.shutdown(ProviderRoundTripBenchmark.LOGGER);
+        server.close();
+    }
+
+    @Benchmark
+    public ServerConnection borrowAndReturn() throws IOException {
+        return ProviderRoundTripBenchmark.roundTrip(provider);
+    }
+
+    /**
+     * As XCC calls the provider for a request, so the session is looked at for affinity and
+     * the request's timeout is applied to the socket.
+     */
+    @Benchmark
+    public ServerConnection borrowAndReturnForRequest() throws IOException {
+        ServerConnection connection = provider.obtainConnection(session, request, ProviderRoundTripBenchmark.LOGGER);
+        connection.setTimeoutTime(System.currentTimeMillis() + ProviderRoundTripBenchmark.KEEP_ALIVE);
+        provider.returnConnection(connection, ProviderRoundTripBenchmark.LOGGER);
+        return connection;
+    }
+}
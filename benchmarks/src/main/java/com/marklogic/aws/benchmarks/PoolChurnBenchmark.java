@@ -0,0 +1,109 @@
+package com.marklogic.aws.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.aws.ELBBalancePolicy;
+import com.marklogic.aws.ELBConnectionProvider;
+import com.marklogic.aws.ELBSSLConnectionProvider;
+import com.marklogic.xcc.SecurityOptions;
+import com.marklogic.xcc.spi.ConnectionProvider;
+import com.marklogic.xcc.spi.ServerConnection;
+
+/**
+ * More threads than connections, short keep-alives, error returns and an ELB whose
+ * addresses move every second: the pool opening, draining and queueing all at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Dxcc.socket.pool.max=8", "-Dxcc.elb.dns.refresh=1000" })
+@Threads(16)
+public class PoolChurnBenchmark {
+    private static final int NODES = 3;
+    private static final IOException FAILURE = new IOException("simulated request failure");
+
+    @Param({ "false", "true" })
+    public boolean tls;
+
+    /**
+     * Percentage of requests that fail and go back through returnErrorConnection.
+     */
+    @Param({ "5" })
+    public int errorPercent;
+
+    private LoopbackServer server;
+    private ConnectionProvider provider;
+    private ScheduledExecutorService rotation;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LoopbackServer(tls ? Fixtures.serverContext() : null);
+        final FakeResolver resolver = new FakeResolver(NODES);
+
+        if (tls) {
+            provider = new ELBSSLConnectionProvider(Fixtures.ELB_HOST, server.getPort(),
+                    new SecurityOptions(Fixtures.clientContext()), resolver, ELBBalancePolicy.LEAST_OUTSTANDING);
+        } else {
+            provider = new ELBConnectionProvider(Fixtures.ELB_HOST, server.getPort(), resolver,
+                    ELBBalancePolicy.LEAST_OUTSTANDING);
+        }
+
+        // Replace one ELB node every second
+        rotation = Executors.newSingleThreadScheduledExecutor();
+        rotation.scheduleWithFixedDelay(new Runnable() {
+            private int shift;
+
+            public void run() {
+                try {
+                    resolver.setAddresses(FakeResolver.loopback(++shift % 8, NODES));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        rotation.shutdownNow();
+        System.out.println();
+        System.out.println(provider);
+        provider.shutdown(ProviderRoundTripBenchmark.LOGGER);
+        server.close();
+    }
+
+    @Benchmark
+    public ServerConnection churn() throws IOException {
+        ServerConnection connection = provider.obtainConnection(null, null, ProviderRoundTripBenchmark.LOGGER);
+        int roll = ThreadLocalRandom.current().nextInt(100);
+
+        if (roll < errorPercent) {
+            provider.returnErrorConnection(connection, FAILURE, ProviderRoundTripBenchmark.LOGGER);
+        } else {
+            // Keep-alives of 0-4ms, so pooled connections regularly expire
+            connection.setTimeoutTime(System.currentTimeMillis() + (roll % 5));
+            provider.returnConnection(connection, ProviderRoundTripBenchmark.LOGGER);
+        }
+        return connection;
+    }
+}
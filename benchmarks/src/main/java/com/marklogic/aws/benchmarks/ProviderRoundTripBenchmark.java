@@ -0,0 +1,111 @@
+package com.marklogic.aws.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.aws.ELBBalancePolicy;
+import com.marklogic.aws.ELBConnectionProvider;
+import com.marklogic.aws.ELBSSLConnectionProvider;
+import com.marklogic.xcc.SecurityOptions;
+import com.marklogic.xcc.spi.ConnectionProvider;
+import com.marklogic.xcc.spi.ServerConnection;
+
+/**
+ * obtainConnection/returnConnection with a warm pool: the cost XCC pays around every
+ * request once connections are established.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProviderRoundTripBenchmark {
+    static final Logger LOGGER = Logger.getLogger(ProviderRoundTripBenchmark.class.getName());
+    static final long KEEP_ALIVE = 60000;
+
+    static {
+        Logger.getLogger("").setLevel(Level.WARNING);
+    }
+
+    @Param({ "false", "true" })
+    public boolean tls;
+
+    @Param({ "1", "3" })
+    public int nodes;
+
+    private LoopbackServer server;
+    private ConnectionProvider provider;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new LoopbackServer(tls ? Fixtures.serverContext() : null);
+        FakeResolver resolver = new FakeResolver(nodes);
+        ELBBalancePolicy policy = (nodes == 1) ? ELBBalancePolicy.FIRST_ADDRESS : ELBBalancePolicy.ROUND_ROBIN;
+
+        if (tls) {
+            provider = new ELBSSLConnectionProvider(Fixtures.ELB_HOST, server.getPort(),
+                    new SecurityOptions(Fixtures.clientContext()), resolver, policy);
+        } else {
+            provider = new ELBConnectionProvider(Fixtures.ELB_HOST, server.getPort(), resolver, policy);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.out.println();
+        System.out.println(provider);
+        provider.shutdown(LOGGER);
+        server.close();
+    }
+
+    /**
+     * Takes a connection and hands it back with a keep-alive, as XCC does after a response.
+     */
+    static ServerConnection roundTrip(ConnectionProvider provider) throws IOException {
+        ServerConnection connection = provider.obtainConnection(null, null, LOGGER);
+        connection.setTimeoutTime(System.currentTimeMillis() + KEEP_ALIVE);
+        provider.returnConnection(connection, LOGGER);
+        return connection;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ServerConnection oneThread() throws IOException {
+        return roundTrip(provider);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ServerConnection fourThreads() throws IOException {
+        return roundTrip(provider);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public ServerConnection sixteenThreads() throws IOException {
+        return roundTrip(provider);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ServerConnection maxThreads() throws IOException {
+        return roundTrip(provider);
+    }
+}
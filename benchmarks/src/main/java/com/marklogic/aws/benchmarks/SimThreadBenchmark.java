@@ -0,0 +1,143 @@
+package com.marklogic.aws.benchmarks;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.HdrHistogram.Histogram;
+
+import com.marklogic.aws.ELBBalancePolicy;
+import com.marklogic.aws.ELBConnectionProvider;
+import com.marklogic.aws.ELBSSLConnectionProvider;
+import com.marklogic.load.CommandLine;
+import com.marklogic.load.LoadGenerator;
+import com.marklogic.sim.SimElb;
+import com.marklogic.sim.SimFaults;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.ContentSourceFactory;
+import com.marklogic.xcc.SecurityOptions;
+import com.marklogic.xcc.spi.ConnectionProvider;
+
+/**
+ * Compares a fixed pool of platform threads with one virtual thread per session, each
+ * running the same load through a fresh provider against a {@link SimElb}. Every request
+ * is held by the simulated server for --server-ms, so the sessions spend most of their
+ * time waiting on the ELB, as they do in production. Needs Java 21 for the virtual run.
+ * <p>
+ * Not a JMH benchmark, as JMH cannot run ten thousand concurrent sessions; it has its own
+ * main, run from the benchmark jar:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.marklogic.aws.benchmarks.SimThreadBenchmark \
+ *     --platform-threads 200 --virtual-threads 10000 --duration 20s --server-ms 5
+ * </pre>
+ */
+public class SimThreadBenchmark {
+    private static final String ELB_HOST = "localhost";
+    private static final String[][] OPTIONS = {
+            { "nodes", "3", "ELB nodes" },
+            { "tls", null, "use TLS and ELBSSLConnectionProvider" },
+            { "balance", "ROUND_ROBIN", "ELBBalancePolicy" },
+            { "platform-threads", "200", "platform threads in the pool, 0 to skip" },
+            { "virtual-threads", "10000", "concurrent virtual-thread sessions, 0 to skip" },
+            { "pool", "256", "xcc.socket.pool.max for the provider" },
+            { "duration", "20s", "how long each run lasts" },
+            { "warmup", "5s", "unmeasured run before each measured one" },
+            { "server-ms", "5", "time the simulated server holds every request" },
+            { "mix", "query=90,transaction=10", "operation weights" } };
+
+    // Held so the level set in main is not lost when the logger is collected
+    private static final Logger xccLogger = Logger.getLogger("com.marklogic.xcc");
+
+    private final CommandLine options;
+    private SimElb elb;
+
+    SimThreadBenchmark(CommandLine options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine options = new CommandLine("SimThreadBenchmark [options]", OPTIONS);
+        if (!options.parse(args)) {
+            options.printUsage(System.out);
+            return;
+        }
+        Logger.getLogger("").setLevel(Level.WARNING);
+        xccLogger.setLevel(Level.SEVERE);
+        new SimThreadBenchmark(options).run();
+    }
+
+    void run() throws Exception {
+        boolean tls = options.has("tls");
+        elb = new SimElb(0, tls ? SimElb.serverContext() : null);
+        SimFaults faults = elb.getFaults();
+        faults.setSlowRate(1);
+        faults.setSlowMillis(options.getInt("server-ms"));
+        for (int i = 0; i < options.getInt("nodes"); i++) {
+            elb.addNode();
+        }
+
+        System.setProperty("xcc.socket.pool.max", options.get("pool"));
+        // Thousands of sessions queue for a connection, for longer than a run lasts
+        System.setProperty("xcc.elb.pool.acquire.timeout",
+                String.valueOf(10 * (options.getMillis("duration") + options.getMillis("warmup"))));
+        System.out.println("simulated ELB " + elb + ", server time " + options.get("server-ms") + "ms, pool " +
+                options.get("pool"));
+
+        String[] results = new String[2];
+        try {
+            if (options.getInt("platform-threads") > 0) {
+                results[0] = measure("platform", options.getInt("platform-threads"), false);
+            }
+            if (options.getInt("virtual-threads") > 0) {
+                results[1] = measure("virtual", options.getInt("virtual-threads"), true);
+            }
+        } finally {
+            elb.close();
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-9s %8s %10s %9s %9s %9s %8s", "threads", "count", "req/s", "p50 ms",
+                "p99 ms", "max ms", "errors"));
+        for (String result : results) {
+            if (result != null) {
+                System.out.println(result);
+            }
+        }
+    }
+
+    private String measure(String name, int threads, boolean virtual) throws Exception {
+        long warmup = options.getMillis("warmup");
+        if (warmup > 0) {
+            load(threads, virtual, warmup);
+        }
+        LoadGenerator load = load(threads, virtual, options.getMillis("duration"));
+        Histogram total = load.getTotal();
+
+        return String.format("%-9s %8d %10.0f %9.2f %9.2f %9.2f %8d", name, threads,
+                total.getTotalCount() * 1000.0 / options.getMillis("duration"),
+                total.getValueAtPercentile(50) / 1e6, total.getValueAtPercentile(99) / 1e6,
+                total.getMaxValue() / 1e6, load.getErrors());
+    }
+
+    private LoadGenerator load(int threads, boolean virtual, long durationMillis) throws Exception {
+        ELBBalancePolicy policy = ELBBalancePolicy.valueOf(options.get("balance"));
+        ConnectionProvider provider = options.has("tls")
+                ? new ELBSSLConnectionProvider(ELB_HOST, elb.getPort(), new SecurityOptions(SimElb.clientContext()),
+                        elb.getDns(), policy)
+                : new ELBConnectionProvider(ELB_HOST, elb.getPort(), elb.getDns(), policy);
+        ContentSource contentSource = ContentSourceFactory.newContentSource(provider, "admin", "admin", "Documents");
+
+        LoadGenerator load = new LoadGenerator(contentSource, provider);
+        load.setThreads(threads);
+        load.setVirtualThreads(virtual);
+        load.setDurationMillis(durationMillis);
+        load.setReportMillis(Math.max(1000, durationMillis / 4));
+        load.setMix(options.get("mix"));
+        try {
+            load.run();
+        } finally {
+            provider.shutdown(null);
+        }
+        return load;
+    }
+}
@@ -0,0 +1,163 @@
+package com.marklogic.aws.benchmarks;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.marklogic.aws.ELBSSLConnectionProvider;
+import com.marklogic.xcc.SecurityOptions;
+import com.marklogic.xcc.spi.ServerConnection;
+
+/**
+ * Sends a payload over a TLS connection from the provider and reads the echo back, with
+ * the provider's own TLS channel and with XCC's SslByteChannel (xcc.elb.tls.channel=xcc).
+ * The megabytes counter is the payload moved each way per second.
+ * <p>
+ * Setup also reports what an idle pooled connection holds on to: heap and direct memory
+ * per connection, measured across a pool of connections that have each served a request
+ * in turn. The provider's channel returns its direct buffers to a shared pool, which holds
+ * enough for the most requests that were in flight at once, whatever the pool size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsChannelBenchmark {
+    private static final int IDLE_CONNECTIONS = 50;
+    // Echoed a chunk at a time, so neither side fills its socket buffers and stalls
+    private static final int CHUNK = 65536;
+
+    @Param({ "elb", "xcc" })
+    public String channel;
+
+    @Param({ "1024", "65536", "1048576" })
+    public int size;
+
+    private LoopbackServer server;
+    private ELBSSLConnectionProvider provider;
+    private ServerConnection connection;
+    private ByteBuffer out;
+    private ByteBuffer in;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transferred {
+        public double megabytes;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        System.setProperty("xcc.elb.tls.channel", channel);
+        server = new LoopbackServer(Fixtures.serverContext());
+        provider = new ELBSSLConnectionProvider(Fixtures.ELB_HOST, server.getPort(),
+                new SecurityOptions(Fixtures.clientContext()), new FakeResolver(1));
+
+        measureIdleFootprint();
+
+        connection = provider.obtainConnection(null, null, ProviderRoundTripBenchmark.LOGGER);
+        byte[] payload = new byte[Math.min(size, CHUNK)];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        // Heap buffers, as XCC reads and writes through
+        out = ByteBuffer.wrap(payload);
+        in = ByteBuffer.allocate(payload.length);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.out.println();
+        System.out.println(provider);
+        connection.close();
+        provider.shutdown(ProviderRoundTripBenchmark.LOGGER);
+        server.close();
+    }
+
+    @Benchmark
+    public int transfer(Transferred transferred) throws IOException {
+        ByteChannel tls = connection.channel();
+        int sum = 0;
+
+        for (int sent = 0; sent < size; sent += out.capacity()) {
+            out.clear();
+            while (out.hasRemaining()) {
+                tls.write(out);
+            }
+            in.clear();
+            while (in.hasRemaining()) {
+                if (tls.read(in) < 0) {
+                    throw new EOFException();
+                }
+            }
+            sum += in.get(0);
+        }
+        transferred.megabytes += size / 1e6;
+        return sum;
+    }
+
+    private void measureIdleFootprint() throws IOException {
+        ServerConnection[] connections = new ServerConnection[IDLE_CONNECTIONS];
+        long heapBefore = usedHeap();
+        long directBefore = usedDirect();
+
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = provider.obtainConnection(null, null, ProviderRoundTripBenchmark.LOGGER);
+        }
+        // One request at a time, so the shared buffer pool only grows by one request's worth
+        for (ServerConnection idle : connections) {
+            echoByte(idle.channel());
+            idle.setTimeoutTime(System.currentTimeMillis() + ProviderRoundTripBenchmark.KEEP_ALIVE);
+            provider.returnConnection(idle, ProviderRoundTripBenchmark.LOGGER);
+        }
+
+        System.out.println();
+        System.out.printf("idle connection footprint (%s): heap=%d bytes, direct=%d bytes%n", channel,
+                (usedHeap() - heapBefore) / IDLE_CONNECTIONS, (usedDirect() - directBefore) / IDLE_CONNECTIONS);
+    }
+
+    private static void echoByte(ByteChannel tls) throws IOException {
+        tls.write(ByteBuffer.wrap(new byte[] { 1 }));
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        while (buffer.hasRemaining()) {
+            if (tls.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
@@ -1,97 +1,300 @@
 package com.marklogic;
 
+import com.marklogic.aws.ELBAddressResolver;
+import com.marklogic.aws.ELBAsyncRequests;
+import com.marklogic.aws.ELBBalancePolicy;
+import com.marklogic.aws.ELBConnectionProvider;
+import com.marklogic.aws.ELBEndpoint;
+import com.marklogic.aws.ELBHedgedReads;
+import com.marklogic.aws.ELBMultiConnectionProvider;
 import com.marklogic.aws.ELBSSLConnectionProvider;
+import com.marklogic.aws.InetAddressResolver;
+import com.marklogic.load.BulkLoader;
+import com.marklogic.load.CommandLine;
+import com.marklogic.load.LoadGenerator;
+import com.marklogic.sim.SimElb;
+import com.marklogic.sim.SimFaults;
+import com.marklogic.xcc.Content;
+import com.marklogic.xcc.ContentCreateOptions;
+import com.marklogic.xcc.ContentFactory;
 import com.marklogic.xcc.ContentSource;
 import com.marklogic.xcc.ContentSourceFactory;
+import com.marklogic.xcc.ResultSequence;
 import com.marklogic.xcc.SecurityOptions;
-import com.marklogic.xcc.Session;
-import com.marklogic.xcc.exceptions.RequestException;
-import com.marklogic.xcc.exceptions.XccConfigException;
+import com.marklogic.xcc.spi.ConnectionProvider;
+
+import org.HdrHistogram.Histogram;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
-import java.net.URISyntaxException;
-import java.security.KeyManagementException;
-import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.security.cert.X509Certificate;
-import java.util.logging.ConsoleHandler;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Load generator for the ELB connection providers: runs {@link LoadGenerator} against a
+ * MarkLogic app server behind an ELB, or against an in-process {@link SimElb}.
+ *
+ * <pre>
+ * java -cp ... com.marklogic.Main --host my-elb.eu-west-1.elb.amazonaws.com --port 8008 --tls \
+ *     --threads 32 --rate 2000 --mix query=70,transaction=20,insert=10 --duration 5m
+ * </pre>
+ *
+ * With --bulk it loads generated documents with {@link BulkLoader} instead, and with --async
+ * it keeps queries in flight through {@link ELBAsyncRequests} from a single thread.
+ */
 public class Main {
+    private static final String[][] OPTIONS = {
+            { "host", "localhost", "ELB hostname, or several, comma-separated and nearest first, for ELBMultiConnectionProvider" },
+            { "port", "8006", "app server port" },
+            { "user", "admin", "user name" },
+            { "password", "admin", "password" },
+            { "database", "Documents", "content database" },
+            { "tls", null, "use TLS and ELBSSLConnectionProvider, trusting any certificate" },
+            { "balance", "ROUND_ROBIN", "ELBBalancePolicy" },
+            { "sim", "0", "start a simulated ELB with this many nodes instead of using --host" },
+            { "zones", "1", "with --sim, start a simulated ELB per zone, nearest first, and use ELBMultiConnectionProvider" },
+            { "zone-latency", "2", "with --zones, milliseconds each zone adds to the round trip of the one before" },
+            { "threads", "8", "worker threads" },
+            { "virtual", null, "run workers on virtual threads (Java 21)" },
+            { "rate", "0", "target requests per second across all workers, 0 for closed loop" },
+            { "duration", "60s", "how long to run" },
+            { "report", "1s", "reporting interval" },
+            { "mix", "query=70,transaction=20,insert=10", "operation weights" },
+            { "query", "1 + 1", "adhoc query for query operations" },
+            { "docs-per-txn", "2", "documents inserted by each transaction" },
+            { "socket-profiles", null, "run queries on low-latency sockets and updates on bulk ones" },
+            { "hedge", null, "hedge slow queries onto another ELB node with ELBHedgedReads" },
+            { "slow-node", "0", "with --sim, delay this fraction of requests to the first node by 500ms" },
+            { "bulk", "0", "insert this many documents with BulkLoader, one session per thread, instead of the mix" },
+            { "batch-size", "100", "documents per insertContent call for --bulk" },
+            { "async", "0", "keep this many queries in flight through ELBAsyncRequests, from one thread, instead of the mix" } };
 
-    private static Logger logger;
-
-    public static void main(String[] args) throws URISyntaxException, XccConfigException, RequestException, NoSuchAlgorithmException, KeyManagementException {
+    private static Logger logger = Logger.getLogger(Main.class.getName());
 
-        logger = Logger.getLogger(Main.class.getName());
-        ConsoleHandler handler = new ConsoleHandler();
-        handler.setLevel(Level.FINEST);
+    // Held so the level set in main is not lost when the logger is collected
+    private static final Logger xccLogger = Logger.getLogger("com.marklogic.xcc");
 
-        // Create MarkLogic connection
-        logger.info("Open MarkLogic connection ");
+    public static void main(String[] args) throws Exception {
+        CommandLine options = new CommandLine("Main [options]", OPTIONS);
+        if (!options.parse(args)) {
+            options.printUsage(System.out);
+            return;
+        }
+        // Failures are counted in the report; XCC would also log every retry
+        xccLogger.setLevel(Level.SEVERE);
 
         // Required for HTTP stickiness in a Load Balancer
-        System.setProperty("xcc.httpcompliant","true");
+        System.setProperty("xcc.httpcompliant", "true");
 
-        // Simple SSL Context with TrustAll hosts
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        TrustManager tm = new X509TrustManager() {
-            public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        boolean tls = options.has("tls");
+        final List<SimElb> sims = new ArrayList<SimElb>();
+        List<ELBEndpoint> endpoints = new ArrayList<ELBEndpoint>();
+        ELBAddressResolver resolver = new InetAddressResolver();
+
+        if (options.getInt("sim") > 0) {
+            final Map<String, ELBAddressResolver> zoneDns = new HashMap<String, ELBAddressResolver>();
+            for (int zone = 0; zone < Math.max(1, options.getInt("zones")); zone++) {
+                SimElb sim = new SimElb(0, tls ? SimElb.serverContext() : null);
+                for (int i = 0; i < options.getInt("sim"); i++) {
+                    sim.addNode();
+                }
+                sim.getFaults().setLatencyMillis(zone * options.getInt("zone-latency"));
+                String host = (zone == 0) ? "localhost" : "zone-" + zone + ".localhost";
+                zoneDns.put(host, sim.getDns());
+                endpoints.add(new ELBEndpoint(host, sim.getPort(), zone));
+                sims.add(sim);
+                logger.info("simulated ELB " + host + " " + sim);
+            }
+            if (options.getDouble("slow-node") > 0) {
+                SimFaults faults = new SimFaults();
+                faults.copy(sims.get(0).getFaults());
+                faults.setSlowRate(options.getDouble("slow-node"));
+                faults.setSlowMillis(500);
+                sims.get(0).getNodes().get(0).setFaults(faults);
+            }
+            resolver = new ELBAddressResolver() {
+                public InetAddress[] resolve(String hostName) throws UnknownHostException {
+                    return zoneDns.get(hostName).resolve(hostName);
+                }
+            };
+        } else {
+            String[] hosts = options.get("host").split(",");
+            for (int i = 0; i < hosts.length; i++) {
+                endpoints.add(new ELBEndpoint(hosts[i].trim(), options.getInt("port"), i));
             }
+        }
 
-            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        ELBBalancePolicy policy = ELBBalancePolicy.valueOf(options.get("balance"));
+        ConnectionProvider provider;
+        if (endpoints.size() > 1) {
+            provider = tls
+                    ? new ELBMultiConnectionProvider(endpoints, new SecurityOptions(trustAll()), resolver, policy)
+                    : new ELBMultiConnectionProvider(endpoints, resolver, policy);
+        } else {
+            String host = endpoints.get(0).getHostName();
+            int port = endpoints.get(0).getPort();
+            provider = tls
+                    ? new ELBSSLConnectionProvider(host, port, new SecurityOptions(trustAll()), resolver, policy)
+                    : new ELBConnectionProvider(host, port, resolver, policy);
+        }
+        ContentSource contentSource = ContentSourceFactory.newContentSource(provider, options.get("user"),
+                options.get("password"), options.get("database"));
+        logger.info("Open MarkLogic connection " + provider);
+
+        if (options.getInt("async") > 0) {
+            try {
+                asyncLoad(contentSource, provider, options);
+            } finally {
+                provider.shutdown(null);
+                for (SimElb sim : sims) {
+                    sim.close();
+                }
             }
+            return;
+        }
 
-            public X509Certificate[] getAcceptedIssuers() {
-                return null;
+        if (options.getInt("bulk") > 0) {
+            try {
+                bulkLoad(contentSource, provider, options);
+            } finally {
+                provider.shutdown(null);
+                for (SimElb sim : sims) {
+                    logger.info("simulated ELB " + sim);
+                    sim.close();
+                }
             }
-        };
-        sslContext.init(null, new TrustManager[] { tm }, null);
-        SecurityOptions so = new SecurityOptions(sslContext);
+            return;
+        }
+
+        LoadGenerator load = new LoadGenerator(contentSource, provider);
+        load.setThreads(options.getInt("threads"));
+        load.setVirtualThreads(options.has("virtual"));
+        load.setRate(options.getDouble("rate"));
+        load.setDurationMillis(options.getMillis("duration"));
+        load.setReportMillis(options.getMillis("report"));
+        load.setMix(options.get("mix"));
+        load.setQuery(options.get("query"));
+        load.setDocumentsPerTransaction(options.getInt("docs-per-txn"));
+        load.setSocketProfiles(options.has("socket-profiles"));
+        if (options.has("hedge")) {
+            load.setHedgedReads(new ELBHedgedReads(contentSource));
+        }
+        try {
+            load.run();
+        } finally {
+            provider.shutdown(null);
+            for (SimElb sim : sims) {
+                sim.close();
+            }
+        }
 
-//        ELBConnectionProvider elbProvider =
-//                new ELBConnectionProvider("MartinW3n-ElasticL-13NX501DWLI3S-1239802618.eu-west-1.elb.amazonaws.com",8006);
+        logger.info("Ended....");
+    }
 
-        ELBSSLConnectionProvider elbSSLProvider =
-            new ELBSSLConnectionProvider("MartinW3n-ElasticL-13NX501DWLI3S-1239802618.eu-west-1.elb.amazonaws.com",8008, so);
+    private static void bulkLoad(ContentSource contentSource, ConnectionProvider provider, CommandLine options)
+            throws InterruptedException {
+        final long count = options.getInt("bulk");
+        final ContentCreateOptions createOptions = ContentCreateOptions.newXmlInstance();
 
-        ContentSource contentSource =
-                ContentSourceFactory.newContentSource(elbSSLProvider,"admin","admin","Documents");
+        BulkLoader loader = new BulkLoader(contentSource);
+        loader.setSessions(options.getInt("threads"));
+        loader.setBatchSize(options.getInt("batch-size"));
 
-        // Main outer loop
-        for (int loop = 1; loop <= 600000; loop++) {
-            // Create a Session and set the transaction mode to trigger
-            // multi-statement transaction use.
-            Session updateSession = contentSource.newSession();
-            updateSession.setTransactionMode(Session.TransactionMode.UPDATE);
-            try {
-                // Loop around adding some documents
-                for (int counter = 1; counter <= 2; counter++) {
-                    // The request starts a new, multi-statement transaction.
-                    updateSession.submitRequest(updateSession.newAdhocQuery(
-                            "xdmp:document-insert('/docs/mst1.xml', <data/>)"));
-                    // The request starts a new, multi-statement transaction.
-                    updateSession.submitRequest(updateSession.newAdhocQuery(
-                            "xdmp:document-insert('/docs/mst2.xml', <data/>)"));
+        Iterator<Content> documents = new Iterator<Content>() {
+            private long next = 1;
+
+            public boolean hasNext() {
+                return next <= count;
+            }
+
+            public Content next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
-                // After commit, updates are visible to other transactions.
-                // Commit ends the transaction after current stmt completes.
-                updateSession.commit();
-                Thread.sleep(5000);
-            } catch (Exception e) {
-                // In event of failure roll back transaction
-                e.printStackTrace();
-                updateSession.rollback();
+                long n = next++;
+                return ContentFactory.newContent("/bulk/" + n + ".xml", "<doc>bulk " + n + "</doc>", createOptions);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
             }
-            //Loop around and repeat
-            updateSession.close();
+        };
+
+        System.out.println(loader.load(documents));
+        System.out.println("provider " + LoadGenerator.describePool(provider));
+        System.out.println("stats " + LoadGenerator.statsOf(provider));
+    }
+
+    private static void asyncLoad(ContentSource contentSource, ConnectionProvider provider, CommandLine options)
+            throws InterruptedException {
+        int concurrency = options.getInt("async");
+        final Semaphore outstanding = new Semaphore(concurrency);
+        final Histogram latency = new Histogram(3);
+        final LongAdder errors = new LongAdder();
+        ELBAsyncRequests requests = new ELBAsyncRequests(contentSource);
+        requests.setMaxQueued(concurrency);
+
+        long start = System.nanoTime();
+        long end = start + options.getMillis("duration") * 1000000L;
+        while (System.nanoTime() < end) {
+            outstanding.acquire();
+            final long submitted = System.nanoTime();
+            requests.submit(options.get("query")).whenComplete(new BiConsumer<ResultSequence, Throwable>() {
+                public void accept(ResultSequence result, Throwable failure) {
+                    if (failure == null) {
+                        synchronized (latency) {
+                            latency.recordValue(System.nanoTime() - submitted);
+                        }
+                    } else {
+                        errors.increment();
+                    }
+                    outstanding.release();
+                }
+            });
         }
+        outstanding.acquire(concurrency);
+        long elapsed = System.nanoTime() - start;
 
-        // Release the MarkLogic client
-        logger.info("Ended....");
+        System.out.println(String.format("requests=%d in %.1fs, %.0f/s, %d in flight, peak threads=%d",
+                latency.getTotalCount(), elapsed / 1e9, latency.getTotalCount() * 1e9 / elapsed, concurrency,
+                ManagementFactory.getThreadMXBean().getPeakThreadCount()));
+        System.out.println(String.format("latency p50=%.2fms p99=%.2fms max=%.2fms errors=%d",
+                latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(99) / 1e6,
+                latency.getMaxValue() / 1e6, errors.sum()));
+        System.out.println("async " + requests);
+        System.out.println("provider " + LoadGenerator.describePool(provider));
+    }
+
+    private static SSLContext trustAll() throws Exception {
+        // Simple SSL Context with TrustAll hosts
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        TrustManager tm = new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            }
 
+            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return null;
+            }
+        };
+        sslContext.init(null, new TrustManager[] { tm }, null);
+        return sslContext;
     }
 }
@@ -0,0 +1,15 @@
+package com.marklogic.aws;
+
+/**
+ * Notified by {@link ELBAddressRefresher} when the resolved address set for an ELB changes.
+ */
+public interface ELBAddressListener {
+    void addressesChanged(ELBAddressSnapshot previous, ELBAddressSnapshot current);
+
+    /**
+     * Called after every successful resolution, after {@link #addressesChanged} if the
+     * addresses changed.
+     */
+    default void refreshed(ELBAddressSnapshot current, boolean changed, long refreshNanos) {
+    }
+}
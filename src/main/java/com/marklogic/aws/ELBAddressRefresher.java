@@ -0,0 +1,213 @@
+package com.marklogic.aws;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Re-resolves an ELB hostname in the background and publishes the result as an
+ * immutable {@link ELBAddressSnapshot}, so request threads never wait on DNS.
+ * Refreshes run on the shared {@link ELBScheduler}, every refresh interval or sooner
+ * if the resolver reports a shorter TTL.
+ * <p>
+ * Snapshots are swapped with compare-and-set, so when several refreshes race each
+ * address change is published, logged and passed to the listeners exactly once.
+ */
+public class ELBAddressRefresher {
+    private static final String REFRESH_INTERVAL_PROPERTY = "xcc.elb.dns.refresh";
+    private static final long DEFAULT_REFRESH_INTERVAL = 5000;
+    private static final long MIN_REFRESH_INTERVAL = 1000;
+
+    private final String hostName;
+    private final int port;
+    private final ELBAddressResolver resolver;
+    private final long refreshInterval;
+    private final List<ELBAddressListener> listeners = new CopyOnWriteArrayList<ELBAddressListener>();
+    private final Logger logger;
+    private final AtomicReference<ELBAddressSnapshot> snapshot = new AtomicReference<ELBAddressSnapshot>();
+    private ScheduledFuture<?> task;
+    private boolean stopped;
+
+    public ELBAddressRefresher(String hostName, int port, ELBAddressResolver resolver, long refreshInterval) {
+        this.logger = Logger.getLogger(ELBAddressRefresher.class.getName());
+        this.hostName = hostName;
+        this.port = port;
+        this.resolver = resolver;
+        this.refreshInterval = Math.max(MIN_REFRESH_INTERVAL, refreshInterval);
+    }
+
+    public ELBAddressRefresher(String hostName, int port, ELBAddressResolver resolver) {
+        this(hostName, port, resolver, Long.getLong(REFRESH_INTERVAL_PROPERTY, DEFAULT_REFRESH_INTERVAL).longValue());
+    }
+
+    /**
+     * Creates a refresher seeded with an address that has already been resolved, so
+     * construction does not cost a second lookup.
+     */
+    static ELBAddressRefresher forAddress(InetSocketAddress address, ELBAddressResolver resolver) {
+        ELBAddressRefresher refresher = new ELBAddressRefresher(address.getHostString(), address.getPort(), resolver);
+        if (!address.isUnresolved()) {
+            refresher.snapshot.set(new ELBAddressSnapshot(refresher.hostName, refresher.port,
+                    new InetAddress[] { address.getAddress() }, 0, System.currentTimeMillis()));
+        }
+        return refresher;
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * @return the latest snapshot; a single volatile read, never blocks
+     */
+    public ELBAddressSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
+    public void addListener(ELBAddressListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ELBAddressListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts background refreshing. If there is no snapshot yet the first resolution
+     * is done on the calling thread, otherwise it is scheduled straight away.
+     */
+    public synchronized void start() {
+        if (task != null) {
+            return;
+        }
+        stopped = false;
+
+        long delay = 0;
+        if (snapshot.get() == null) {
+            refresh();
+            delay = nextDelay();
+        }
+        task = ELBScheduler.get().schedule(refreshTask, delay, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        stopped = true;
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Resolves the hostname now and publishes a new snapshot if the address set changed.
+     *
+     * @return the current snapshot
+     */
+    public ELBAddressSnapshot refresh() {
+        long start = System.nanoTime();
+        InetAddress[] resolved;
+
+        try {
+            resolved = resolver.resolve(hostName);
+        } catch (UnknownHostException e) {
+            logger.warning("unable to resolve " + hostName + ", keeping cached addresses: " + e.getMessage());
+            snapshot.compareAndSet(null,
+                    new ELBAddressSnapshot(hostName, port, new InetAddress[0], 0, System.currentTimeMillis()));
+            return snapshot.get();
+        }
+
+        ELBAddressSnapshot previous = snapshot.get();
+
+        if ((previous != null) && previous.sameAddresses(resolved)) {
+            refreshed(previous, false, System.nanoTime() - start);
+            return previous;
+        }
+
+        ELBAddressSnapshot current = new ELBAddressSnapshot(hostName, port, resolved,
+                (previous == null) ? 0 : previous.getGeneration() + 1, System.currentTimeMillis());
+
+        if (!snapshot.compareAndSet(previous, current)) {
+            // Another refresh got there first and has published, logged and notified
+            return snapshot.get();
+        }
+
+        if ((previous != null) && logger.isLoggable(Level.INFO)) {
+            logger.info("Cached addresses " + previous.getAddresses());
+            logger.info("Current addresses " + current.getAddresses());
+            logger.info("Update complete, time=" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "m/s");
+        }
+
+        publish(previous, current);
+        refreshed(current, previous != null, System.nanoTime() - start);
+
+        return current;
+    }
+
+    private void refreshed(ELBAddressSnapshot current, boolean changed, long refreshNanos) {
+        for (ELBAddressListener listener : listeners) {
+            try {
+                listener.refreshed(current, changed, refreshNanos);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "address listener failed", e);
+            }
+        }
+    }
+
+    private void publish(ELBAddressSnapshot previous, ELBAddressSnapshot current) {
+        if (previous == null) {
+            return;
+        }
+        for (ELBAddressListener listener : listeners) {
+            try {
+                listener.addressesChanged(previous, current);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "address listener failed", e);
+            }
+        }
+    }
+
+    private long nextDelay() {
+        long ttl = resolver.getTtlMillis(hostName);
+
+        if (ttl <= 0) {
+            return refreshInterval;
+        }
+        return Math.max(MIN_REFRESH_INTERVAL, Math.min(refreshInterval, ttl));
+    }
+
+    private final Runnable refreshTask = new Runnable() {
+        public void run() {
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "address refresh failed for " + hostName, e);
+            } finally {
+                synchronized (ELBAddressRefresher.this) {
+                    if (!stopped) {
+                        task = ELBScheduler.get().schedule(this, nextDelay(), TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "ELBAddressRefresher " + snapshot.get();
+    }
+}
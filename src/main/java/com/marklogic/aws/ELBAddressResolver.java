@@ -0,0 +1,27 @@
+package com.marklogic.aws;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves an ELB hostname to the set of addresses currently published for it.
+ * The default implementation is {@link InetAddressResolver}; tests and benchmarks
+ * can plug in a fake DNS.
+ */
+public interface ELBAddressResolver {
+    /**
+     * @param hostName the ELB hostname
+     * @return every address currently published for the hostname, never empty
+     * @throws UnknownHostException if the hostname cannot be resolved
+     */
+    InetAddress[] resolve(String hostName) throws UnknownHostException;
+
+    /**
+     * @param hostName the ELB hostname
+     * @return how long, in milliseconds, the last answer for the hostname stays valid,
+     *         or -1 if the resolver does not know
+     */
+    default long getTtlMillis(String hostName) {
+        return -1;
+    }
+}
@@ -0,0 +1,110 @@
+package com.marklogic.aws;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable view of the addresses an ELB hostname resolved to at a point in time.
+ * Every address keeps the ELB hostname, so {@link InetSocketAddress#getHostName()}
+ * never needs a reverse lookup.
+ */
+public final class ELBAddressSnapshot {
+    private final String hostName;
+    private final int port;
+    private final List<InetSocketAddress> addresses;
+    private final InetSocketAddress primary;
+    private final long generation;
+    private final long resolvedAt;
+
+    ELBAddressSnapshot(String hostName, int port, InetAddress[] resolved, long generation, long resolvedAt) {
+        InetSocketAddress[] socketAddresses = new InetSocketAddress[resolved.length];
+        for (int i = 0; i < resolved.length; i++) {
+            socketAddresses[i] = new InetSocketAddress(withHostName(hostName, resolved[i]), port);
+        }
+
+        this.hostName = hostName;
+        this.port = port;
+        this.addresses = Collections.unmodifiableList(Arrays.asList(socketAddresses));
+        this.primary = (socketAddresses.length == 0) ?
+                InetSocketAddress.createUnresolved(hostName, port) : socketAddresses[0];
+        this.generation = generation;
+        this.resolvedAt = resolvedAt;
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the first resolved address, or an unresolved address if the hostname
+     *         has never resolved
+     */
+    public InetSocketAddress getPrimary() {
+        return primary;
+    }
+
+    public List<InetSocketAddress> getAddresses() {
+        return addresses;
+    }
+
+    public boolean isResolved() {
+        return !addresses.isEmpty();
+    }
+
+    /**
+     * @return a counter incremented every time the resolved address set changes
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getResolvedAt() {
+        return resolvedAt;
+    }
+
+    /**
+     * Compares ignoring order, DNS servers rotate the answer order between lookups.
+     */
+    boolean sameAddresses(InetAddress[] resolved) {
+        if (resolved.length != addresses.size()) {
+            return false;
+        }
+        for (InetAddress address : resolved) {
+            if (!contains(address)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean contains(InetAddress address) {
+        for (InetSocketAddress socketAddress : addresses) {
+            if (socketAddress.getAddress().equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static InetAddress withHostName(String hostName, InetAddress address) {
+        try {
+            return InetAddress.getByAddress(hostName, address.getAddress());
+        } catch (UnknownHostException e) {
+            // only thrown for an illegal address length, which a resolved address cannot have
+            return address;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return hostName + ":" + port + " " + addresses + " gen=" + generation;
+    }
+}
@@ -0,0 +1,507 @@
+package com.marklogic.aws;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultItem;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+
+/**
+ * Runs requests through a content source on an ELB provider without holding the caller's
+ * thread, each returning a CompletableFuture. A request waits in a queue, holding neither
+ * a thread nor a connection, until an ELB address has room for it: at most
+ * maxInFlightPerAddress requests run at once on each address in rotation, and maxInFlight
+ * in all, by default the provider's own per-address and total connection limits, so no
+ * request blocks a thread waiting for a connection permit. It is then sent to the address
+ * with the fewest of this instance's requests in flight.
+ * <p>
+ * Results are cached before the future completes, unless they are streamed:
+ * {@link #stream(RequestBuilder, ItemHandler)} hands each item to a callback as it is read
+ * off the connection and completes with the number of items. Cancelling a future drops a
+ * queued request, or closes the socket under a running one, whose connection is then
+ * closed rather than pooled.
+ * <p>
+ * Every request runs in a new auto-commit session. XCC's request API blocks, so a running
+ * request still holds a thread: by default a new virtual thread under Java 21, otherwise
+ * one from a shared pool of daemon threads, of which there are never more than requests in
+ * flight.
+ *
+ * <pre>
+ * ELBAsyncRequests requests = new ELBAsyncRequests(contentSource);
+ * requests.submit("fn:count(fn:collection())").thenAccept(result -&gt; ...);
+ * </pre>
+ */
+public class ELBAsyncRequests {
+    static final String QUEUE_SIZE_PROPERTY = "xcc.elb.async.queue.max";
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+
+    private final ContentSource contentSource;
+    private final ELBConnectionProvider provider;
+    private final Executor executor;
+    private volatile int maxInFlight;
+    private volatile int maxInFlightPerAddress;
+    private volatile int maxQueued = Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE).intValue();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock; cancelled calls are taken out at once, others completed by the
+    // caller while queued are dropped when they reach the head
+    private final ArrayDeque<Call<?>> queue = new ArrayDeque<Call<?>>();
+    private final Map<InetSocketAddress, Slot> slots = new HashMap<InetSocketAddress, Slot>();
+    // For requests sent while no address is in rotation, to let the provider choose or fail
+    private final Slot anywhere = new Slot(null);
+    private int inFlight;
+    private int sequence;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Builds the request to run, with the session it runs in.
+     */
+    public interface RequestBuilder {
+        Request newRequest(Session session);
+    }
+
+    /**
+     * Receives the items of a streamed result, in order, on the thread running the request.
+     */
+    public interface ItemHandler {
+        /**
+         * @throws Exception to stop the stream and fail the future with it
+         */
+        void item(ResultItem item) throws Exception;
+    }
+
+    /**
+     * Runs requests on virtual threads under Java 21, otherwise on a shared pool of daemon
+     * threads.
+     */
+    public ELBAsyncRequests(ContentSource contentSource) {
+        this(contentSource, ELBThreads.hasVirtualThreads() ? Threads.VIRTUAL : Threads.EXECUTOR);
+    }
+
+    /**
+     * @param executor runs each request, once it has left the queue
+     * @throws IllegalArgumentException if the content source is not on a single-hostname
+     *                                  ELB provider
+     */
+    public ELBAsyncRequests(ContentSource contentSource, Executor executor) {
+        this.contentSource = contentSource;
+        this.provider = ELBConnectionProvider.coreOf(contentSource.getConnectionProvider());
+        this.executor = executor;
+        ELBConnectionLimiter limiter = provider.getConnectionLimiter();
+        this.maxInFlight = limiter.getMaxConnections();
+        this.maxInFlightPerAddress = limiter.getMaxConnectionsPerAddress();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @param maxInFlight requests run at once across every address; the provider's
+     *                    xcc.socket.pool.max by default
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        dispatch();
+    }
+
+    public int getMaxInFlightPerAddress() {
+        return maxInFlightPerAddress;
+    }
+
+    /**
+     * @param maxInFlightPerAddress requests run at once on one ELB address; the provider's
+     *                              xcc.elb.pool.max.per.address by default
+     */
+    public void setMaxInFlightPerAddress(int maxInFlightPerAddress) {
+        this.maxInFlightPerAddress = Math.max(1, maxInFlightPerAddress);
+        dispatch();
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * @param maxQueued requests that may wait for room before new ones are rejected;
+     *                  xcc.elb.async.queue.max, 10000 by default
+     */
+    public void setMaxQueued(int maxQueued) {
+        this.maxQueued = Math.max(0, maxQueued);
+    }
+
+    /**
+     * Runs an adhoc query, with the session's default request options.
+     */
+    public CompletableFuture<ResultSequence> submit(String query) {
+        return submit(query, null);
+    }
+
+    public CompletableFuture<ResultSequence> submit(String query, RequestOptions options) {
+        return submit(adhoc(query, options));
+    }
+
+    /**
+     * @return a future completed with the cached result, or with the exception the request
+     *         failed with; a RejectedExecutionException if the queue was full
+     */
+    public CompletableFuture<ResultSequence> submit(RequestBuilder builder) {
+        return enqueue(new Call<ResultSequence>(builder, true) {
+            ResultSequence finish(ResultSequence result) {
+                return result;
+            }
+        });
+    }
+
+    public CompletableFuture<Long> stream(String query, ItemHandler handler) {
+        return stream(adhoc(query, null), handler);
+    }
+
+    /**
+     * Runs the request without caching its result, handing each item to the handler as it
+     * is read. Cancelling the future stops the stream.
+     *
+     * @return a future completed with the number of items handled
+     */
+    public CompletableFuture<Long> stream(RequestBuilder builder, final ItemHandler handler) {
+        return enqueue(new Call<Long>(builder, false) {
+            Long finish(ResultSequence result) throws Exception {
+                long count = 0;
+                while (!isDone() && result.hasNext()) {
+                    handler.item(result.next());
+                    count++;
+                }
+                return count;
+            }
+        });
+    }
+
+    private static RequestBuilder adhoc(final String query, final RequestOptions options) {
+        return new RequestBuilder() {
+            public Request newRequest(Session session) {
+                return session.newAdhocQuery(query, options);
+            }
+        };
+    }
+
+    /**
+     * @return requests running now
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return requests running now on each ELB address
+     */
+    public Map<InetSocketAddress, Integer> getInFlightByAddress() {
+        Map<InetSocketAddress, Integer> byAddress = new HashMap<InetSocketAddress, Integer>();
+        lock.lock();
+        try {
+            for (Slot slot : slots.values()) {
+                if (slot.inFlight > 0) {
+                    byAddress.put(slot.address, slot.inFlight);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return byAddress;
+    }
+
+    /**
+     * @return requests waiting for room
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getSucceeded() {
+        return succeeded.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getCancelled() {
+        return cancelled.sum();
+    }
+
+    /**
+     * @return requests refused because the queue was full
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private <T> CompletableFuture<T> enqueue(Call<T> call) {
+        submitted.increment();
+        lock.lock();
+        try {
+            if (queue.size() >= maxQueued) {
+                rejected.increment();
+                call.completeExceptionally(new RejectedExecutionException(
+                        "ELB request queue full, " + queue.size() + " requests waiting"));
+                return call;
+            }
+            queue.add(call);
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+        return call;
+    }
+
+    /**
+     * Starts queued requests while there is room for them.
+     */
+    private void dispatch() {
+        while (true) {
+            Call<?> call;
+            lock.lock();
+            try {
+                while ((call = queue.peek()) != null && call.isDone()) {
+                    queue.poll();
+                }
+                if (call == null || inFlight >= maxInFlight) {
+                    return;
+                }
+                Slot slot = selectSlot();
+                if (slot == null) {
+                    // Every address is full; a request finishing dispatches again
+                    return;
+                }
+                queue.poll();
+                slot.inFlight++;
+                inFlight++;
+                call.slot = slot;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                executor.execute(call);
+            } catch (RejectedExecutionException e) {
+                release(call);
+                call.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Picks the address in rotation with the fewest requests in flight, below the limit.
+     * Called with the lock held.
+     *
+     * @return the slot, or null if every address is full
+     */
+    private Slot selectSlot() {
+        ELBNode[] nodes = provider.getNodes();
+        int start = (nodes.length == 0) ? 0 : (sequence++ & Integer.MAX_VALUE) % nodes.length;
+        int limit = maxInFlightPerAddress;
+        int inRotation = 0;
+        Slot best = null;
+
+        for (int i = 0; i < nodes.length; i++) {
+            ELBNode node = nodes[(start + i) % nodes.length];
+            if (node.isRetired() || !node.getCircuitBreaker().isClosed()) {
+                continue;
+            }
+            inRotation++;
+            Slot slot = slots.get(node.getAddress());
+            if (slot == null) {
+                slot = new Slot(node.getAddress());
+                slots.put(node.getAddress(), slot);
+            }
+            if (slot.inFlight < limit && (best == null || slot.inFlight < best.inFlight)) {
+                best = slot;
+            }
+        }
+        if (slots.size() > inRotation) {
+            forgetIdle(nodes);
+        }
+        return (inRotation == 0) ? anywhere : best;
+    }
+
+    /**
+     * Drops the slots of addresses no longer in rotation once nothing runs on them.
+     */
+    private void forgetIdle(ELBNode[] nodes) {
+        Iterator<Slot> iterator = slots.values().iterator();
+        while (iterator.hasNext()) {
+            Slot slot = iterator.next();
+            if (slot.inFlight == 0 && !inRotation(slot.address, nodes)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static boolean inRotation(InetSocketAddress address, ELBNode[] nodes) {
+        for (ELBNode node : nodes) {
+            if (node.getAddress().equals(address)) {
+                return !node.isRetired() && node.getCircuitBreaker().isClosed();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes a call out of the queue if it has not been dispatched, so a cancelled call
+     * no longer counts against the queue limit.
+     */
+    private void dequeue(Call<?> call) {
+        lock.lock();
+        try {
+            if (call.slot == null) {
+                queue.remove(call);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Call<?> call) {
+        lock.lock();
+        try {
+            call.slot.inFlight--;
+            inFlight--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "submitted=" + submitted.sum() + ", succeeded=" + succeeded.sum() + ", failed=" + failed.sum() +
+                ", cancelled=" + cancelled.sum() + ", rejected=" + rejected.sum() + ", inFlight=" + getInFlight() +
+                ", queued=" + getQueued();
+    }
+
+    /**
+     * Requests in flight to one ELB address. Guarded by the lock.
+     */
+    private static final class Slot {
+        final InetSocketAddress address;
+        int inFlight;
+
+        Slot(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    /**
+     * A queued or running request, and the future its caller holds.
+     */
+    private abstract class Call<T> extends CompletableFuture<T> implements Runnable {
+        private final RequestBuilder builder;
+        private final boolean cache;
+        private final ELBHedgeAttempt attempt = new ELBHedgeAttempt();
+        // Set under the lock as the call leaves the queue
+        Slot slot;
+
+        Call(RequestBuilder builder, boolean cache) {
+            this.builder = builder;
+            this.cache = cache;
+        }
+
+        /**
+         * @return what the future completes with, from the request's result
+         */
+        abstract T finish(ResultSequence result) throws Exception;
+
+        public void run() {
+            Session session = null;
+            ResultSequence result = null;
+            try {
+                if (isDone()) {
+                    return;
+                }
+                session = contentSource.newSession();
+                Request request = builder.newRequest(session);
+                ELBRequestOptions options = ELBRequestOptions.forAttempt(request.getOptions(),
+                        (slot.address == null) ? null : slot.address.getAddress(), attempt);
+                options.setCacheResult(cache);
+                request.setOptions(options);
+                result = session.submitRequest(request);
+                if (complete(finish(result))) {
+                    succeeded.increment();
+                }
+            } catch (Throwable e) {
+                if (completeExceptionally(e)) {
+                    failed.increment();
+                }
+            } finally {
+                if (result != null && !cache) {
+                    // Hands the connection back, or closes it if the stream was cancelled
+                    result.close();
+                }
+                if (session != null) {
+                    // Leaves a cached result readable
+                    session.close();
+                }
+                release(this);
+                dispatch();
+            }
+        }
+
+        /**
+         * Completes the future as cancelled, and closes the socket under the request if it
+         * is running; a queued request is taken out of the queue.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean done = super.cancel(mayInterruptIfRunning);
+            if (done) {
+                cancelled.increment();
+                attempt.cancel();
+                dequeue(this);
+            }
+            return done;
+        }
+    }
+
+    private static final class Threads {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ELBThreadFactory("elb-async-"));
+
+        static final Executor VIRTUAL = new Executor() {
+            private final ELBThreadFactory names = new ELBThreadFactory("elb-async-");
+
+            public void execute(Runnable task) {
+                ELBThreads.startVirtual(names.nextName(), task);
+            }
+        };
+    }
+}
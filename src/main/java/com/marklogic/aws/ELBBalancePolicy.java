@@ -0,0 +1,99 @@
+package com.marklogic.aws;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a provider picks the ELB node for each new request.
+ */
+public enum ELBBalancePolicy {
+    /**
+     * Use only the first resolved address, as a single-host provider does.
+     */
+    FIRST_ADDRESS {
+        ELBNode select(ELBNode[] nodes, int sequence) {
+            return nodes[0];
+        }
+    },
+
+    /**
+     * Cycle through every resolved address in turn.
+     */
+    ROUND_ROBIN {
+        ELBNode select(ELBNode[] nodes, int sequence) {
+            return nodes[(sequence & Integer.MAX_VALUE) % nodes.length];
+        }
+    },
+
+    /**
+     * Pick the address with the fewest connections currently handed out.
+     */
+    LEAST_OUTSTANDING {
+        ELBNode select(ELBNode[] nodes, int sequence) {
+            // Start the scan at a rotating offset so ties do not all land on the first node
+            int start = (sequence & Integer.MAX_VALUE) % nodes.length;
+            ELBNode best = nodes[start];
+            for (int i = 1; i < nodes.length; i++) {
+                ELBNode node = nodes[(start + i) % nodes.length];
+                if (node.getOutstanding() < best.getOutstanding()) {
+                    best = node;
+                }
+            }
+            return best;
+        }
+    },
+
+    /**
+     * Pick two addresses at random and use the one with fewer outstanding connections.
+     */
+    POWER_OF_TWO_CHOICES {
+        ELBNode select(ELBNode[] nodes, int sequence) {
+            if (nodes.length == 1) {
+                return nodes[0];
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(nodes.length);
+            int second = random.nextInt(nodes.length - 1);
+            if (second >= first) {
+                second++;
+            }
+            return (nodes[second].getOutstanding() < nodes[first].getOutstanding()) ? nodes[second] : nodes[first];
+        }
+    },
+
+    /**
+     * Pick two addresses at random and use the one expected to answer sooner, by the
+     * moving average of its latency scaled by its outstanding connections and error rate.
+     * Addresses with no latency measured yet win, so every address gets measured.
+     */
+    LEAST_LATENCY {
+        ELBNode select(ELBNode[] nodes, int sequence) {
+            if (nodes.length == 1) {
+                return nodes[0];
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(nodes.length);
+            int second = random.nextInt(nodes.length - 1);
+            if (second >= first) {
+                second++;
+            }
+            return (costOf(nodes[second]) < costOf(nodes[first])) ? nodes[second] : nodes[first];
+        }
+    };
+
+    static final String BALANCE_POLICY_PROPERTY = "xcc.elb.balance";
+
+    /**
+     * @param nodes    the candidate nodes, never empty
+     * @param sequence a per-provider counter, incremented for every selection
+     */
+    abstract ELBNode select(ELBNode[] nodes, int sequence);
+
+    static double costOf(ELBNode node) {
+        return node.getScore().cost(node.getOutstanding());
+    }
+
+    static ELBBalancePolicy fromSystemProperty() {
+        String value = System.getProperty(BALANCE_POLICY_PROPERTY);
+        return (value == null) ? FIRST_ADDRESS : valueOf(value.trim().toUpperCase());
+    }
+}
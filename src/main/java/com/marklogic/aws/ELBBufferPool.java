@@ -0,0 +1,179 @@
+package com.marklogic.aws;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Direct buffers for TLS channels, shared by every connection of every provider, so
+ * that only connections in the middle of a request hold any. Buffers are kept in a
+ * free list per capacity. Sizes are rounded up to a fixed set of size classes, four to
+ * each doubling from 4k to 1m, so a session whose sizes change, or a buffer that grows,
+ * cannot add capacities without bound.
+ * <p>
+ * A buffer released to a full free list is left to the garbage collector, so the
+ * direct memory held idle is bounded by xcc.elb.tls.buffers.max per capacity.
+ */
+final class ELBBufferPool {
+    static final String MAX_PROPERTY = "xcc.elb.tls.buffers.max";
+    static final int MIN_CAPACITY = 1 << 12;
+    static final int MAX_CAPACITY = 1 << 20;
+
+    private static final ELBBufferPool SHARED = new ELBBufferPool(Integer.getInteger(MAX_PROPERTY, 256).intValue());
+
+    private final int maxPerSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile FreeList[] freeLists = new FreeList[0];
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    private static final class FreeList {
+        private final int capacity;
+        private final ReentrantLock lock = new ReentrantLock();
+        private ByteBuffer[] buffers = new ByteBuffer[8];
+        private int size;
+
+        FreeList(int capacity) {
+            this.capacity = capacity;
+        }
+
+        ByteBuffer pop() {
+            lock.lock();
+            try {
+                if (size == 0) {
+                    return null;
+                }
+                ByteBuffer buffer = buffers[--size];
+                buffers[size] = null;
+                return buffer;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean push(ByteBuffer buffer, int max) {
+            lock.lock();
+            try {
+                if (size >= max) {
+                    return false;
+                }
+                if (size == buffers.length) {
+                    buffers = Arrays.copyOf(buffers, size * 2);
+                }
+                buffers[size++] = buffer;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    ELBBufferPool(int maxPerSize) {
+        this.maxPerSize = maxPerSize;
+    }
+
+    static ELBBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return the smallest size class that holds the size
+     * @throws IllegalArgumentException if the size is over {@link #MAX_CAPACITY}
+     */
+    static int sizeClass(int size) {
+        if (size <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        if (size > MAX_CAPACITY) {
+            throw new IllegalArgumentException("buffer size " + size + " is over " + MAX_CAPACITY);
+        }
+        int step = Integer.highestOneBit(size - 1) / 4;
+        return (size + step - 1) / step * step;
+    }
+
+    /**
+     * @return a cleared direct buffer with the capacity of the size's size class
+     */
+    ByteBuffer acquire(int size) {
+        int capacity = sizeClass(size);
+        ByteBuffer buffer = freeList(capacity).pop();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            allocated.incrementAndGet();
+            allocatedBytes.addAndGet(capacity);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Takes a buffer back; the caller must not touch it again.
+     */
+    void release(ByteBuffer buffer) {
+        if (!freeList(buffer.capacity()).push(buffer, maxPerSize)) {
+            allocated.decrementAndGet();
+            allocatedBytes.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * @return buffers allocated and not yet given up to the garbage collector, in use or free
+     */
+    long getAllocated() {
+        return allocated.get();
+    }
+
+    long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return buffers in the free lists
+     */
+    long getFree() {
+        long free = 0;
+        for (FreeList list : freeLists) {
+            free += list.size();
+        }
+        return free;
+    }
+
+    private FreeList freeList(int capacity) {
+        for (FreeList list : freeLists) {
+            if (list.capacity == capacity) {
+                return list;
+            }
+        }
+        lock.lock();
+        try {
+            for (FreeList list : freeLists) {
+                if (list.capacity == capacity) {
+                    return list;
+                }
+            }
+            FreeList[] copy = Arrays.copyOf(freeLists, freeLists.length + 1);
+            FreeList list = new FreeList(capacity);
+            copy[copy.length - 1] = list;
+            freeLists = copy;
+            return list;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ELBBufferPool [allocated=" + getAllocated() + " (" + getAllocatedBytes() + " bytes), free=" +
+                getFree() + "]";
+    }
+}
@@ -0,0 +1,142 @@
+package com.marklogic.aws;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Health of one ELB node. After xcc.elb.breaker.failures consecutive connect or I/O
+ * failures the breaker opens and the node is left out of rotation for a backoff window.
+ * When the window is over a single request is let through as a trial: if it succeeds
+ * the node is back, if it fails the breaker opens again for twice as long, up to
+ * xcc.elb.breaker.backoff.max.
+ * <p>
+ * A closed breaker, the normal case, is checked with a single volatile read.
+ */
+public class ELBCircuitBreaker {
+    public enum State {
+        /** Requests flow normally. */
+        CLOSED,
+        /** The node is out of rotation until the backoff window is over. */
+        OPEN,
+        /** One trial request is in flight to see whether the node has recovered. */
+        HALF_OPEN
+    }
+
+    static final String FAILURES_PROPERTY = "xcc.elb.breaker.failures";
+    static final String BACKOFF_PROPERTY = "xcc.elb.breaker.backoff";
+    static final String MAX_BACKOFF_PROPERTY = "xcc.elb.breaker.backoff.max";
+    private static final int DEFAULT_FAILURES = 3;
+    private static final long DEFAULT_BACKOFF = 1000;
+    private static final long DEFAULT_MAX_BACKOFF = 30000;
+
+    private static final int threshold = Integer.getInteger(FAILURES_PROPERTY, DEFAULT_FAILURES).intValue();
+    private static final long baseBackoff = Math.max(1, Long.getLong(BACKOFF_PROPERTY, DEFAULT_BACKOFF).longValue());
+    private static final long maxBackoff = Math.max(baseBackoff,
+            Long.getLong(MAX_BACKOFF_PROPERTY, DEFAULT_MAX_BACKOFF).longValue());
+
+    private final LongAdder trips = new LongAdder();
+    private volatile State state = State.CLOSED;
+    private volatile int failures;
+    private long backoff = baseBackoff;
+    private long retryAt;
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * @return failures since the last success
+     */
+    public int getConsecutiveFailures() {
+        return failures;
+    }
+
+    /**
+     * @return how many times the breaker has opened
+     */
+    public long getTrips() {
+        return trips.sum();
+    }
+
+    /**
+     * @return how long the breaker stays open when it next opens, or is staying open now
+     */
+    public synchronized long getBackoffMillis() {
+        return backoff;
+    }
+
+    /**
+     * @return true if a request may go to the node; when the backoff window is over the
+     *         first caller becomes the trial request
+     */
+    boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now < retryAt) {
+                return false;
+            }
+            // The window is over, or a trial never reported back
+            state = State.HALF_OPEN;
+            retryAt = now + backoff;
+            return true;
+        }
+    }
+
+    /**
+     * @return true if this success closed an open or half-open breaker
+     */
+    boolean recordSuccess() {
+        if (state == State.CLOSED && failures == 0) {
+            return false;
+        }
+        synchronized (this) {
+            boolean recovered = state != State.CLOSED;
+            state = State.CLOSED;
+            failures = 0;
+            backoff = baseBackoff;
+            return recovered;
+        }
+    }
+
+    /**
+     * @return true if this failure opened the breaker
+     */
+    synchronized boolean recordFailure() {
+        if (threshold <= 0) {
+            return false;
+        }
+        failures++;
+        if (state == State.HALF_OPEN) {
+            backoff = Math.min(maxBackoff, backoff * 2);
+            open();
+            return true;
+        }
+        if (state == State.CLOSED && failures >= threshold) {
+            open();
+            return true;
+        }
+        return false;
+    }
+
+    private void open() {
+        // Up to 10% off the window, so breakers tripped together do not all retry together
+        retryAt = System.currentTimeMillis() + backoff - (long) (backoff * 0.1 * ThreadLocalRandom.current().nextDouble());
+        state = State.OPEN;
+        trips.increment();
+    }
+
+    @Override
+    public String toString() {
+        return state + " failures=" + failures;
+    }
+}
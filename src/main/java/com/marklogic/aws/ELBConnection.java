@@ -1,7 +1,11 @@
 package com.marklogic.aws;
 
 import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.marklogic.xcc.spi.ConnectionProvider;
 import com.marklogic.xcc.spi.ServerConnection;
@@ -9,11 +13,37 @@ import com.marklogic.xcc.spi.ServerConnection;
 public class ELBConnection implements ServerConnection {
     private final ByteChannel channel;
     private final ConnectionProvider provider;
+    private final ELBNode node;
+    private final ELBSocketProfile profile;
+    private final ELBConnectionLimiter limiter;
+    private final AtomicBoolean counted;
     private long timeoutTime = 0;
+    private long deadline = Long.MAX_VALUE;
+    private ByteBuffer probeBuffer;
+    private int soTimeout = 0;
+    private boolean checkedOut;
+    private long checkedOutNanos;
+    private ELBHedgeAttempt attempt;
 
     public ELBConnection(ByteChannel channel, ConnectionProvider provider) {
+        this(channel, provider, null, ELBSocketProfile.DEFAULT, null);
+    }
+
+    /**
+     * @param limiter the limiter that counted this socket as open and will hand out
+     *                permits for it, or null if it is not limited
+     */
+    ELBConnection(ByteChannel channel, ConnectionProvider provider, ELBNode node, ELBSocketProfile profile,
+                  ELBConnectionLimiter limiter) {
         this.channel = channel;
         this.provider = provider;
+        this.node = node;
+        this.profile = profile;
+        this.limiter = limiter;
+        this.counted = new AtomicBoolean(limiter != null);
+        if (limiter != null && node != null) {
+            node.socketOpened();
+        }
     }
 
     public ByteChannel channel() {
@@ -24,6 +54,123 @@ public class ELBConnection implements ServerConnection {
         return provider;
     }
 
+    /**
+     * @return the ELB node this connection was opened to, or null if unknown
+     */
+    public ELBNode getNode() {
+        return node;
+    }
+
+    /**
+     * @return the socket profile this connection was opened with, and is pooled under
+     */
+    public ELBSocketProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Sets the socket read timeout, skipping the system call if it is unchanged.
+     */
+    void setSoTimeout(int timeout) throws SocketException {
+        if (timeout != soTimeout && channel instanceof SocketChannel) {
+            ((SocketChannel) channel).socket().setSoTimeout(timeout);
+            soTimeout = timeout;
+        }
+    }
+
+    /**
+     * Marks this connection as handed out to a request, against the limiter permit the
+     * caller has already taken for its node.
+     */
+    void acquire() {
+        if (!checkedOut && node != null) {
+            checkedOut = true;
+            checkedOutNanos = System.nanoTime();
+            node.acquired();
+        }
+    }
+
+    /**
+     * @return how long the connection has been handed out for, or 0 if it is not
+     */
+    long getCheckedOutNanos() {
+        return checkedOut ? System.nanoTime() - checkedOutNanos : 0;
+    }
+
+    /**
+     * Undoes {@link #acquire()}; safe to call more than once.
+     *
+     * @return true if the connection was handed out, so the caller must give back its permit
+     */
+    boolean release() {
+        if (!checkedOut) {
+            return false;
+        }
+        checkedOut = false;
+        node.released();
+        return limiter != null;
+    }
+
+    /**
+     * @return the copy of a hedged request this connection is running, or null
+     */
+    ELBHedgeAttempt getAttempt() {
+        return attempt;
+    }
+
+    void setAttempt(ELBHedgeAttempt attempt) {
+        this.attempt = attempt;
+    }
+
+    /**
+     * @return the time this connection must be retired by, however recently it was used
+     */
+    long getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Checks, without blocking, that an idle connection has not been closed or reset by
+     * the ELB or the server. Bytes waiting to be read fail the check too, as nothing is
+     * sent between a response and the next request.
+     */
+    boolean isAlive() {
+        if (!(channel instanceof SocketChannel)) {
+            return channel.isOpen();
+        }
+        if (probeBuffer == null) {
+            probeBuffer = ByteBuffer.allocate(1);
+        }
+        probeBuffer.clear();
+        return probe((SocketChannel) channel, probeBuffer) == 0;
+    }
+
+    /**
+     * Reads whatever is waiting on an idle socket, without blocking.
+     *
+     * @return the number of bytes read, 0 if there were none, or -1 if the peer closed
+     *         or reset the connection
+     */
+    static int probe(SocketChannel channel, ByteBuffer buffer) {
+        if (!channel.isOpen()) {
+            return -1;
+        }
+        try {
+            channel.configureBlocking(false);
+            try {
+                return channel.read(buffer);
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
     public long getTimeoutMillis() {
         long millis = timeoutTime - System.currentTimeMillis();
 
@@ -56,6 +203,12 @@ public class ELBConnection implements ServerConnection {
         } catch (IOException e) {
             // ignore
         }
+        if (counted.compareAndSet(true, false)) {
+            limiter.socketClosed();
+            if (node != null) {
+                node.socketClosed();
+            }
+        }
     }
 
     public boolean isOpen() {
@@ -0,0 +1,28 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import com.marklogic.xcc.spi.ServerConnection;
+
+/**
+ * The stage between a newly connected socket and the connection a provider pools and
+ * hands out, such as a TLS handshake. A connection is decorated once, when it is opened,
+ * and pooled with its decoration, so a reused connection skips the stage.
+ */
+interface ELBConnectionDecorator {
+    /**
+     * Hands out the socket connection as it is.
+     */
+    ELBConnectionDecorator NONE = new ELBConnectionDecorator() {
+        public ServerConnection decorate(ELBConnection connection, ELBStats stats, Logger logger) {
+            return connection;
+        }
+    };
+
+    /**
+     * @return the connection to pool and hand out, over the socket connection; on an
+     *         exception the caller closes the socket
+     */
+    ServerConnection decorate(ELBConnection connection, ELBStats stats, Logger logger) throws IOException;
+}
@@ -0,0 +1,241 @@
+package com.marklogic.aws;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps the connections a provider holds, in total and per ELB node.
+ * <p>
+ * A permit is held for as long as a connection is handed out to a request. Idle
+ * pooled sockets do not hold one, so a returned connection wakes the next waiter,
+ * who then picks it up from the pool. Open sockets are counted separately; the
+ * provider closes idle sockets elsewhere before opening one past the total limit.
+ * Per node that cannot happen, since a node's pool is only ever filled by its own
+ * returned connections.
+ * <p>
+ * Waiters queue on fair {@link Semaphore}s, which park on a lock-free queue, and
+ * give up with an {@link ELBPoolExhaustedException} once the acquire timeout passes.
+ * With a per-node limit they queue for the node first, so a full node does not hold
+ * up requests to the others; without one they queue for the total first.
+ */
+public class ELBConnectionLimiter {
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    private final Semaphore permits;
+    private final boolean perNodeLimited;
+    private final AtomicInteger open = new AtomicInteger();
+    private volatile long acquireTimeoutMillis;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder timeouts = new LongAdder();
+
+    public ELBConnectionLimiter(int maxConnections, int maxConnectionsPerAddress, long acquireTimeoutMillis) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = Math.min(maxConnections, maxConnectionsPerAddress);
+        this.permits = new Semaphore(maxConnections, true);
+        this.perNodeLimited = this.maxConnectionsPerAddress < maxConnections;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    /**
+     * @return a fresh per-node permit counter sized to the per-address limit
+     */
+    Semaphore newNodePermits() {
+        return new Semaphore(maxConnectionsPerAddress, true);
+    }
+
+    /**
+     * Takes a permit for the node, waiting up to the acquire timeout if the provider
+     * or the node is at its limit.
+     *
+     * @throws ELBPoolExhaustedException if no permit became free in time
+     */
+    void acquire(ELBNode node) throws InterruptedIOException, ELBPoolExhaustedException {
+        Semaphore nodePermits = node.getPermits();
+        // Without a tighter limit per node, queue for the total first; a node permit is then
+        // only held with a connection, never by a waiter, and so can always be moved
+        Semaphore first = perNodeLimited ? nodePermits : permits;
+        Semaphore second = perNodeLimited ? permits : nodePermits;
+
+        if (tryAcquireNow(first)) {
+            if (tryAcquireNow(second)) {
+                return;
+            }
+            first.release();
+        }
+
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        long start = System.nanoTime();
+
+        waiting.incrementAndGet();
+        try {
+            if (first.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                long remaining = timeoutNanos - (System.nanoTime() - start);
+                if (second.tryAcquire(Math.max(0, remaining), TimeUnit.NANOSECONDS)) {
+                    return;
+                }
+                first.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a connection to " + node.getAddress());
+        } finally {
+            waiting.decrementAndGet();
+            long waited = System.nanoTime() - start;
+            waits.increment();
+            waitNanos.add(waited);
+            maxWaitNanos.accumulate(waited);
+        }
+
+        timeouts.increment();
+        throw new ELBPoolExhaustedException("connection pool exhausted: " + getInUse() + "/" + maxConnections +
+                " in use, " + node.getOutstanding() + "/" + maxConnectionsPerAddress + " to " + node.getAddress() +
+                ", waited " + acquireTimeoutMillis + " ms");
+    }
+
+    void release(ELBNode node) {
+        permits.release();
+        node.getPermits().release();
+    }
+
+    /**
+     * Takes only the node's share of a permit, without waiting, for a connect raced
+     * against the node the caller holds a full permit for.
+     */
+    boolean tryAcquireNode(ELBNode node) {
+        return tryAcquireNow(node.getPermits());
+    }
+
+    /**
+     * Gives back the node's share of a permit; with {@link #tryAcquireNode} this moves a
+     * held permit to whichever node won the race.
+     */
+    void releaseNode(ELBNode node) {
+        node.getPermits().release();
+    }
+
+    /**
+     * Moves a held permit from one node to another if the other is below its limit. The
+     * holder already queued fairly for the permit, so the move barges ahead of waiters.
+     */
+    boolean tryMovePermit(ELBNode from, ELBNode to) {
+        if (!to.getPermits().tryAcquire()) {
+            return false;
+        }
+        from.getPermits().release();
+        return true;
+    }
+
+    private static boolean tryAcquireNow(Semaphore semaphore) {
+        // The timed form honours fairness, the untimed tryAcquire() would barge
+        try {
+            return semaphore.tryAcquire(0, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    void socketOpened() {
+        open.incrementAndGet();
+    }
+
+    /**
+     * Counts a socket about to be opened only if that keeps the provider within its limit.
+     */
+    boolean tryReserveSocket() {
+        int current;
+        do {
+            current = open.get();
+            if (current >= maxConnections) {
+                return false;
+            }
+        } while (!open.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    void socketClosed() {
+        open.decrementAndGet();
+    }
+
+    boolean isOverCapacity() {
+        return open.get() > maxConnections;
+    }
+
+    boolean isAtCapacity() {
+        return open.get() >= maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerAddress() {
+        return maxConnectionsPerAddress;
+    }
+
+    public long getAcquireTimeoutMillis() {
+        return acquireTimeoutMillis;
+    }
+
+    public void setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+        this.acquireTimeoutMillis = Math.max(0, acquireTimeoutMillis);
+    }
+
+    /**
+     * @return connections currently handed out to requests
+     */
+    public int getInUse() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    /**
+     * @return open sockets, pooled or in use
+     */
+    public int getOpenConnections() {
+        return open.get();
+    }
+
+    /**
+     * @return threads currently queued for a connection
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * @return how many times a caller had to queue for a connection
+     */
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /**
+     * @return callers that gave up with {@link ELBPoolExhaustedException}
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "inUse=" + getInUse() + "/" + maxConnections + ", open=" + getOpenConnections() + ", waiting=" +
+                waiting.get() + ", waits=" + getWaits() + ", timeouts=" + getTimeouts() + ", maxWait=" +
+                getMaxWaitMillis() + "ms";
+    }
+}
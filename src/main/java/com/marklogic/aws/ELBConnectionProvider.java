@@ -4,12 +4,21 @@ import java.io.IOException;
 import java.net.*;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.SocketChannel;
-import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.marklogic.io.ResourcePool;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+
 import com.marklogic.xcc.Request;
 import com.marklogic.xcc.RequestOptions;
 import com.marklogic.xcc.Session;
@@ -20,148 +29,1133 @@ import com.marklogic.xcc.spi.SingleHostAddress;
 
 public class ELBConnectionProvider implements ConnectionProvider, SingleHostAddress {
     private static final int DEFAULT_SOCKET_POOL_SIZE = 64;
-    private static final int DEFAULT_SOCKET_BUFFER_SIZE = 128 * 1024;
     private static final String POOL_SIZE_PROPERTY = "xcc.socket.pool.max";
-    private static final String SOCKET_SEND_BUFFER_PROPERTY = "xcc.socket.sendbuf";
-    private static final String SOCKET_RECV_BUFFER_PROPERTY = "xcc.socket.recvbuf";
+    private static final String DRAIN_GRACE_PROPERTY = "xcc.elb.drain.grace";
+    private static final long DEFAULT_DRAIN_GRACE = 10000;
+    private static final String POOL_SIZE_PER_ADDRESS_PROPERTY = "xcc.elb.pool.max.per.address";
+    private static final String ACQUIRE_TIMEOUT_PROPERTY = "xcc.elb.pool.acquire.timeout";
+    private static final long DEFAULT_ACQUIRE_TIMEOUT = 10000;
 
     private final int poolSize = Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_SOCKET_POOL_SIZE).intValue();
-    private static final int socketSendBuffSize = Integer.getInteger(SOCKET_SEND_BUFFER_PROPERTY,
-            DEFAULT_SOCKET_BUFFER_SIZE).intValue();
-    private static final int socketRecvBuffSize = Integer.getInteger(SOCKET_RECV_BUFFER_PROPERTY,
-            DEFAULT_SOCKET_BUFFER_SIZE).intValue();
-    private final ResourcePool<SocketAddress, SocketChannel> connectionPool;
-    private SocketAddress address;
+    private final ELBIdlePool<ServerConnection> connectionPool;
+    private final ELBConnectionLimiter limiter;
+    private final ELBAddressRefresher refresher;
+    private final ELBBalancePolicy balancePolicy;
+    private final ELBConnectionDecorator decorator;
+    private final AtomicInteger selectionSequence = new AtomicInteger();
+    private final AtomicReference<ELBPoolState> state = new AtomicReference<ELBPoolState>(ELBPoolState.EMPTY);
+    private final Set<ELBNode> draining = ConcurrentHashMap.newKeySet();
+    private final LongAdder reclaimed = new LongAdder();
+    private volatile long drainGraceMillis = Long.getLong(DRAIN_GRACE_PROPERTY, DEFAULT_DRAIN_GRACE).longValue();
+    private volatile ELBSocketProfile socketProfile = ELBSocketProfile.DEFAULT;
+    private final ELBPoolView idleView;
+    private final ELBPoolWarmer warmer;
+    private final ELBPoolReaper reaper;
+    private final ELBConnector connector = new ELBConnector();
+    private final ELBPoolRebalancer rebalancer = new ELBPoolRebalancer();
+    private final ELBSessionAffinity affinity = new ELBSessionAffinity();
+    private final ELBLatencyScore score = new ELBLatencyScore();
+    private final ELBStats stats;
     private final Logger logger;
 
-    public ELBConnectionProvider(SocketAddress address) {
-        logger = Logger.getLogger(ELBConnectionProvider.class.getName());
+    private final ELBConnector.Callback connectCallback = new ELBConnector.Callback() {
+        public boolean reserve(ELBNode node) {
+            return limiter.tryAcquireNode(node);
+        }
+
+        public void release(ELBNode node) {
+            limiter.releaseNode(node);
+        }
 
-        logger.info("constructing new ELBConnectionProvider for " + address);
+        public void failed(ELBNode node, IOException e) {
+            stats.connectFailed(node.getAddress());
+            node.getScore().connectFailed();
+            score.connectFailed();
+            nodeFailed(node);
+        }
+    };
+
+    private final ELBAddressListener addressListener = new ELBAddressListener() {
+        public void addressesChanged(ELBAddressSnapshot previous, ELBAddressSnapshot current) {
+            updateNodes(current);
+        }
 
-        this.address = address;
-        connectionPool = new ResourcePool<SocketAddress, SocketChannel>();
+        public void refreshed(ELBAddressSnapshot current, boolean changed, long refreshNanos) {
+            stats.dnsRefreshed(current.getHostName(), refreshNanos, changed);
+        }
+    };
+
+    public ELBConnectionProvider(SocketAddress address) {
+        this(ELBAddressRefresher.forAddress((InetSocketAddress) address, new InetAddressResolver()),
+                ELBBalancePolicy.fromSystemProperty());
     }
 
     public ELBConnectionProvider(String host, int port) {
         this(new InetSocketAddress(host, port));
     }
 
+    public ELBConnectionProvider(String host, int port, ELBBalancePolicy balancePolicy) {
+        this(ELBAddressRefresher.forAddress(new InetSocketAddress(host, port), new InetAddressResolver()),
+                balancePolicy);
+    }
+
+    public ELBConnectionProvider(String host, int port, ELBAddressResolver resolver) {
+        this(host, port, resolver, ELBBalancePolicy.fromSystemProperty());
+    }
+
+    public ELBConnectionProvider(String host, int port, ELBAddressResolver resolver, ELBBalancePolicy balancePolicy) {
+        this(new ELBAddressRefresher(host, port, resolver), balancePolicy);
+    }
+
+    private ELBConnectionProvider(ELBAddressRefresher refresher, ELBBalancePolicy balancePolicy) {
+        this(refresher, balancePolicy, ELBConnectionDecorator.NONE, ELBConnectionProvider.class.getSimpleName());
+    }
+
+    /**
+     * Builds the pooling core of a provider whose connections pass through a decorator,
+     * such as {@link ELBSSLConnectionProvider}. The core takes over the refresher and
+     * registers its statistics under the given provider type.
+     */
+    ELBConnectionProvider(ELBAddressRefresher refresher, ELBBalancePolicy balancePolicy,
+                          ELBConnectionDecorator decorator, String type) {
+        logger = Logger.getLogger(ELBConnectionProvider.class.getName());
+
+        this.refresher = refresher;
+        this.balancePolicy = balancePolicy;
+        this.decorator = decorator;
+        connectionPool = new ELBIdlePool<ServerConnection>();
+        limiter = new ELBConnectionLimiter(poolSize,
+                Integer.getInteger(POOL_SIZE_PER_ADDRESS_PROPERTY, poolSize).intValue(),
+                Long.getLong(ACQUIRE_TIMEOUT_PROPERTY, DEFAULT_ACQUIRE_TIMEOUT).longValue());
+        stats = new ELBStats(limiter);
+
+        ELBPoolWarmer.Target pool = new ELBPoolWarmer.Target() {
+            public ELBNode[] getNodes() {
+                return state.get().getNodes();
+            }
+
+            public long idleCount(ELBNode node) {
+                return connectionPool.size(node.getAddress());
+            }
+
+            public long idleCount(ELBNode node, ELBSocketProfile profile) {
+                return connectionPool.size(node.getAddress(), profile);
+            }
+
+            public boolean addIdle(ELBNode node, long expireTime) throws IOException {
+                ServerConnection connection = openIdleConnection(node);
+                if (connection == null) {
+                    return false;
+                }
+                connectionPool.put(node.getAddress(), profileOf(connection), connection,
+                        reaper.expireTime(expireTime, deadlineOf(connection)));
+                return true;
+            }
+        };
+        idleView = pool;
+        reaper = new ELBPoolReaper(this.logger);
+        warmer = new ELBPoolWarmer(pool, 0, reaper.getMaxIdle(), this.logger);
+
+        refresher.start();
+        // Listen first so no change slips between the two; a stale snapshot is ignored
+        refresher.addListener(addressListener);
+        updateNodes(refresher.getSnapshot());
+
+        logger.info("constructing new " + type + " for " + refresher.getSnapshot().getPrimary() +
+                ", balance=" + balancePolicy);
+
+        stats.register(type, refresher.getHostName(), refresher.getPort(), pool, logger);
+        setMinIdle(Integer.getInteger(ELBPoolWarmer.MIN_IDLE_PROPERTY, 0).intValue());
+        reaper.start(this);
+    }
+
     @Override
     public boolean equals(Object o) {
         if(this == o) return true;
         if(o == null) return false;
         if(!(o instanceof ELBConnectionProvider)) return false;
-        return address.equals(((ELBConnectionProvider)o).getAddress());
+        return getAddress().equals(((ELBConnectionProvider)o).getAddress());
     }
 
     @Override
     public int hashCode() {
-        return address.hashCode();
+        return getAddress().hashCode();
+    }
+
+    ELBSessionAffinity getAffinity() {
+        return affinity;
+    }
+
+    ELBAddressRefresher getRefresher() {
+        return refresher;
+    }
+
+    public ELBBalancePolicy getBalancePolicy() {
+        return balancePolicy;
+    }
+
+    /**
+     * @return how long connections to an address that left DNS are given to come back
+     *         from in-flight requests before a final sweep of the pool
+     */
+    public long getDrainGraceMillis() {
+        return drainGraceMillis;
+    }
+
+    public void setDrainGraceMillis(long drainGraceMillis) {
+        this.drainGraceMillis = Math.max(0, drainGraceMillis);
+    }
+
+    /**
+     * @return the limiter enforcing xcc.socket.pool.max, with its queueing statistics
+     */
+    public ELBConnectionLimiter getConnectionLimiter() {
+        return limiter;
+    }
+
+    /**
+     * @return connection, TLS and DNS counters and latencies, also published over JMX
+     */
+    public ELBStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the moving averages of latency and error rate across every node of the
+     *         ELB hostname; each node keeps its own as well
+     */
+    public ELBLatencyScore getScore() {
+        return score;
+    }
+
+    /**
+     * @return the number of idle connections kept open to every ELB address
+     */
+    public int getMinIdle() {
+        return warmer.getMinIdle();
+    }
+
+    /**
+     * Sets the number of idle connections a background task keeps open to every ELB
+     * address, topped up as connections expire and as soon as a new address appears.
+     * 0 turns warm-up off.
+     */
+    public void setMinIdle(int minIdle) {
+        warmer.setMinIdle(minIdle);
+    }
+
+    public ELBSocketProfile getSocketProfile() {
+        return socketProfile;
+    }
+
+    /**
+     * Sets the socket options for new connections, unless a request picks its own with
+     * {@link ELBRequestOptions}. Idle connections opened with the previous profile are
+     * no longer handed out and are closed as they expire.
+     */
+    public void setSocketProfile(ELBSocketProfile socketProfile) {
+        if (socketProfile == null) {
+            throw new IllegalArgumentException("socketProfile");
+        }
+        this.socketProfile = socketProfile;
+    }
+
+    /**
+     * @return the profile from the request's options, else the session's default request
+     *         options, else the provider's
+     */
+    private ELBSocketProfile profileFor(Session session, Request request) {
+        ELBSocketProfile profile = (request == null) ? null : profileOf(request.getOptions());
+        if (profile == null && session != null) {
+            profile = profileOf(session.getDefaultRequestOptions());
+        }
+        return (profile == null) ? socketProfile : profile;
+    }
+
+    private static ELBSocketProfile profileOf(RequestOptions options) {
+        return (options instanceof ELBRequestOptions) ? ((ELBRequestOptions) options).getSocketProfile() : null;
+    }
+
+    /**
+     * @return the node whose address the request's options, else the session's default
+     *         request options, send it to, or null if none is set or the node is not in
+     *         rotation
+     */
+    private ELBNode targetFor(Session session, Request request) {
+        InetAddress target = targetOf(session, request);
+        if (target == null) {
+            return null;
+        }
+        for (ELBNode node : state.get().getNodes()) {
+            if (node.getAddress().getAddress().equals(target)) {
+                return (!node.isRetired() && node.getCircuitBreaker().allowRequest()) ? node : null;
+            }
+        }
+        return null;
+    }
+
+    private static InetAddress targetOf(RequestOptions options) {
+        return (options instanceof ELBRequestOptions) ? ((ELBRequestOptions) options).getTargetAddress() : null;
+    }
+
+    private static ELBHedgeAttempt attemptOf(Request request) {
+        RequestOptions options = (request == null) ? null : request.getOptions();
+        return (options instanceof ELBRequestOptions) ? ((ELBRequestOptions) options).getAttempt() : null;
+    }
+
+    /**
+     * Picks where to send a hedged copy of a request: the least busy node in rotation
+     * other than the one the first copy went to.
+     *
+     * @return its address, or null if there is no other node in rotation
+     */
+    InetAddress alternativeTo(InetSocketAddress address) {
+        ELBNode best = null;
+        for (ELBNode node : state.get().getNodes()) {
+            if (!node.getAddress().equals(address) && !node.isRetired() && node.getCircuitBreaker().isClosed() &&
+                    (best == null || node.getOutstanding() < best.getOutstanding())) {
+                best = node;
+            }
+        }
+        return (best == null) ? null : best.getAddress().getAddress();
+    }
+
+    /**
+     * @return true if some node is in rotation and its breaker is closed
+     */
+    boolean isInRotation() {
+        for (ELBNode node : state.get().getNodes()) {
+            if (!node.isRetired() && node.getCircuitBreaker().isClosed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if one of the nodes requests are spread across has this address
+     */
+    boolean hasNode(InetAddress address) {
+        for (ELBNode node : state.get().getNodes()) {
+            if (node.getAddress().getAddress().equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the session's open transaction is pinned to one of the nodes
+     */
+    boolean isPinned(Session session) {
+        return affinity.nodeFor(session) != null;
+    }
+
+    /**
+     * @return the pooling core of a single-hostname ELB provider
+     * @throws IllegalArgumentException for any other provider
+     */
+    static ELBConnectionProvider coreOf(ConnectionProvider provider) {
+        if (provider instanceof ELBConnectionProvider) {
+            return (ELBConnectionProvider) provider;
+        }
+        if (provider instanceof ELBSSLConnectionProvider) {
+            return ((ELBSSLConnectionProvider) provider).getCore();
+        }
+        throw new IllegalArgumentException("not a single-hostname ELB connection provider: " + provider);
+    }
+
+    /**
+     * @return the address the request's options, else the session's default request
+     *         options, send it to, or null
+     */
+    static InetAddress targetOf(Session session, Request request) {
+        InetAddress target = (request == null) ? null : targetOf(request.getOptions());
+        if (target == null && session != null) {
+            target = targetOf(session.getDefaultRequestOptions());
+        }
+        return target;
+    }
+
+    public boolean isSessionAffinity() {
+        return affinity.isEnabled();
+    }
+
+    /**
+     * Turns on keeping every statement of a multi-statement transaction on the ELB node
+     * the transaction began on; on by default.
+     */
+    public void setSessionAffinity(boolean sessionAffinity) {
+        affinity.setEnabled(sessionAffinity);
+    }
+
+    /**
+     * @return sessions whose open transaction is pinned to an ELB node
+     */
+    public int getPinnedSessions() {
+        return affinity.size();
+    }
+
+    public boolean isRebalancing() {
+        return rebalancer.isEnabled();
+    }
+
+    /**
+     * Turns on closing returned connections to nodes that hold more than their share of
+     * connections, at a limited rate, so load spreads onto nodes added by a scale-out.
+     */
+    public void setRebalancing(boolean rebalancing) {
+        rebalancer.setEnabled(rebalancing);
+    }
+
+    /**
+     * @return connections closed because their ELB address went away
+     */
+    public long getReclaimedConnections() {
+        return reclaimed.sum();
+    }
+
+    /**
+     * @return the nodes requests are currently spread across
+     */
+    public ELBNode[] getNodes() {
+        return state.get().getNodes().clone();
+    }
+
+    /**
+     * Rebuilds the node list from a new snapshot. Nodes for addresses that are still
+     * resolved are kept, so their counters survive; nodes that dropped out are retired.
+     * The new state is swapped in with compare-and-set, so if refreshes race only the
+     * thread that installs a state announces its joins and retires its leavers, and a
+     * snapshot older than the current state is ignored.
+     */
+    private void updateNodes(ELBAddressSnapshot snapshot) {
+        List<InetSocketAddress> addresses = snapshot.getAddresses();
+        if (balancePolicy == ELBBalancePolicy.FIRST_ADDRESS && !addresses.isEmpty()) {
+            addresses = addresses.subList(0, 1);
+        }
+
+        ELBPoolState previous;
+        ELBPoolState current;
+        List<ELBNode> joined;
+
+        do {
+            previous = state.get();
+            if (previous.isAtLeast(snapshot)) {
+                return;
+            }
+
+            ELBNode[] nodes = new ELBNode[addresses.size()];
+            joined = new ArrayList<ELBNode>();
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = previous.find(addresses.get(i));
+                if (nodes[i] == null) {
+                    nodes[i] = new ELBNode(addresses.get(i), limiter.newNodePermits());
+                    joined.add(nodes[i]);
+                }
+            }
+            current = new ELBPoolState(snapshot, nodes);
+        } while (!state.compareAndSet(previous, current));
+
+        if (previous.getSnapshot() == null) {
+            return;
+        }
+
+        for (ELBNode node : joined) {
+            logger.info("ELB node joined " + node.getAddress());
+        }
+        if (!joined.isEmpty()) {
+            warmer.warmSoon();
+        }
+
+        for (ELBNode node : previous.getNodes()) {
+            if (current.find(node.getAddress()) != node) {
+                retire(node);
+            }
+        }
+    }
+
+    /**
+     * Takes a node out of rotation and closes its idle connections. Connections still
+     * in use are closed as they are returned; a second sweep after the grace period
+     * catches any that raced back into the pool.
+     */
+    private void retire(final ELBNode node) {
+        node.retire();
+        draining.add(node);
+
+        int closed = drainNode(node);
+        logger.info("ELB node left " + node.getAddress() + ", closed " + closed + " idle connections, " +
+                node.getOutstanding() + " in use");
+
+        Runnable finalSweep = new Runnable() {
+            public void run() {
+                int closed = drainNode(node);
+                draining.remove(node);
+                if (closed > 0 || node.getOutstanding() > 0) {
+                    logger.info("drained ELB node " + node.getAddress() + ", closed " + closed +
+                            " late connections, " + node.getOutstanding() + " still in use");
+                }
+            }
+        };
+
+        long grace = drainGraceMillis;
+        if (grace > 0) {
+            ELBScheduler.get().schedule(finalSweep, grace, TimeUnit.MILLISECONDS);
+        } else {
+            finalSweep.run();
+        }
+    }
+
+    private int drainNode(ELBNode node) {
+        int closed = closeIdle(node, Integer.MAX_VALUE);
+
+        reclaimed.add(closed);
+        return closed;
+    }
+
+    private int closeIdle(ELBNode node, int max) {
+        int closed = 0;
+        ServerConnection connection;
+
+        while ((closed < max) && (connection = connectionPool.get(node.getAddress())) != null) {
+            connection.close();
+            closed++;
+        }
+        return closed;
+    }
+
+    /**
+     * Waits, up to the acquire timeout, until a connection to the node may be handed out.
+     */
+    private void acquirePermit(ELBNode node) throws IOException {
+        limiter.acquire(node);
+    }
+
+    private void releasePermit(ELBNode node) {
+        limiter.release(node);
+    }
+
+    /**
+     * Closes one idle connection, preferring nodes that are draining, to make room
+     * for a new socket to another node.
+     */
+    private boolean closeIdleElsewhere(ELBNode except) {
+        for (ELBNode node : draining) {
+            if (closeIdle(node, 1) > 0) {
+                return true;
+            }
+        }
+        for (ELBNode node : state.get().getNodes()) {
+            if (node != except && closeIdle(node, 1) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks a node with the balance policy, passing over nodes whose circuit breaker is
+     * open. If every node is tripped the policy's choice is tried anyway.
+     */
+    private ELBNode selectNode() throws UnknownHostException {
+        ELBNode[] candidates = state.get().getNodes();
+
+        if (candidates.length == 0) {
+            throw new UnknownHostException(refresher.getHostName());
+        }
+
+        ELBNode node = balancePolicy.select(candidates, selectionSequence.getAndIncrement());
+        if (node.getCircuitBreaker().allowRequest()) {
+            return node;
+        }
+        ELBNode healthy = findHealthy(candidates, node);
+        return (healthy == null) ? node : healthy;
+    }
+
+    /**
+     * @return another node whose breaker lets a request through, to retry a failed
+     *         connect on, or null if there is none
+     */
+    private ELBNode failover(ELBNode failed) {
+        return findHealthy(state.get().getNodes(), failed);
+    }
+
+    /**
+     * Scans from a random node, so the load of a tripped node is spread over the others
+     * rather than landing on its neighbour.
+     */
+    private static ELBNode findHealthy(ELBNode[] candidates, ELBNode except) {
+        int start = ThreadLocalRandom.current().nextInt(candidates.length);
+
+        for (int i = 0; i < candidates.length; i++) {
+            ELBNode node = candidates[(start + i) % candidates.length];
+            if (node != except && node.getCircuitBreaker().allowRequest()) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if some node other than this one is in rotation and not failing
+     */
+    private boolean hasHealthyAlternative(ELBNode node) {
+        for (ELBNode candidate : state.get().getNodes()) {
+            if (candidate != node && candidate.getCircuitBreaker().isClosed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The provider does not see the request go out, so only errors that cannot happen once
+     * any of it has been sent are safe to retry: a refused or unroutable connect, or a
+     * failed TLS handshake. Anything else, a reset for instance, may come after the
+     * server has run the request, and retrying an update would run it twice.
+     *
+     * @return true if the error, or one of its causes, happened before the request was
+     *         written
+     */
+    static boolean isBeforeRequest(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof NoRouteToHostException ||
+                    cause instanceof SSLHandshakeException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts a connect or I/O failure against the node; if that trips its breaker, the
+     * node's idle connections are closed, as they are likely dead too.
+     */
+    private void nodeFailed(ELBNode node) {
+        ELBCircuitBreaker breaker = node.getCircuitBreaker();
+
+        if (breaker.recordFailure()) {
+            int closed = closeIdle(node, Integer.MAX_VALUE);
+            long backoff = breaker.getBackoffMillis();
+
+            logger.warning("ELB node " + node.getAddress() + " failed " + breaker.getConsecutiveFailures() +
+                    " times, out of rotation for " + backoff + "ms, closed " + closed + " idle connections");
+            stats.nodeTripped(node.getAddress(), backoff);
+        }
+    }
+
+    private void nodeSucceeded(ELBNode node) {
+        if (node.getCircuitBreaker().recordSuccess()) {
+            logger.info("ELB node back in rotation " + node.getAddress());
+            stats.nodeRecovered(node.getAddress());
+        }
+    }
+
+    /**
+     * Updates the latency scores of the node and of the hostname with a request that held
+     * a connection for this long.
+     */
+    private void requestDone(ELBNode node, long elapsedNanos, boolean failed) {
+        if (elapsedNanos <= 0) {
+            return;
+        }
+        if (failed) {
+            node.getScore().requestFailed(elapsedNanos);
+            score.requestFailed(elapsedNanos);
+        } else {
+            node.getScore().requestSucceeded(elapsedNanos);
+            score.requestSucceeded(elapsedNanos);
+        }
     }
 
-    int getPoolSize() {
-        return poolSize;
+    /**
+     * @return true if the exception means the node could not be reached, so the request
+     *         can safely go to another node: nothing was sent on the connection yet
+     */
+    static boolean isConnectFailure(IOException e) {
+        return (e instanceof SocketException) || (e instanceof SocketTimeoutException) || (e instanceof SSLException);
     }
 
     public ServerConnection obtainConnection(Session session, Request request, Logger logger) throws IOException {
-        if (getLogger(logger).isLoggable(Level.FINE)) {
+        ELBHedgeAttempt attempt = attemptOf(request);
+        if (attempt != null && attempt.isCancelled()) {
+            throw new IOException("request cancelled");
+        }
+        ServerConnection connection = selectConnection(session, request, logger);
+
+        if (attempt != null && !attempt.attach(plainOf(connection))) {
+            // Cancelled while the connection was obtained, such as a hedged copy whose
+            // other copy has already answered
+            ELBNode node = nodeOf(connection);
+            boolean permitHeld = checkIn(connection);
+            connection.close();
+            if (permitHeld) {
+                releasePermit(node);
+            }
+            throw new IOException("request cancelled");
+        }
+        return connection;
+    }
+
+    private ServerConnection selectConnection(Session session, Request request, Logger logger) throws IOException {
+        ELBSocketProfile profile = profileFor(session, request);
+        ELBNode pinned = affinity.nodeFor(session);
+
+        if (pinned != null) {
+            // No other node knows the transaction, so there is nowhere to fail over to
+            return obtainConnection(pinned, profile, request, true, logger);
+        }
+
+        ELBNode target = targetFor(session, request);
+        if (target != null) {
+            return obtainConnection(target, profile, request, true, logger);
+        }
+
+        ELBNode node = selectNode();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                ServerConnection connection = obtainConnection(node, profile, request, false, logger);
+                affinity.pin(session, nodeOf(connection));
+                return connection;
+            } catch (IOException e) {
+                ELBNode next = (isConnectFailure(e) && attempt < state.get().getNodes().length) ? failover(node) : null;
+                if (next == null) {
+                    throw e;
+                }
+                if (getLogger(logger).isLoggable(Level.FINE)) {
+                    getLogger(logger).fine("unable to connect to " + node.getAddress() + ", trying " +
+                            next.getAddress() + ": " + e);
+                }
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * Obtains a connection to a specific node, from its sub-pool for the profile if one is
+     * available.
+     *
+     * @param pinned true if the connection must be to this node; otherwise it may be to
+     *               another node with an idle connection, or one that connects sooner
+     */
+    private ServerConnection obtainConnection(ELBNode node, ELBSocketProfile profile, Request request,
+                                              boolean pinned, Logger logger) throws IOException {
+        InetSocketAddress address = node.getAddress();
+        // Checked once, so a borrow from the pool builds no strings and logs nothing
+        boolean fine = getLogger(logger).isLoggable(Level.FINE);
+
+        if (fine) {
             getLogger(logger).fine("obtainConnection for " + address);
         }
 
-        SocketChannel channel = connectionPool.get(address);
+        acquirePermit(node);
 
-        if (channel == null) {
-            channel = SocketChannel.open(address);
-            Socket socket = channel.socket();
+        ServerConnection connection = null;
+        try {
+            connection = takeIdle(address, profile, fine, logger);
+            // Another borrower may take the idle connection first; then look again
+            ELBNode idle;
+            while (connection == null && !pinned && (idle = moveToIdle(node, profile, idleView)) != null) {
+                node = idle;
+                address = idle.getAddress();
+                connection = takeIdle(address, profile, fine, logger);
+            }
 
-            socket.setSendBufferSize(socketSendBuffSize);
-            socket.setReceiveBufferSize(socketRecvBuffSize);
-            socket.setTcpNoDelay(true);
-            socket.setSoLinger(false, 0);
-            socket.setKeepAlive(true);
+            if (connection == null) {
+                ELBConnection opened = openConnection(node, profile, request, !pinned);
+                // A raced connect may have won on another node, which now holds the permit
+                node = opened.getNode();
+                connection = decorate(opened, logger);
 
-            if (request != null) {
-                RequestOptions options = request.getEffectiveOptions();
-                int timeout = options.getTimeoutMillis();
+                if (fine) {
+                    getLogger(logger).fine("  pool empty, created new connection");
+                }
+            } else {
+                // The pooled wrapper still carries the expiry it was returned with
+                connection.setTimeoutTime(0);
+                applyTimeout(connection, request);
+                stats.connectionReused(address);
 
-                if (timeout >= 0) {
-                    socket.setSoTimeout(timeout);
+                if (fine) {
+                    getLogger(logger).fine("  using connection from pool");
                 }
             }
+        } catch (IOException | RuntimeException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            releasePermit(node);
+            throw e;
+        }
 
-            getLogger(logger).fine("  pool empty, created new connection");
-        } else {
-            getLogger(logger).fine("  using connection from pool");
+        checkOut(connection);
+
+        return connection;
+    }
+
+    private ServerConnection takeIdle(InetSocketAddress address, ELBSocketProfile profile, boolean fine,
+                                      Logger logger) {
+        ServerConnection connection = connectionPool.get(address, profile);
+
+        while (connection != null && reaper.isValidate() && !isAlive(connection)) {
+            if (fine) {
+                getLogger(logger).fine("  pooled connection is dead, closing");
+            }
+            connection.close();
+            stats.connectionStale(address);
+            connection = connectionPool.get(address, profile);
         }
+        return connection;
+    }
+
+    /**
+     * At the socket limit a new connection to the node could only be opened by closing an
+     * idle one elsewhere, which under sustained load would cost a connect per request.
+     * Instead, moves the permit held for the node to a healthy node with an idle
+     * connection for the profile in the pool.
+     *
+     * @return the node now holding the permit, or null to connect to the node as usual
+     */
+    private ELBNode moveToIdle(ELBNode node, ELBSocketProfile profile, ELBPoolView pool) {
+        if (!limiter.isAtCapacity()) {
+            return null;
+        }
+        ELBNode[] nodes = state.get().getNodes();
+        int start = ThreadLocalRandom.current().nextInt(nodes.length);
 
-        return new ELBConnection(channel, this);
+        for (int i = 0; i < nodes.length; i++) {
+            ELBNode candidate = nodes[(start + i) % nodes.length];
+            if (candidate != node && !candidate.isRetired() && candidate.getCircuitBreaker().isClosed() &&
+                    pool.idleCount(candidate, profile) > 0 && limiter.tryMovePermit(node, candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a new socket to the node. The caller must hold a permit for the node; if the
+     * provider already has as many sockets open as it may, an idle one elsewhere is
+     * closed first.
+     */
+    private ELBConnection openConnection(ELBNode node, ELBSocketProfile profile, Request request, boolean race)
+            throws IOException {
+        limiter.socketOpened();
+        while (limiter.isOverCapacity() && closeIdleElsewhere(node)) {
+            // keep closing until we are back under the limit
+        }
+
+        return connect(node, profile, request, race);
+    }
+
+    /**
+     * Opens a new socket to the node for the pool, with the provider's profile, unless the
+     * provider already has as many open as it may.
+     *
+     * @return the connection, or null if the provider is at its limit
+     */
+    private ServerConnection openIdleConnection(ELBNode node) throws IOException {
+        if (!limiter.tryReserveSocket()) {
+            return null;
+        }
+        return decorate(connect(node, socketProfile, null, false), null);
+    }
+
+    /**
+     * Passes a new socket through the decorator, closing it if that fails; a failed TLS
+     * handshake counts against the node like a failed connect.
+     */
+    private ServerConnection decorate(ELBConnection connection, Logger logger) throws IOException {
+        try {
+            return decorator.decorate(connection, stats, getLogger(logger));
+        } catch (IOException e) {
+            connection.close();
+            nodeFailed(connection.getNode());
+            throw e;
+        } catch (RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects a socket the limiter has already counted as open. If racing, while the node
+     * is slow to answer the other nodes in rotation are raced against it and the returned
+     * connection may be to one of them; the permit held for the node has then moved to
+     * that node.
+     */
+    private ELBConnection connect(ELBNode node, ELBSocketProfile profile, Request request, boolean race)
+            throws IOException {
+        ELBConnector.Connected connected;
+        SocketChannel channel = null;
+        try {
+            connected = connector.connect(raceCandidates(node, race), connectCallback);
+            channel = connected.channel;
+            stats.connectionOpened(connected.node.getAddress(), connected.connectNanos);
+            connected.node.getScore().connected(connected.connectNanos);
+            score.connected(connected.connectNanos);
+
+            profile.apply(channel);
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            limiter.socketClosed();
+            throw e;
+        }
+
+        ELBConnection connection = new ELBConnection(channel, this, connected.node, profile, limiter);
+        connection.setDeadline(reaper.newDeadline());
+        try {
+            applyTimeout(connection, request);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * @return the node, followed by the other nodes in rotation if racing; warm-up connects
+     *         and those for a pinned transaction go to the node they were asked for
+     */
+    private ELBNode[] raceCandidates(ELBNode node, boolean race) {
+        ELBNode[] nodes = state.get().getNodes();
+
+        if (!race || !connector.isRacing() || nodes.length < 2) {
+            return new ELBNode[] { node };
+        }
+
+        List<ELBNode> candidates = new ArrayList<ELBNode>(nodes.length);
+        candidates.add(node);
+        int start = ThreadLocalRandom.current().nextInt(nodes.length);
+        for (int i = 0; i < nodes.length; i++) {
+            ELBNode candidate = nodes[(start + i) % nodes.length];
+            if (candidate != node && candidate.getCircuitBreaker().isClosed()) {
+                candidates.add(candidate);
+            }
+        }
+        return candidates.toArray(new ELBNode[candidates.size()]);
+    }
+
+    /**
+     * Applies the request timeout to the socket, and to the TLS channel, if any; pooled
+     * connections may have been opened for a request with a different timeout, or for none
+     * at all.
+     */
+    static void applyTimeout(ServerConnection connection, Request request) throws IOException {
+        ELBConnection plain = plainOf(connection);
+
+        if (request != null && plain != null) {
+            int timeout = timeoutOf(request);
+
+            if (timeout >= 0) {
+                plain.setSoTimeout(timeout);
+                if (connection instanceof ELBSSLConnection) {
+                    ((ELBSSLConnection) connection).setReadTimeout(timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the request's timeout, else its session's default, as
+     *         Request.getEffectiveOptions() would give without building a merged copy of
+     *         every option; -1 if neither sets one
+     */
+    private static int timeoutOf(Request request) {
+        RequestOptions options = request.getOptions();
+        int timeout = (options == null) ? -1 : options.getTimeoutMillis();
+        Session session = request.getSession();
+        if (timeout == -1 && session != null && session.getDefaultRequestOptions() != null) {
+            timeout = session.getDefaultRequestOptions().getTimeoutMillis();
+        }
+        return timeout;
     }
 
     public void returnConnection(ServerConnection connection, Logger logger) {
-        if (getLogger(logger).isLoggable(Level.FINE)) {
+        ELBNode node = nodeOf(connection);
+        long elapsedNanos = checkedOutNanos(connection);
+        boolean permitHeld = checkIn(connection);
+        boolean cancelled = detach(connection);
+
+        if (node != null) {
+            nodeSucceeded(node);
+            if (!cancelled) {
+                requestDone(node, elapsedNanos, false);
+            }
+        }
+
+        try {
+            if (cancelled) {
+                // Its socket may have been closed under a response still being read
+                connection.close();
+            } else {
+                returnConnection(connection, node, logger);
+            }
+        } finally {
+            // Only once the connection is back in the pool, so a woken waiter can find it
+            if (permitHeld) {
+                releasePermit(node);
+            }
+        }
+    }
+
+    private void returnConnection(ServerConnection connection, ELBNode node, Logger logger) {
+        InetSocketAddress address = (node == null) ? getAddress() : node.getAddress();
+        boolean fine = getLogger(logger).isLoggable(Level.FINE);
+
+        if (fine) {
             getLogger(logger).fine("returnConnection for " + address +
                     ", expire=" + connection.getTimeoutMillis());
         }
+        stats.connectionReturned(address);
 
         ByteChannel channel = connection.channel();
+        ELBConnection plain = plainOf(connection);
 
-        if ((channel == null) || (!(channel instanceof SocketChannel))) {
-            getLogger(logger).fine(
-                    "channel is not eligible for pooling, dropping");
+        if ((channel == null) || (plain == null) || (!(plain.channel() instanceof SocketChannel))) {
+            if (fine) {
+                getLogger(logger).fine("channel is not eligible for pooling, dropping");
+            }
             return;
         }
 
-        SocketChannel socketChannel = (SocketChannel)channel;
+        // For TLS, the channel is the TLS channel and the socket is underneath it
+        SocketChannel socketChannel = (SocketChannel) plain.channel();
         Socket socket = socketChannel.socket();
         int localPort = socket.getLocalPort() ;
 
-        if (!socketChannel.isOpen() ||
+        if (!channel.isOpen() ||
+                !socketChannel.isOpen() ||
                 socket.isInputShutdown() ||
                 socket.isOutputShutdown()) {
             if( socketChannel.isOpen()) {
-                if (getLogger(logger).isLoggable(Level.FINE)) {
+                if (fine) {
                     getLogger(logger).fine(
                             "channel has been shutdown but not closed: closing and dropping. local-port="
                                     + localPort);
                 }
                 connection.close();
-            } else
-                getLogger(logger).fine("channel has been closed, dropping. local-port=" + localPort);
+            } else {
+                if (fine) {
+                    getLogger(logger).fine("channel has been closed, dropping. local-port=" + localPort);
+                }
+                connection.close();
+            }
+            return;
+        }
+
+        if ((node != null) && node.isRetired()) {
+            if (fine) {
+                getLogger(logger).fine("address has left the ELB, closing. local-port=" + localPort);
+            }
+            connection.close();
+            reclaimed.increment();
+
             return;
         }
 
         long timeoutMillis = connection.getTimeoutMillis();
 
         if (timeoutMillis <= 0) {
-            getLogger(logger).fine("channel has already expired, closing. local-port=" + localPort);
+            if (fine) {
+                getLogger(logger).fine("channel has already expired, closing. local-port=" + localPort);
+            }
             connection.close();
+            stats.connectionExpired(address);
 
             return;
         }
 
-        long timeoutTime = connection.getTimeoutTime();
+        long timeoutTime = reaper.expireTime(connection.getTimeoutTime(), plain.getDeadline());
 
-        if (getLogger(logger).isLoggable(Level.FINE)) {
+        if (timeoutTime <= System.currentTimeMillis()) {
+            if (fine) {
+                getLogger(logger).fine("channel has reached its maximum lifetime, closing. local-port=" + localPort);
+            }
+            connection.close();
+            stats.connectionExpired(address);
+
+            return;
+        }
+
+        if ((node != null) && rebalancer.shouldClose(node, state.get().getNodes())) {
+            if (fine) {
+                getLogger(logger).fine("node holds more than its share of connections, closing. local-port=" + localPort);
+            }
+            connection.close();
+            stats.connectionRebalanced(address);
+            warmer.warmSoon();
+
+            return;
+        }
+
+        if (fine) {
             getLogger(logger).fine("returning socket to pool (" + address + "), timeout time=" + timeoutTime + " local-port=" + localPort);
         }
 
-        connectionPool.put(address, (SocketChannel)channel, timeoutTime);
+        idle(connection);
+        connectionPool.put(address, plain.getProfile(), connection, timeoutTime);
     }
 
     public ConnectionErrorAction returnErrorConnection(ServerConnection connection, Throwable exception, Logger logger) {
+        ELBNode node = nodeOf(connection);
+        long elapsedNanos = checkedOutNanos(connection);
+        boolean permitHeld = checkIn(connection);
+
+        if (detach(connection)) {
+            // The socket was closed because the request was cancelled, or another copy of it
+            // answered first
+            connection.close();
+            if (permitHeld) {
+                releasePermit(node);
+            }
+            return ConnectionErrorAction.FAIL;
+        }
+
+        stats.connectionErrorReturned((node == null) ? getAddress() : node.getAddress());
+        if (node != null) {
+            requestDone(node, elapsedNanos, true);
+        }
+        // A read timeout is more likely a slow request than a failing node
+        boolean nodeFailure = (node != null) && !(exception instanceof SocketTimeoutException);
+        if (nodeFailure) {
+            nodeFailed(node);
+        }
+        try {
+            ConnectionErrorAction action = closeErrorConnection(connection, exception, logger);
+
+            if (action == ConnectionErrorAction.FAIL && nodeFailure && isBeforeRequest(exception) &&
+                    hasHealthyAlternative(node)) {
+                if (getLogger(logger).isLoggable(Level.FINE)) {
+                    getLogger(logger).fine("request was not sent and another ELB node is healthy, returning RETRY action");
+                }
+                return ConnectionErrorAction.RETRY;
+            }
+            return action;
+        } finally {
+            if (permitHeld) {
+                releasePermit(node);
+            }
+        }
+    }
+
+    private ConnectionErrorAction closeErrorConnection(ServerConnection connection, Throwable exception,
+                                                       Logger logger) {
         if (getLogger(logger).isLoggable(Level.FINE)) {
             getLogger(logger).log(Level.FINE, "error return", exception);
         }
         ByteChannel channel = connection.channel();
         if (channel != null) {
-            if (channel.isOpen()) {
-                try {
-                    channel.close();
-                    getLogger(logger).fine("closed error connection");
-                } catch (IOException e) {
-                    // do nothing, don't care anymore
-                }
+            boolean wasOpen = channel.isOpen();
+
+            // Close even if the channel already is, to give back the connection permit
+            connection.close();
+
+            if (wasOpen) {
+                getLogger(logger).fine("closed error connection");
             } else {
                 getLogger(logger).warning("returned error connection is closed, retrying");
 
@@ -177,44 +1171,135 @@ public class ELBConnectionProvider implements ConnectionProvider, SingleHostAddr
     public void shutdown(Logger logger) {
         getLogger(logger).fine("shutting down socket pool provider");
 
-        SocketChannel channel;
+        refresher.removeListener(addressListener);
+        warmer.stop();
+        reaper.stop();
+        stats.unregister(getLogger(logger));
+        refresher.stop();
 
-        while ((channel = connectionPool.get(address)) != null) {
-            try {
-                channel.close();
-            } catch (IOException e) {
-                // do nothing
+        for (ELBNode node : state.get().getNodes()) {
+            ServerConnection connection;
+
+            while ((connection = connectionPool.get(node.getAddress())) != null) {
+                connection.close();
             }
         }
+        for (ELBNode node : draining) {
+            drainNode(node);
+        }
+        draining.clear();
+    }
+
+    /**
+     * Lets an idle TLS connection give its buffers back to the shared pool.
+     */
+    private static void idle(ServerConnection connection) {
+        if (connection instanceof ELBSSLConnection) {
+            ((ELBSSLConnection) connection).idle();
+        }
+    }
+
+    /**
+     * Probes a pooled connection before it is handed out.
+     *
+     * @return false if the connection is dead and must be closed
+     */
+    private static boolean isAlive(ServerConnection connection) {
+        if (connection instanceof ELBConnection) {
+            return ((ELBConnection) connection).isAlive();
+        }
+        if (connection instanceof ELBSSLConnection) {
+            return ((ELBSSLConnection) connection).isAlive();
+        }
+        return connection.isOpen();
+    }
+
+    /**
+     * @return the socket connection under the connection, which may be it, or null if
+     *         this provider did not open it
+     */
+    static ELBConnection plainOf(ServerConnection connection) {
+        if (connection instanceof ELBConnection) {
+            return (ELBConnection) connection;
+        }
+        if (connection instanceof ELBSSLConnection) {
+            return plainOf(((ELBSSLConnection) connection).getPlainConnection());
+        }
+        return null;
+    }
+
+    /**
+     * @return the time the connection must be retired by, or Long.MAX_VALUE if it has none
+     */
+    static long deadlineOf(ServerConnection connection) {
+        ELBConnection plain = plainOf(connection);
+        return (plain == null) ? Long.MAX_VALUE : plain.getDeadline();
+    }
+
+    /**
+     * @return the profile the connection was opened with, which it is pooled under
+     */
+    static ELBSocketProfile profileOf(ServerConnection connection) {
+        ELBConnection plain = plainOf(connection);
+        return (plain == null) ? ELBSocketProfile.DEFAULT : plain.getProfile();
+    }
+
+    static ELBNode nodeOf(ServerConnection connection) {
+        ELBConnection plain = plainOf(connection);
+        return (plain == null) ? null : plain.getNode();
+    }
+
+    /**
+     * Marks a connection taken from the pool as handed out. The caller must already hold
+     * a permit for its node.
+     */
+    private static void checkOut(ServerConnection connection) {
+        ELBConnection plain = plainOf(connection);
+        if (plain != null) {
+            plain.acquire();
+        }
+    }
+
+    private static long checkedOutNanos(ServerConnection connection) {
+        ELBConnection plain = plainOf(connection);
+        return (plain == null) ? 0 : plain.getCheckedOutNanos();
+    }
+
+    /**
+     * Marks a connection as no longer handed out.
+     *
+     * @return true if the caller must give back the node permit, once the connection
+     *         has been pooled or closed
+     */
+    private static boolean checkIn(ServerConnection connection) {
+        ELBConnection plain = plainOf(connection);
+        return (plain != null) && plain.release();
+    }
+
+    /**
+     * Ends the connection's part in a hedged request, if it had one.
+     *
+     * @return true if the copy it ran was cancelled, so the connection must be closed
+     */
+    private static boolean detach(ServerConnection connection) {
+        ELBConnection plain = plainOf(connection);
+        ELBHedgeAttempt attempt = (plain == null) ? null : plain.getAttempt();
+        return (attempt != null) && attempt.detach(plain);
     }
 
     @Override
     public String toString() {
-        return "address=" + address.toString() + ", pool=" + connectionPool.size(address) + "/" + poolSize;
+        long pooled = 0;
+        ELBNode[] nodes = state.get().getNodes();
+        for (ELBNode node : nodes) {
+            pooled += connectionPool.size(node.getAddress());
+        }
+        return "address=" + getAddress().toString() + ", nodes=" + nodes.length + ", pool=" + pooled + "/" + poolSize +
+                ", open=" + limiter.getOpenConnections() + ", waiting=" + limiter.getWaiting();
     }
 
     public InetSocketAddress getAddress() {
-        Instant start = Instant.now();
-        try {
-            // Get cached IP address for hostname
-            InetSocketAddress ia = (InetSocketAddress) address;
-            // Get current IP address for hostname
-            InetAddress inetAddress = InetAddress.getByName(ia.getHostName());
-            // If the IP addresses differ then update the cached addressed to reflect changes
-            if (!ia.getAddress().getHostAddress().equals(inetAddress.getHostAddress())) {
-                getLogger(logger).info("Cached InetAddress " + ia.getAddress().getHostAddress());
-                getLogger(logger).info("Current InetAddress " + inetAddress.getHostAddress());
-                getLogger(logger).info("Current and Cached IP Addresses do not match... updating...");
-                address = new InetSocketAddress(inetAddress.getHostAddress(), ia.getPort());
-                Instant end = Instant.now();
-                long delta = Duration.between(start, end).toMillis();
-                getLogger(logger).info("Update complete, time=" + delta + "m/s");
-            }
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        }
-
-        return (InetSocketAddress)((address instanceof InetSocketAddress) ? address : null);
+        return refresher.getSnapshot().getPrimary();
     }
 
     public Logger getLogger(Logger clientLogger) {
@@ -223,6 +1308,7 @@ public class ELBConnectionProvider implements ConnectionProvider, SingleHostAddr
 
     public void closeExpired(long currTime) {
         connectionPool.closeExpired(currTime);
+        warmer.warmSoon();
     }
 
     public int getPort() {
@@ -232,6 +1318,6 @@ public class ELBConnectionProvider implements ConnectionProvider, SingleHostAddr
 
     public String getHostName() {
         InetSocketAddress inetAddress = getAddress();
-        return inetAddress == null ? null : inetAddress.getHostName();
+        return inetAddress == null ? null : inetAddress.getHostString();
     }
 }
@@ -0,0 +1,371 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connects with non-blocking NIO and a selector, so a blackholed ELB address costs at
+ * most the connect timeout instead of the operating system's TCP timeout.
+ * <p>
+ * Given more than one node it races them happy-eyeballs style (RFC 8305): the first
+ * node is tried at once, and while no attempt has succeeded another node is started
+ * every stagger interval, or straight away when an attempt fails. The first socket to
+ * connect wins and the others are closed.
+ * <p>
+ * On a virtual thread the race runs each attempt as a blocking connect on a virtual
+ * thread of its own, which parks, instead of waiting in Selector.select, which would hold
+ * on to the carrier thread.
+ */
+final class ELBConnector {
+    static final String CONNECT_TIMEOUT_PROPERTY = "xcc.elb.connect.timeout";
+    static final String STAGGER_PROPERTY = "xcc.elb.connect.stagger";
+    private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    private static final int DEFAULT_STAGGER = 250;
+
+    /**
+     * Hooks into the provider for the nodes taking part in a race.
+     */
+    interface Callback {
+        /**
+         * Reserves a node before a connect to it is started; the first node is already
+         * reserved by the caller.
+         *
+         * @return false to pass over the node
+         */
+        boolean reserve(ELBNode node);
+
+        /**
+         * Gives back a node that did not win, including the first one.
+         */
+        void release(ELBNode node);
+
+        void failed(ELBNode node, IOException e);
+    }
+
+    /**
+     * The winning socket, in blocking mode.
+     */
+    static final class Connected {
+        final ELBNode node;
+        final SocketChannel channel;
+        final long connectNanos;
+
+        Connected(ELBNode node, SocketChannel channel, long connectNanos) {
+            this.node = node;
+            this.channel = channel;
+            this.connectNanos = connectNanos;
+        }
+    }
+
+    private static final class Attempt {
+        final ELBNode node;
+        final SocketChannel channel;
+        final long start = System.nanoTime();
+
+        Attempt(ELBNode node, SocketChannel channel) {
+            this.node = node;
+            this.channel = channel;
+        }
+    }
+
+    private final int timeoutMillis;
+    private final int staggerMillis;
+
+    ELBConnector() {
+        this(Integer.getInteger(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT).intValue(),
+                Integer.getInteger(STAGGER_PROPERTY, DEFAULT_STAGGER).intValue());
+    }
+
+    ELBConnector(int timeoutMillis, int staggerMillis) {
+        this.timeoutMillis = (timeoutMillis <= 0) ? Integer.MAX_VALUE : timeoutMillis;
+        this.staggerMillis = staggerMillis;
+    }
+
+    int getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return true if nodes other than the first are raced
+     */
+    boolean isRacing() {
+        return staggerMillis > 0;
+    }
+
+    /**
+     * @param nodes the nodes to try, in order; only the first unless racing
+     * @throws IOException the last failure if no node could be connected
+     */
+    Connected connect(ELBNode[] nodes, Callback callback) throws IOException {
+        if (ELBThreads.isVirtual(Thread.currentThread())) {
+            return connectParked(nodes, callback);
+        }
+        int count = isRacing() ? nodes.length : 1;
+        List<Attempt> pending = new ArrayList<Attempt>(count);
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long staggerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, staggerMillis));
+        IOException failure = null;
+        Connected winner = null;
+        int next = 0;
+        long nextStart = System.nanoTime();
+
+        Selector selector = Selector.open();
+        try {
+            while (winner == null) {
+                long now = System.nanoTime();
+
+                // Start another node when it is due, or at once if nothing is in flight
+                if (next < count && (pending.isEmpty() || now - nextStart >= 0)) {
+                    ELBNode node = nodes[next];
+                    if (next++ > 0 && !callback.reserve(node)) {
+                        continue;
+                    }
+                    try {
+                        winner = start(node, selector, pending);
+                    } catch (IOException e) {
+                        callback.failed(node, e);
+                        if (node != nodes[0]) {
+                            callback.release(node);
+                        }
+                        failure = e;
+                    }
+                    nextStart = System.nanoTime() + staggerNanos;
+                    continue;
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                long wait = Long.MAX_VALUE;
+                for (Attempt attempt : pending) {
+                    wait = Math.min(wait, attempt.start + timeoutNanos - now);
+                }
+                if (next < count) {
+                    wait = Math.min(wait, nextStart - now);
+                }
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Attempt attempt = (Attempt) key.attachment();
+                    try {
+                        if (attempt.channel.finishConnect()) {
+                            pending.remove(attempt);
+                            winner = new Connected(attempt.node, attempt.channel, System.nanoTime() - attempt.start);
+                            break;
+                        }
+                    } catch (IOException e) {
+                        failure = fail(attempt, e, pending, nodes[0], callback);
+                        nextStart = System.nanoTime();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                now = System.nanoTime();
+                for (Attempt attempt : new ArrayList<Attempt>(pending)) {
+                    if (winner == null && now - attempt.start >= timeoutNanos) {
+                        failure = fail(attempt, new SocketTimeoutException("connect to " + attempt.node.getAddress() +
+                                " timed out after " + timeoutMillis + " ms"), pending, nodes[0], callback);
+                    }
+                }
+            }
+        } finally {
+            // Closing the selector deregisters the winner, so it can go back to blocking mode
+            selector.close();
+            for (Attempt attempt : pending) {
+                closeQuietly(attempt.channel);
+                if (attempt.node != nodes[0]) {
+                    callback.release(attempt.node);
+                }
+            }
+        }
+
+        if (winner == null) {
+            throw (failure != null) ? failure : new SocketTimeoutException("no ELB node to connect to");
+        }
+        try {
+            winner.channel.configureBlocking(true);
+        } catch (IOException e) {
+            closeQuietly(winner.channel);
+            callback.failed(winner.node, e);
+            if (winner.node != nodes[0]) {
+                callback.release(winner.node);
+            }
+            throw e;
+        }
+        if (winner.node != nodes[0]) {
+            callback.release(nodes[0]);
+        }
+        return winner;
+    }
+
+    private Connected connectParked(ELBNode[] nodes, Callback callback) throws IOException {
+        int count = isRacing() ? nodes.length : 1;
+        ELBNode first = nodes[0];
+        AtomicBoolean won = new AtomicBoolean();
+        BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+        IOException failure = null;
+        int next = 0;
+        int running = 0;
+
+        try {
+            // Start a node straight away at first, after a failure and when the stagger passes
+            boolean startNext = true;
+            while (true) {
+                if (startNext && next < count) {
+                    ELBNode node = nodes[next];
+                    if (next++ == 0 || callback.reserve(node)) {
+                        startParked(node, first, won, results, callback);
+                        running++;
+                        startNext = false;
+                    }
+                    continue;
+                }
+                if (running == 0) {
+                    if (next < count) {
+                        startNext = true;
+                        continue;
+                    }
+                    throw (failure != null) ? failure : new SocketTimeoutException("no ELB node to connect to");
+                }
+
+                Object result = (next < count) ? results.poll(staggerMillis, TimeUnit.MILLISECONDS) : results.take();
+                startNext = true;
+                if (result == null) {
+                    continue;
+                }
+                running--;
+                if (result instanceof Connected) {
+                    Connected winner = (Connected) result;
+                    if (winner.node != first) {
+                        callback.release(first);
+                    }
+                    return winner;
+                }
+                failure = (IOException) result;
+            }
+        } catch (InterruptedException e) {
+            if (!won.compareAndSet(false, true)) {
+                // An attempt has just won; take its socket back
+                Object result;
+                while (!((result = takeUninterruptibly(results)) instanceof Connected)) {
+                    // a late failure
+                }
+                Connected winner = (Connected) result;
+                closeQuietly(winner.channel);
+                if (winner.node != first) {
+                    callback.release(winner.node);
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted connecting to " + first.getAddress());
+        }
+    }
+
+    /**
+     * Connects to the node on a virtual thread. Once another attempt has won, the socket
+     * is closed and the node's reservation given back here rather than by the caller.
+     */
+    private void startParked(final ELBNode node, final ELBNode first, final AtomicBoolean won,
+                             final BlockingQueue<Object> results, final Callback callback) {
+        ELBThreads.startVirtual("elb-connect-" + node.getAddress(), new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                SocketChannel channel = null;
+                try {
+                    channel = SocketChannel.open();
+                    channel.socket().connect(node.getAddress(), timeoutMillis);
+                } catch (IOException | RuntimeException e) {
+                    if (channel != null) {
+                        closeQuietly(channel);
+                    }
+                    IOException failure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+                    callback.failed(node, failure);
+                    if (node != first) {
+                        callback.release(node);
+                    }
+                    results.add(failure);
+                    return;
+                }
+                if (won.compareAndSet(false, true)) {
+                    results.add(new Connected(node, channel, System.nanoTime() - start));
+                } else {
+                    closeQuietly(channel);
+                    if (node != first) {
+                        callback.release(node);
+                    }
+                }
+            }
+        });
+    }
+
+    private static Object takeUninterruptibly(BlockingQueue<Object> queue) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return a winner if the connect completed at once, as it can on loopback
+     */
+    private static Connected start(ELBNode node, Selector selector, List<Attempt> pending) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            Attempt attempt = new Attempt(node, channel);
+            if (channel.connect(node.getAddress())) {
+                return new Connected(node, channel, System.nanoTime() - attempt.start);
+            }
+            channel.register(selector, SelectionKey.OP_CONNECT, attempt);
+            pending.add(attempt);
+            return null;
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    private static IOException fail(Attempt attempt, IOException e, List<Attempt> pending, ELBNode first,
+                                    Callback callback) {
+        pending.remove(attempt);
+        closeQuietly(attempt.channel);
+        callback.failed(attempt.node, e);
+        if (attempt.node != first) {
+            callback.release(attempt.node);
+        }
+        return e;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "connectTimeout=" + timeoutMillis + "ms, stagger=" + staggerMillis + "ms";
+    }
+}
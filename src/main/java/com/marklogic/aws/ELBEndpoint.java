@@ -0,0 +1,61 @@
+package com.marklogic.aws;
+
+/**
+ * One ELB hostname in front of the cluster, as given to {@link ELBMultiConnectionProvider},
+ * with how near it is: 0 for the nearest, such as the ELB in the client's own availability
+ * zone, and higher numbers for ELBs farther away, such as those in other zones or regions.
+ */
+public final class ELBEndpoint {
+    private final String hostName;
+    private final int port;
+    private final int locality;
+
+    public ELBEndpoint(String hostName, int port) {
+        this(hostName, port, 0);
+    }
+
+    public ELBEndpoint(String hostName, int port, int locality) {
+        if (hostName == null) {
+            throw new IllegalArgumentException("hostName");
+        }
+        if (locality < 0) {
+            throw new IllegalArgumentException("locality must not be negative: " + locality);
+        }
+        this.hostName = hostName;
+        this.port = port;
+        this.locality = locality;
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return 0 for the nearest endpoints, higher for farther ones
+     */
+    public int getLocality() {
+        return locality;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ELBEndpoint)) return false;
+        ELBEndpoint other = (ELBEndpoint) o;
+        return hostName.equals(other.hostName) && port == other.port && locality == other.locality;
+    }
+
+    @Override
+    public int hashCode() {
+        return (hostName.hashCode() * 31 + port) * 31 + locality;
+    }
+
+    @Override
+    public String toString() {
+        return hostName + ":" + port + " (locality " + locality + ")";
+    }
+}
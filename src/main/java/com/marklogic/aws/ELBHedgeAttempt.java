@@ -0,0 +1,96 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A request that may be cancelled while it runs, such as one of the copies of a hedged
+ * request or a request run by {@link ELBAsyncRequests}, carried to the provider in its
+ * {@link ELBRequestOptions}. The provider attaches the connection the request runs on and
+ * detaches it when the connection comes back; cancelling in between closes the socket
+ * under it, so the thread running it fails at once instead of waiting for an answer
+ * nobody needs. A connection never goes back to the pool from a cancelled request, and a
+ * request cancelled before it got one gets none.
+ */
+final class ELBHedgeAttempt {
+    private final ReentrantLock lock = new ReentrantLock();
+    private ELBConnection connection;
+    private volatile InetSocketAddress address;
+    private boolean cancelled;
+
+    /**
+     * @return false, and leaves the connection alone, if the request was already cancelled
+     */
+    boolean attach(ELBConnection connection) {
+        lock.lock();
+        try {
+            if (cancelled) {
+                return false;
+            }
+            this.connection = connection;
+            connection.setAttempt(this);
+            ELBNode node = connection.getNode();
+            if (node != null) {
+                address = node.getAddress();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the request was cancelled, so the connection must be closed rather
+     *         than pooled
+     */
+    boolean detach(ELBConnection connection) {
+        lock.lock();
+        try {
+            if (this.connection == connection) {
+                this.connection = null;
+                connection.setAttempt(null);
+            }
+            return cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the socket the request runs on, if any; only the thread running it closes
+     * the connection itself, as a TLS channel may not be closed under its reader.
+     */
+    void cancel() {
+        lock.lock();
+        try {
+            cancelled = true;
+            if (connection != null) {
+                try {
+                    connection.channel().close();
+                } catch (IOException e) {
+                    // the thread running the request fails either way
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isCancelled() {
+        lock.lock();
+        try {
+            return cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the address of the node the request was sent to, or null if it has not got a
+     *         connection yet
+     */
+    InetSocketAddress getAddress() {
+        return address;
+    }
+}
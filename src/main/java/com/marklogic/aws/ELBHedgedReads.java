@@ -0,0 +1,507 @@
+package com.marklogic.aws;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.RequestOptions;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import com.marklogic.xcc.exceptions.ServerConnectionException;
+
+/**
+ * Runs reads through a content source on an ELB provider and, when one has not answered
+ * within a percentile of recent latency, sends a copy to another ELB node. The first
+ * answer is returned; the other copy is cancelled, its socket closed rather than pooled,
+ * so a node or MarkLogic host that stalls costs the percentile instead of the request
+ * timeout.
+ * <p>
+ * Every copy runs in a new auto-commit session with updates turned off, so a request that
+ * tries to update fails rather than being applied twice. Results are cached before they
+ * are returned, and XCC's automatic retry is turned off for the copies; if the first copy
+ * cannot reach its node before the hedge delay, the copy goes out at once instead.
+ * <p>
+ * Hedges are held to a budget: each request earns a fraction of a hedge, 0.05 by default
+ * for at most 5% extra requests, and up to a burst of unspent hedges is saved. No request
+ * is hedged until enough latencies have been seen to set the delay.
+ *
+ * <pre>
+ * ELBHedgedReads reads = new ELBHedgedReads(contentSource);
+ * ResultSequence result = reads.submit("fn:doc('/catalog.xml')");
+ * </pre>
+ */
+public class ELBHedgedReads {
+    private static final Logger logger = Logger.getLogger(ELBHedgedReads.class.getName());
+
+    // Latencies in each window the delay is taken from; the last full one is used until
+    // the current one has enough samples
+    private static final int WINDOW = 1000;
+    private static final int MIN_SAMPLES = 100;
+    private static final int DELAY_UPDATE_INTERVAL = 64;
+    // Budget tokens are kept in thousandths of a hedge
+    private static final long HEDGE_COST = 1000;
+
+    private final ContentSource contentSource;
+    private final ELBConnectionProvider provider;
+    private final Executor executor;
+    private volatile double percentile = 95;
+    private volatile long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(1);
+    private volatile double budget = 0.05;
+    private volatile int burst = 10;
+
+    private volatile ELBLatencyHistogram window = new ELBLatencyHistogram();
+    private volatile ELBLatencyHistogram previous;
+    private final AtomicLong recorded = new AtomicLong();
+    private volatile long delayNanos = -1;
+    private final AtomicLong tokens = new AtomicLong();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+
+    /**
+     * Builds the request to run; called once for each copy, with the session the copy
+     * runs in.
+     */
+    public interface RequestBuilder {
+        Request newRequest(Session session);
+    }
+
+    /**
+     * Runs hedged copies on a shared pool of daemon threads.
+     */
+    public ELBHedgedReads(ContentSource contentSource) {
+        this(contentSource, Threads.EXECUTOR);
+    }
+
+    /**
+     * @param executor runs hedged copies; the caller's thread runs the first copy
+     * @throws IllegalArgumentException if the content source is not on an ELB provider
+     */
+    public ELBHedgedReads(ContentSource contentSource, Executor executor) {
+        this.contentSource = contentSource;
+        this.provider = ELBConnectionProvider.coreOf(contentSource.getConnectionProvider());
+        this.executor = executor;
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+    /**
+     * @param percentile the latency percentile after which a request is hedged; 95 by
+     *                   default
+     */
+    public void setPercentile(double percentile) {
+        if (percentile <= 0 || percentile >= 100) {
+            throw new IllegalArgumentException("percentile");
+        }
+        this.percentile = percentile;
+    }
+
+    public long getMinDelayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(minDelayNanos);
+    }
+
+    /**
+     * @param minDelayMillis the shortest wait before hedging, however fast recent requests
+     *                       were; 1 by default
+     */
+    public void setMinDelayMillis(long minDelayMillis) {
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minDelayMillis));
+    }
+
+    public double getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param budget hedges allowed per request, 0.05 by default; 0 turns hedging off
+     */
+    public void setBudget(double budget) {
+        if (budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("budget");
+        }
+        this.budget = budget;
+    }
+
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @param burst unspent hedges that may be saved up for a burst of slow requests; 10 by
+     *              default
+     */
+    public void setBurst(int burst) {
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst");
+        }
+        this.burst = burst;
+    }
+
+    /**
+     * @return the current wait before a request is hedged, or -1 while too few requests
+     *         have been seen to tell
+     */
+    public long getDelayMicros() {
+        long delay = delayNanos;
+        return (delay < 0) ? -1 : TimeUnit.NANOSECONDS.toMicros(delay);
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return copies sent to a second node
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return copies that answered before the original
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return requests that were due a hedge but went without, as the budget was spent
+     */
+    public long getOverBudget() {
+        return overBudget.sum();
+    }
+
+    /**
+     * @return the fraction of requests hedged
+     */
+    public double getHedgeRate() {
+        long requests = this.requests.sum();
+        return (requests == 0) ? 0 : (double) hedges.sum() / requests;
+    }
+
+    public ResultSequence submit(String query) throws RequestException {
+        return submit(query, null);
+    }
+
+    public ResultSequence submit(final String query, final RequestOptions options) throws RequestException {
+        return submit(new RequestBuilder() {
+            public Request newRequest(Session session) {
+                return session.newAdhocQuery(query, options);
+            }
+        });
+    }
+
+    /**
+     * Runs the request on the caller's thread, hedging it if it is slow.
+     *
+     * @return the first answer
+     * @throws RequestException what the first copy failed with, unless a hedged copy
+     *                          answered
+     */
+    public ResultSequence submit(final RequestBuilder builder) throws RequestException {
+        requests.increment();
+        earn();
+
+        long start = System.nanoTime();
+        final ELBHedgeAttempt first = new ELBHedgeAttempt();
+        final Race race = new Race(first);
+        long delay = delayNanos;
+        ScheduledFuture<?> timer = null;
+
+        if (delay >= 0 && budget > 0) {
+            timer = ELBScheduler.get().schedule(new Runnable() {
+                public void run() {
+                    hedge(builder, race);
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+
+        ResultSequence result;
+        try {
+            result = send(builder, first, null);
+        } catch (RequestException e) {
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            // Went out before the delay if the first copy could not reach its node
+            if (e instanceof ServerConnectionException && !first.isCancelled()) {
+                hedge(builder, race);
+            }
+            ResultSequence hedged = race.firstFailed();
+            if (hedged == null) {
+                throw e;
+            }
+            record(System.nanoTime() - start);
+            return hedged;
+        }
+
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        if (!race.firstAnswered()) {
+            // The hedged copy won, but the response had already been read
+            result.close();
+            result = race.hedgedResult();
+        }
+        record(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Sends a copy to another node, if the request is still waiting and the budget allows.
+     */
+    private void hedge(final RequestBuilder builder, final Race race) {
+        if (race.isDecided()) {
+            return;
+        }
+        if (!spend()) {
+            overBudget.increment();
+            return;
+        }
+        final InetAddress target = provider.alternativeTo(race.first.getAddress());
+        final ELBHedgeAttempt attempt = new ELBHedgeAttempt();
+
+        if (target == null || !race.hedging(attempt)) {
+            refund();
+            return;
+        }
+        hedges.increment();
+        provider.getStats().hedgeSent(new InetSocketAddress(target, provider.getAddress().getPort()));
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    ResultSequence result = null;
+                    try {
+                        result = send(builder, attempt, target);
+                    } catch (RequestException | RuntimeException e) {
+                        if (!attempt.isCancelled() && logger.isLoggable(Level.FINE)) {
+                            logger.fine("hedged request to " + target + " failed: " + e);
+                        }
+                    }
+                    if (race.hedgeDone(result)) {
+                        hedgeWins.increment();
+                        provider.getStats().hedgeWon(attempt.getAddress());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            race.hedgeDone(null);
+        }
+    }
+
+    private ResultSequence send(RequestBuilder builder, ELBHedgeAttempt attempt, InetAddress target)
+            throws RequestException {
+        Session session = contentSource.newSession();
+        try {
+            session.setUpdate(Session.Update.FALSE);
+            Request request = builder.newRequest(session);
+            ELBRequestOptions options = ELBRequestOptions.forAttempt(request.getOptions(), target, attempt);
+            options.setCacheResult(true);
+            options.setMaxAutoRetry(0);
+            request.setOptions(options);
+            return session.submitRequest(request);
+        } finally {
+            // Leaves the cached result readable
+            session.close();
+        }
+    }
+
+    private void record(long nanos) {
+        ELBLatencyHistogram current = window;
+        current.record(nanos);
+
+        long count = recorded.incrementAndGet();
+        if (count % WINDOW == 0) {
+            previous = current;
+            window = new ELBLatencyHistogram();
+        }
+        if (count % DELAY_UPDATE_INTERVAL == 0) {
+            ELBLatencyHistogram latencies = (current.getCount() >= MIN_SAMPLES) ? current : previous;
+            if (latencies != null && latencies.getCount() >= MIN_SAMPLES) {
+                long delay = TimeUnit.MICROSECONDS.toNanos(latencies.getPercentileMicros(percentile));
+                delayNanos = Math.max(minDelayNanos, delay);
+            }
+        }
+    }
+
+    private void earn() {
+        final long max = burst * HEDGE_COST;
+        long earned = (long) (budget * HEDGE_COST);
+        long current;
+        do {
+            current = tokens.get();
+            if (current >= max) {
+                return;
+            }
+        } while (!tokens.compareAndSet(current, Math.min(max, current + earned)));
+    }
+
+    private boolean spend() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current < HEDGE_COST) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - HEDGE_COST));
+        return true;
+    }
+
+    private void refund() {
+        tokens.addAndGet(HEDGE_COST);
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + getRequests() + ", hedges=" + getHedges() + String.format(" (%.1f%%)", getHedgeRate() * 100) +
+                ", wins=" + getHedgeWins() + ", overBudget=" + getOverBudget() + ", delay=" + getDelayMicros() + "us";
+    }
+
+    /**
+     * Decides which copy of one request answers. The first copy runs on the caller's
+     * thread; at most one hedged copy runs alongside it.
+     */
+    static final class Race {
+        private static final int RUNNING = 0;
+        private static final int FIRST = 1;
+        private static final int HEDGED = 2;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition hedgeFinished = lock.newCondition();
+        final ELBHedgeAttempt first;
+        private ELBHedgeAttempt hedge;
+        private boolean hedgeRunning;
+        private int winner = RUNNING;
+        private ResultSequence hedgedResult;
+
+        Race(ELBHedgeAttempt first) {
+            this.first = first;
+        }
+
+        boolean isDecided() {
+            lock.lock();
+            try {
+                return winner != RUNNING || hedge != null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return false if the request has already been answered or hedged
+         */
+        boolean hedging(ELBHedgeAttempt attempt) {
+            lock.lock();
+            try {
+                if (winner != RUNNING || hedge != null) {
+                    return false;
+                }
+                hedge = attempt;
+                hedgeRunning = true;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return true if the first copy won; the hedged copy, if any, is cancelled
+         */
+        boolean firstAnswered() {
+            lock.lock();
+            try {
+                if (winner == RUNNING) {
+                    winner = FIRST;
+                    if (hedge != null) {
+                        hedge.cancel();
+                    }
+                }
+                return winner == FIRST;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Called when the first copy failed or was cancelled; waits for the hedged copy, if
+         * one went out.
+         *
+         * @return its result, or null if there was none or it failed too
+         */
+        ResultSequence firstFailed() {
+            lock.lock();
+            try {
+                if (hedge == null) {
+                    // No hedge may go out after this
+                    winner = FIRST;
+                    return null;
+                }
+                while (hedgeRunning) {
+                    hedgeFinished.awaitUninterruptibly();
+                }
+                return hedgedResult;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @param result what the hedged copy answered, or null if it failed
+         * @return true if it won; the first copy is cancelled
+         */
+        boolean hedgeDone(ResultSequence result) {
+            lock.lock();
+            try {
+                hedgeRunning = false;
+                hedgeFinished.signalAll();
+                if (result != null && winner == RUNNING) {
+                    winner = HEDGED;
+                    hedgedResult = result;
+                    first.cancel();
+                    return true;
+                }
+                if (result != null) {
+                    result.close();
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        ResultSequence hedgedResult() {
+            lock.lock();
+            try {
+                return hedgedResult;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Shared daemon threads for hedged copies, created on first use.
+     */
+    private static final class Threads {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ELBThreadFactory("elb-hedge-"));
+    }
+}
@@ -0,0 +1,236 @@
+package com.marklogic.aws;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.marklogic.xcc.spi.ServerConnection;
+
+/**
+ * Idle connections by ELB node address, in place of XCC's ResourcePool, which allocates
+ * a pool item and a queue node on every put. Each address keeps its connections and
+ * their expiry times in plain arrays, so a borrow and return allocate nothing once the
+ * arrays have grown to the pool's working size.
+ * <p>
+ * Connections are handed out most recently returned first. The busiest connections stay
+ * warm, and those left at the bottom when load drops reach their idle limit and are
+ * reaped.
+ * <p>
+ * Each address is split by {@link ELBSocketProfile}, so a connection is only handed out
+ * for the profile it was opened with.
+ * <p>
+ * The locks are {@link ReentrantLock}s rather than monitors, so a virtual thread that
+ * has to wait for one parks instead of pinning its carrier thread; and no connection is
+ * closed while a lock is held.
+ */
+class ELBIdlePool<C extends ServerConnection> {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final ConcurrentHashMap<SocketAddress, Profiles> addresses = new ConcurrentHashMap<SocketAddress, Profiles>();
+
+    /**
+     * The stacks for one address, indexed by profile id.
+     */
+    private static final class Profiles {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile Stack[] stacks = new Stack[1];
+
+        Stack get(int id) {
+            Stack[] current = stacks;
+            return (id < current.length) ? current[id] : null;
+        }
+
+        Stack getOrCreate(int id) {
+            Stack existing = get(id);
+            if (existing != null) {
+                return existing;
+            }
+            lock.lock();
+            try {
+                Stack stack = get(id);
+                if (stack == null) {
+                    // Copied, so readers without the lock only ever see a published array
+                    Stack[] copy = Arrays.copyOf(stacks, Math.max(stacks.length, id + 1));
+                    stack = new Stack();
+                    copy[id] = stack;
+                    stacks = copy;
+                }
+                return stack;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class Stack {
+        private final ReentrantLock lock = new ReentrantLock();
+        private ServerConnection[] connections = new ServerConnection[INITIAL_CAPACITY];
+        private long[] expireTimes = new long[INITIAL_CAPACITY];
+        private int size;
+
+        void push(ServerConnection connection, long expireTime) {
+            lock.lock();
+            try {
+                if (size == connections.length) {
+                    connections = Arrays.copyOf(connections, size * 2);
+                    expireTimes = Arrays.copyOf(expireTimes, size * 2);
+                }
+                connections[size] = connection;
+                expireTimes[size] = expireTime;
+                size++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the newest connection that has not expired, or null; expired ones are
+         *         closed on the way, which is rare as the reaper gets to them first
+         */
+        ServerConnection pop(long now) {
+            ServerConnection connection;
+
+            while (true) {
+                lock.lock();
+                try {
+                    if (size == 0) {
+                        return null;
+                    }
+                    size--;
+                    connection = connections[size];
+                    connections[size] = null;
+                    if (now < expireTimes[size]) {
+                        return connection;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                connection.close();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void removeExpired(long now, List<ServerConnection> expired) {
+            lock.lock();
+            try {
+                int kept = 0;
+                for (int i = 0; i < size; i++) {
+                    if (now < expireTimes[i]) {
+                        connections[kept] = connections[i];
+                        expireTimes[kept] = expireTimes[i];
+                        kept++;
+                    } else {
+                        expired.add(connections[i]);
+                    }
+                }
+                for (int i = kept; i < size; i++) {
+                    connections[i] = null;
+                }
+                size = kept;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Pools the connection until expireTime, or closes it if that has passed.
+     */
+    void put(SocketAddress address, ELBSocketProfile profile, C connection, long expireTime) {
+        if (expireTime <= System.currentTimeMillis()) {
+            connection.close();
+            return;
+        }
+        Profiles profiles = addresses.get(address);
+        if (profiles == null) {
+            Profiles created = new Profiles();
+            profiles = addresses.putIfAbsent(address, created);
+            if (profiles == null) {
+                profiles = created;
+            }
+        }
+        profiles.getOrCreate(profile.getId()).push(connection, expireTime);
+    }
+
+    /**
+     * @return an idle connection to the address opened with the profile that has not
+     *         expired, or null
+     */
+    @SuppressWarnings("unchecked")
+    C get(SocketAddress address, ELBSocketProfile profile) {
+        Profiles profiles = addresses.get(address);
+        Stack stack = (profiles == null) ? null : profiles.get(profile.getId());
+
+        return (stack == null) ? null : (C) stack.pop(System.currentTimeMillis());
+    }
+
+    /**
+     * @return an idle connection to the address with any profile, or null, to be closed
+     */
+    @SuppressWarnings("unchecked")
+    C get(SocketAddress address) {
+        Profiles profiles = addresses.get(address);
+        if (profiles == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        for (Stack stack : profiles.stacks) {
+            ServerConnection connection = (stack == null) ? null : stack.pop(now);
+            if (connection != null) {
+                return (C) connection;
+            }
+        }
+        return null;
+    }
+
+    long size(SocketAddress address) {
+        Profiles profiles = addresses.get(address);
+        if (profiles == null) {
+            return 0;
+        }
+        long size = 0;
+        for (Stack stack : profiles.stacks) {
+            if (stack != null) {
+                size += stack.size();
+            }
+        }
+        return size;
+    }
+
+    long size(SocketAddress address, ELBSocketProfile profile) {
+        Profiles profiles = addresses.get(address);
+        Stack stack = (profiles == null) ? null : profiles.get(profile.getId());
+
+        return (stack == null) ? 0 : stack.size();
+    }
+
+    void closeExpired(long now) {
+        List<ServerConnection> expired = new ArrayList<ServerConnection>();
+
+        for (Profiles profiles : addresses.values()) {
+            for (Stack stack : profiles.stacks) {
+                if (stack != null) {
+                    stack.removeExpired(now, expired);
+                }
+            }
+        }
+        closeAll(expired);
+    }
+
+    private static void closeAll(List<ServerConnection> connections) {
+        for (ServerConnection connection : connections) {
+            connection.close();
+        }
+    }
+}
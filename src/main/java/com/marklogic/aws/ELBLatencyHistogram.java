@@ -0,0 +1,105 @@
+package com.marklogic.aws;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with fixed power-of-two microsecond buckets. Recording increments
+ * striped counters and never allocates; percentiles are reported as the upper bound of
+ * the bucket they fall in, so they are accurate to within a factor of two.
+ */
+public class ELBLatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    // bucket 0 holds values below 1us, bucket i values in [2^(i-1), 2^i) us
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    public ELBLatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+        buckets[bucket].increment();
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getMeanMicros() {
+        long count = getCount();
+        return (count == 0) ? 0 : totalMicros.sum() / count;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public long getMedianMicros() {
+        return getPercentileMicros(50);
+    }
+
+    public long get99thPercentileMicros() {
+        return getPercentileMicros(99);
+    }
+
+    public long get999thPercentileMicros() {
+        return getPercentileMicros(99.9);
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given percentile, never more
+     *         than the largest value recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(1L << i, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * @return the count in each bucket; bucket i counts values below 2^i microseconds
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMeanMicros() + "us, p50=" + getMedianMicros() + "us, p99=" +
+                get99thPercentileMicros() + "us, max=" + getMaxMicros() + "us";
+    }
+}
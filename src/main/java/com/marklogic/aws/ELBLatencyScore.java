@@ -0,0 +1,158 @@
+package com.marklogic.aws;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moving averages of request latency, connect latency and error rate for an ELB node or a
+ * whole ELB hostname, which latency-aware routing compares to pick where a request goes.
+ * <p>
+ * The averages decay with time rather than per sample, with a time constant of
+ * xcc.elb.score.decay milliseconds (10s by default), so a node seeing a hundred requests a
+ * second and one seeing a few weigh the last ten seconds the same way. Updates are
+ * lock-free: each average is a double held in an AtomicLong and replaced by compare-and-set.
+ * An average nothing has updated for longer than the time constant fades towards zero as
+ * it is read, so a node passed over for being slow is tried again; {@link #isCurrent()}
+ * tells a measured score from a faded or unknown one.
+ */
+public final class ELBLatencyScore {
+    static final String DECAY_PROPERTY = "xcc.elb.score.decay";
+    private static final double DECAY_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong(DECAY_PROPERTY, 10000).longValue());
+    // A node failing every request costs this many times its latency more than a healthy one
+    private static final double ERROR_PENALTY = 10;
+
+    private final Average requestLatency = new Average();
+    private final Average connectLatency = new Average();
+    private final Average errors = new Average();
+
+    void connected(long connectNanos) {
+        connectLatency.add(connectNanos, System.nanoTime());
+    }
+
+    void connectFailed() {
+        errors.add(1, System.nanoTime());
+    }
+
+    /**
+     * @param elapsedNanos how long the connection was handed out for
+     */
+    void requestSucceeded(long elapsedNanos) {
+        requestSucceeded(elapsedNanos, System.nanoTime());
+    }
+
+    /**
+     * @param now the System.nanoTime() the request finished at
+     */
+    void requestSucceeded(long elapsedNanos, long now) {
+        requestLatency.add(elapsedNanos, now);
+        errors.add(0, now);
+    }
+
+    /**
+     * Counts an error; its latency only counts if it is above the average, as a node that
+     * fails fast must not look fast.
+     */
+    void requestFailed(long elapsedNanos) {
+        long now = System.nanoTime();
+        requestLatency.add(Math.max(elapsedNanos, requestLatency.get(now)), now);
+        errors.add(1, now);
+    }
+
+    /**
+     * @param outstanding requests already in flight to the node
+     * @return the expected time, in nanoseconds, to serve one more request: the average
+     *         request latency, or connect latency until a request has been timed, scaled
+     *         by the requests in flight and the error rate; 0 if nothing is known
+     */
+    double cost(int outstanding) {
+        long now = System.nanoTime();
+        double latency = requestLatency.get(now);
+        if (latency == 0) {
+            latency = connectLatency.get(now);
+        }
+        return latency * (outstanding + 1) * (1 + ERROR_PENALTY * errors.get(now));
+    }
+
+    /**
+     * @return true if a request or connect has been timed within the last time constant,
+     *         so the averages are measured rather than faded or unknown
+     */
+    boolean isCurrent() {
+        long now = System.nanoTime();
+        return requestLatency.isCurrent(now) || connectLatency.isCurrent(now);
+    }
+
+    /**
+     * @return the cost of a request to an idle node as last measured, however long ago,
+     *         without fading; 0 if nothing has been timed
+     */
+    double lastCost() {
+        double latency = requestLatency.last();
+        if (latency == 0) {
+            latency = connectLatency.last();
+        }
+        return latency * (1 + ERROR_PENALTY * errors.last());
+    }
+
+    public double getRequestLatencyMicros() {
+        return requestLatency.get(System.nanoTime()) / 1000;
+    }
+
+    public double getConnectLatencyMicros() {
+        return connectLatency.get(System.nanoTime()) / 1000;
+    }
+
+    /**
+     * @return the fraction of recent connects and requests that failed
+     */
+    public double getErrorRate() {
+        return errors.get(System.nanoTime());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("latency=%.0fus connect=%.0fus errors=%.3f", getRequestLatencyMicros(),
+                getConnectLatencyMicros(), getErrorRate());
+    }
+
+    /**
+     * A time-decayed average. The value and the time of the last sample are two fields, so
+     * racing updates may weigh a sample slightly wrong; never by more than the gap between
+     * them.
+     */
+    private static final class Average {
+        private final AtomicLong bits = new AtomicLong(Double.doubleToRawLongBits(0));
+        private volatile long lastNanos;
+        private volatile boolean sampled;
+
+        void add(double sample, long now) {
+            long last = lastNanos;
+            lastNanos = now;
+            double weight = sampled ? 1 - Math.exp(-Math.max(0, now - last) / DECAY_NANOS) : 1;
+            sampled = true;
+
+            long current;
+            long next;
+            do {
+                current = bits.get();
+                double value = Double.longBitsToDouble(current);
+                next = Double.doubleToRawLongBits(value + weight * (sample - value));
+            } while (!bits.compareAndSet(current, next));
+        }
+
+        double get(long now) {
+            double value = Double.longBitsToDouble(bits.get());
+            long idle = now - lastNanos - (long) DECAY_NANOS;
+            return (idle > 0) ? value * Math.exp(-idle / DECAY_NANOS) : value;
+        }
+
+        double last() {
+            return Double.longBitsToDouble(bits.get());
+        }
+
+        boolean isCurrent(long now) {
+            return sampled && now - lastNanos <= DECAY_NANOS;
+        }
+    }
+}
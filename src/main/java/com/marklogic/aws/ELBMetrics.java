@@ -0,0 +1,95 @@
+package com.marklogic.aws;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Receives connection pool events, to bridge them to an external metrics library. Install
+ * one with {@link ELBStats#setMetrics(ELBMetrics)}.
+ * <p>
+ * Methods are called on the request path with addresses the provider already holds, so
+ * implementations should record and return without blocking or allocating. Every method
+ * does nothing by default.
+ */
+public interface ELBMetrics {
+    ELBMetrics NONE = new ELBMetrics() {
+    };
+
+    /**
+     * A new socket was connected.
+     */
+    default void connectionOpened(InetSocketAddress address, long connectNanos) {
+    }
+
+    default void connectFailed(InetSocketAddress address) {
+    }
+
+    /**
+     * A pooled connection was handed out.
+     */
+    default void connectionReused(InetSocketAddress address) {
+    }
+
+    /**
+     * A connection came back through returnConnection, whether it was pooled or closed.
+     */
+    default void connectionReturned(InetSocketAddress address) {
+    }
+
+    /**
+     * A returned connection was closed because its keep-alive time had run out.
+     */
+    default void connectionExpired(InetSocketAddress address) {
+    }
+
+    default void connectionErrorReturned(InetSocketAddress address) {
+    }
+
+    /**
+     * A pooled connection failed its liveness probe when it was borrowed and was closed
+     * instead of being handed out.
+     */
+    default void connectionStale(InetSocketAddress address) {
+    }
+
+    /**
+     * A returned connection was closed because its node holds more than its share of
+     * connections.
+     */
+    default void connectionRebalanced(InetSocketAddress address) {
+    }
+
+    /**
+     * The node failed repeatedly and is out of rotation for the backoff.
+     */
+    default void nodeTripped(InetSocketAddress address, long backoffMillis) {
+    }
+
+    /**
+     * A trial request to a tripped node succeeded and the node is back in rotation.
+     */
+    default void nodeRecovered(InetSocketAddress address) {
+    }
+
+    default void tlsHandshake(InetSocketAddress address, long handshakeNanos, boolean resumed) {
+    }
+
+    /**
+     * A read that had not answered within the hedge delay was sent again to this node.
+     */
+    default void hedgeSent(InetSocketAddress address) {
+    }
+
+    /**
+     * The copy sent to this node answered before the original request.
+     */
+    default void hedgeWon(InetSocketAddress address) {
+    }
+
+    /**
+     * The ELB hostname was resolved again.
+     *
+     * @param changed true if the resolved address set changed
+     */
+    default void dnsRefreshed(String hostName, long refreshNanos, boolean changed) {
+    }
+}
@@ -0,0 +1,435 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.marklogic.xcc.Request;
+import com.marklogic.xcc.SecurityOptions;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.spi.ConnectionErrorAction;
+import com.marklogic.xcc.spi.ConnectionProvider;
+import com.marklogic.xcc.spi.ServerConnection;
+import com.marklogic.xcc.spi.SingleHostAddress;
+
+/**
+ * Spreads requests over several ELB hostnames in front of the same cluster, such as one
+ * ELB per availability zone and per region, preferring the nearest. Each endpoint gets
+ * its own {@link ELBConnectionProvider}, or {@link ELBSSLConnectionProvider} with
+ * security options, with its own pool and limits; those keep moving averages of connect
+ * latency, request latency and error rate for the endpoint as a whole and for each of its
+ * resolved addresses ({@link ELBLatencyScore}), updated lock-free as connections are
+ * opened and returned.
+ * <p>
+ * A request goes to the endpoint of the lowest locality that has a node in rotation; if
+ * there are several, to the one expected to answer soonest. It overflows to a farther
+ * endpoint when the nearer one has no connection left to hand out, or when its average
+ * latency is more than the overflow ratio times the farther one's (2 by default, set by
+ * xcc.elb.overflow.ratio). A ratio of 1 ignores locality and routes on latency alone.
+ * While requests overflow, one in a hundred still goes to the nearer endpoint, so they
+ * come back once it recovers. A farther endpoint nothing has timed within the score's
+ * time constant counts as unknown rather than fast, so it cannot draw requests away
+ * after a quiet spell; while its last measure would win, one request in a hundred goes
+ * to it to time it again.
+ * <p>
+ * If an endpoint cannot be reached, the request goes to the next best. Statements of a
+ * multi-statement transaction stay on the endpoint, and node, the transaction began on.
+ */
+public class ELBMultiConnectionProvider implements ConnectionProvider, SingleHostAddress {
+    static final String OVERFLOW_RATIO_PROPERTY = "xcc.elb.overflow.ratio";
+    private static final double DEFAULT_OVERFLOW_RATIO = 2;
+    // One request in this many stays on a nearer endpoint that is being overflowed from,
+    // so its average keeps track of it
+    private static final int PROBE_INTERVAL = 100;
+
+    private final List<ELBEndpoint> endpoints;
+    // Ordered by locality, nearest first, and in the order given within a locality
+    private final Member[] members;
+    private final LongAdder overflows = new LongAdder();
+    private volatile double overflowRatio = Double.parseDouble(
+            System.getProperty(OVERFLOW_RATIO_PROPERTY, String.valueOf(DEFAULT_OVERFLOW_RATIO)));
+    private final Logger logger = Logger.getLogger(ELBMultiConnectionProvider.class.getName());
+
+    public ELBMultiConnectionProvider(List<ELBEndpoint> endpoints) {
+        this(endpoints, new InetAddressResolver(), ELBBalancePolicy.fromSystemProperty());
+    }
+
+    /**
+     * @param resolver resolves every endpoint's hostname
+     * @param balancePolicy how each endpoint spreads requests over its addresses
+     */
+    public ELBMultiConnectionProvider(List<ELBEndpoint> endpoints, ELBAddressResolver resolver,
+                                      ELBBalancePolicy balancePolicy) {
+        this.endpoints = copyOf(endpoints);
+        ConnectionProvider[] providers = new ConnectionProvider[this.endpoints.size()];
+        for (int i = 0; i < providers.length; i++) {
+            ELBEndpoint endpoint = this.endpoints.get(i);
+            providers[i] = new ELBConnectionProvider(endpoint.getHostName(), endpoint.getPort(), resolver,
+                    balancePolicy);
+        }
+        this.members = membersOf(this.endpoints, providers);
+        logger.info("constructing new ELBMultiConnectionProvider for " + this.endpoints);
+    }
+
+    public ELBMultiConnectionProvider(List<ELBEndpoint> endpoints, SecurityOptions options)
+            throws NoSuchAlgorithmException, KeyManagementException {
+        this(endpoints, options, new InetAddressResolver(), ELBBalancePolicy.fromSystemProperty());
+    }
+
+    /**
+     * @param resolver resolves every endpoint's hostname
+     * @param balancePolicy how each endpoint spreads requests over its addresses
+     */
+    public ELBMultiConnectionProvider(List<ELBEndpoint> endpoints, SecurityOptions options,
+                                      ELBAddressResolver resolver, ELBBalancePolicy balancePolicy)
+            throws NoSuchAlgorithmException, KeyManagementException {
+        this.endpoints = copyOf(endpoints);
+        ConnectionProvider[] providers = new ConnectionProvider[this.endpoints.size()];
+        for (int i = 0; i < providers.length; i++) {
+            ELBEndpoint endpoint = this.endpoints.get(i);
+            providers[i] = new ELBSSLConnectionProvider(endpoint.getHostName(), endpoint.getPort(), options,
+                    resolver, balancePolicy);
+        }
+        this.members = membersOf(this.endpoints, providers);
+        logger.info("constructing new ELBMultiConnectionProvider for " + this.endpoints);
+    }
+
+    private static List<ELBEndpoint> copyOf(List<ELBEndpoint> endpoints) {
+        if (endpoints == null || endpoints.isEmpty()) {
+            throw new IllegalArgumentException("no ELB endpoints");
+        }
+        return Collections.unmodifiableList(new ArrayList<ELBEndpoint>(endpoints));
+    }
+
+    private static Member[] membersOf(List<ELBEndpoint> endpoints, ConnectionProvider[] providers) {
+        Member[] members = new Member[providers.length];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new Member(endpoints.get(i), providers[i]);
+        }
+        // A stable sort, so endpoints of the same locality keep the order they were given in
+        Arrays.sort(members, new Comparator<Member>() {
+            public int compare(Member a, Member b) {
+                return Integer.compare(a.endpoint.getLocality(), b.endpoint.getLocality());
+            }
+        });
+        for (int i = 0; i < members.length; i++) {
+            members[i].index = i;
+        }
+        return members;
+    }
+
+    /**
+     * @return the endpoints, in the order given
+     */
+    public List<ELBEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return the provider for one endpoint, an {@link ELBConnectionProvider} or an
+     *         {@link ELBSSLConnectionProvider}, for its settings and statistics
+     */
+    public ConnectionProvider getProvider(ELBEndpoint endpoint) {
+        return memberOf(endpoint).provider;
+    }
+
+    /**
+     * @return the moving averages of latency and error rate across the endpoint's nodes;
+     *         each node's own are on {@link ELBNode#getScore()}
+     */
+    public ELBLatencyScore getScore(ELBEndpoint endpoint) {
+        return memberOf(endpoint).core.getScore();
+    }
+
+    /**
+     * @return connections handed out for requests to the endpoint
+     */
+    public long getRequests(ELBEndpoint endpoint) {
+        return memberOf(endpoint).requests.sum();
+    }
+
+    /**
+     * @return connections handed out for requests to an endpoint farther than the nearest
+     */
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    public double getOverflowRatio() {
+        return overflowRatio;
+    }
+
+    /**
+     * Sets how many times slower than a farther endpoint a nearer one must be before
+     * requests overflow to the farther one; 1 routes on latency alone.
+     */
+    public void setOverflowRatio(double overflowRatio) {
+        if (overflowRatio < 1) {
+            throw new IllegalArgumentException("overflowRatio must be at least 1: " + overflowRatio);
+        }
+        this.overflowRatio = overflowRatio;
+    }
+
+    private Member memberOf(ELBEndpoint endpoint) {
+        for (Member member : members) {
+            if (member.endpoint.equals(endpoint)) {
+                return member;
+            }
+        }
+        throw new IllegalArgumentException("not an endpoint of this provider: " + endpoint);
+    }
+
+    public ServerConnection obtainConnection(Session session, Request request, Logger logger) throws IOException {
+        Member member = pinnedMember(session, request);
+        if (member != null) {
+            return obtainConnection(member, session, request, logger);
+        }
+
+        boolean[] tried = null;
+        member = select(null);
+        while (true) {
+            try {
+                return obtainConnection(member, session, request, logger);
+            } catch (IOException e) {
+                if (!isUnreachable(e)) {
+                    throw e;
+                }
+                if (tried == null) {
+                    tried = new boolean[members.length];
+                }
+                tried[member.index] = true;
+                Member next = select(tried);
+                if (next == null) {
+                    throw e;
+                }
+                if (getLogger(logger).isLoggable(Level.FINE)) {
+                    getLogger(logger).fine("unable to use ELB endpoint " + member.endpoint + ", trying " +
+                            next.endpoint + ": " + e);
+                }
+                member = next;
+            }
+        }
+    }
+
+    private ServerConnection obtainConnection(Member member, Session session, Request request, Logger logger)
+            throws IOException {
+        ServerConnection connection = member.provider.obtainConnection(session, request, logger);
+        member.requests.increment();
+        if (member.endpoint.getLocality() > members[0].endpoint.getLocality()) {
+            overflows.increment();
+        }
+        return connection;
+    }
+
+    /**
+     * @return the endpoint the session's open transaction runs on, else the one whose
+     *         node the request is sent to by its {@link ELBRequestOptions}, or null
+     */
+    private Member pinnedMember(Session session, Request request) {
+        if (session != null && !session.isAutoCommit()) {
+            for (Member member : members) {
+                if (member.core.isPinned(session)) {
+                    return member;
+                }
+            }
+        }
+        InetAddress target = ELBConnectionProvider.targetOf(session, request);
+        if (target != null) {
+            for (Member member : members) {
+                if (member.core.hasNode(target)) {
+                    return member;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the best endpoint of the nearest locality with one in rotation, then moves
+     * out a locality at a time while the one chosen is saturated or should overflow.
+     *
+     * @param tried endpoints to pass over, by index, or null
+     * @return the endpoint to use, or null if every endpoint has been tried
+     */
+    private Member select(boolean[] tried) {
+        return select(tried, ThreadLocalRandom.current().nextInt(PROBE_INTERVAL) == 0);
+    }
+
+    /**
+     * @param probe true for the odd request sent to measure an endpoint that the others
+     *              are steered away from
+     */
+    Member select(boolean[] tried, boolean probe) {
+        Member preferred = null;
+        Member fallback = null;
+        int start = 0;
+
+        while (start < members.length) {
+            int locality = members[start].endpoint.getLocality();
+            Member best = null;
+            double bestCost = 0;
+            int i = start;
+            for (; i < members.length && members[i].endpoint.getLocality() == locality; i++) {
+                Member member = members[i];
+                if (tried != null && tried[i]) {
+                    continue;
+                }
+                if (fallback == null) {
+                    fallback = member;
+                }
+                if (!member.core.isInRotation()) {
+                    continue;
+                }
+                // Within a locality, load counts too, so requests spread over equal endpoints
+                double cost = member.loadedCost();
+                if (best == null || cost < bestCost) {
+                    best = member;
+                    bestCost = cost;
+                }
+            }
+            start = i;
+
+            if (best == null) {
+                continue;
+            }
+            if (preferred != null && !preferred.isSaturated() && !overflows(preferred, best, probe)) {
+                break;
+            }
+            preferred = best;
+        }
+        // With no endpoint in rotation, try the nearest anyway
+        return (preferred == null) ? fallback : preferred;
+    }
+
+    /**
+     * @return true if a request should go to the farther endpoint though the nearer one
+     *         has connections to spare: if the nearer is slower than the overflow ratio
+     *         allows, except for the odd request kept back to measure it. A farther
+     *         endpoint that has not been timed lately only gets the odd request, to time
+     *         it, and only if its last measure would have won.
+     */
+    private boolean overflows(Member nearer, Member farther, boolean probe) {
+        ELBLatencyScore score = farther.core.getScore();
+        if (!score.isCurrent()) {
+            return probe && nearer.cost() > overflowRatio * score.lastCost();
+        }
+        return !probe && nearer.cost() > overflowRatio * farther.cost();
+    }
+
+    /**
+     * @return true if the endpoint could not be used and nothing was sent, so the request
+     *         can go to another endpoint
+     */
+    private static boolean isUnreachable(IOException e) {
+        return ELBConnectionProvider.isConnectFailure(e) || (e instanceof ELBPoolExhaustedException) ||
+                (e instanceof UnknownHostException);
+    }
+
+    /**
+     * Hands the connection back to the endpoint's provider, as XCC itself does when a
+     * streaming result is closed.
+     */
+    public void returnConnection(ServerConnection connection, Logger logger) {
+        connection.provider().returnConnection(connection, logger);
+    }
+
+    public ConnectionErrorAction returnErrorConnection(ServerConnection connection, Throwable exception, Logger logger) {
+        return connection.provider().returnErrorConnection(connection, exception, logger);
+    }
+
+    public void shutdown(Logger logger) {
+        getLogger(logger).fine("shutting down multi-endpoint provider");
+        for (Member member : members) {
+            member.provider.shutdown(logger);
+        }
+    }
+
+    public void closeExpired(long currTime) {
+        for (Member member : members) {
+            member.provider.closeExpired(currTime);
+        }
+    }
+
+    public Logger getLogger(Logger clientLogger) {
+        return ((clientLogger == null) ? this.logger : clientLogger);
+    }
+
+    /**
+     * @return the primary address of the nearest endpoint, which XCC reports as the
+     *         session's connection URI
+     */
+    public InetSocketAddress getAddress() {
+        return members[0].core.getAddress();
+    }
+
+    /**
+     * @return the port of the nearest endpoint
+     */
+    public int getPort() {
+        InetSocketAddress inetAddress = getAddress();
+        return inetAddress == null ? 0 : inetAddress.getPort();
+    }
+
+    /**
+     * @return the hostname of the nearest endpoint
+     */
+    public String getHostName() {
+        InetSocketAddress inetAddress = getAddress();
+        return inetAddress == null ? null : inetAddress.getHostString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ELBMultiConnectionProvider overflows=").append(overflows.sum());
+        for (Member member : members) {
+            builder.append(", [").append(member.endpoint).append(" requests=").append(member.requests.sum())
+                    .append(' ').append(member.core.getScore()).append(']');
+        }
+        return builder.toString();
+    }
+
+    static final class Member {
+        final ELBEndpoint endpoint;
+        final ConnectionProvider provider;
+        final ELBConnectionProvider core;
+        final LongAdder requests = new LongAdder();
+        int index;
+
+        Member(ELBEndpoint endpoint, ConnectionProvider provider) {
+            this.endpoint = endpoint;
+            this.provider = provider;
+            this.core = ELBConnectionProvider.coreOf(provider);
+        }
+
+        /**
+         * @return the expected latency of the endpoint, whatever its load
+         */
+        double cost() {
+            return core.getScore().cost(0);
+        }
+
+        double loadedCost() {
+            return core.getScore().cost(core.getConnectionLimiter().getInUse());
+        }
+
+        /**
+         * @return true if a request would have to wait for a connection
+         */
+        boolean isSaturated() {
+            ELBConnectionLimiter limiter = core.getConnectionLimiter();
+            return limiter.getWaiting() > 0 || limiter.getInUse() >= limiter.getMaxConnections();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.marklogic.aws;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-address state for one resolved ELB node. The node's address is also its
+ * key in the provider's connection pool.
+ */
+public class ELBNode {
+    private final InetSocketAddress address;
+    private final Semaphore permits;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger open = new AtomicInteger();
+    private final ELBCircuitBreaker breaker = new ELBCircuitBreaker();
+    private final ELBLatencyScore score = new ELBLatencyScore();
+    private volatile boolean retired;
+
+    ELBNode(InetSocketAddress address, Semaphore permits) {
+        this.address = address;
+        this.permits = permits;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return connections to this node currently handed out to requests
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return open sockets to this node, pooled or in use
+     */
+    public int getOpenConnections() {
+        return open.get();
+    }
+
+    /**
+     * @return the breaker that takes this node out of rotation while it is failing
+     */
+    public ELBCircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @return the moving averages of this node's latency and error rate
+     */
+    public ELBLatencyScore getScore() {
+        return score;
+    }
+
+    Semaphore getPermits() {
+        return permits;
+    }
+
+    /**
+     * @return true once the address has dropped out of DNS; connections to it are
+     *         no longer pooled
+     */
+    public boolean isRetired() {
+        return retired;
+    }
+
+    void acquired() {
+        outstanding.incrementAndGet();
+    }
+
+    void released() {
+        outstanding.decrementAndGet();
+    }
+
+    void socketOpened() {
+        open.incrementAndGet();
+    }
+
+    void socketClosed() {
+        open.decrementAndGet();
+    }
+
+    void retire() {
+        retired = true;
+    }
+
+    @Override
+    public String toString() {
+        return address + " outstanding=" + outstanding.get() + " open=" + open.get() + (retired ? " retired" : "") +
+                (breaker.isClosed() ? "" : " " + breaker.getState());
+    }
+}
@@ -0,0 +1,15 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+
+/**
+ * Thrown by obtainConnection when no connection could be opened within the acquire
+ * timeout because the provider is already at its connection limit.
+ */
+public class ELBPoolExhaustedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ELBPoolExhaustedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,115 @@
+package com.marklogic.aws;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.marklogic.xcc.spi.ConnectionProvider;
+
+/**
+ * Decides how long a pooled connection may stay idle and live in total, and closes
+ * expired connections in the background on the shared {@link ELBScheduler}, so an ELB
+ * that silently drops idle connections (350 seconds for an NLB, 60 by default for an
+ * ALB) never gets to hand a dead socket to a request.
+ * <p>
+ * Both limits are shortened by a random fraction up to the jitter, so connections opened
+ * together, for instance by warm-up or after an address change, are not all replaced
+ * together.
+ */
+class ELBPoolReaper {
+    static final String MAX_IDLE_PROPERTY = "xcc.elb.pool.max.idle";
+    static final String MAX_LIFETIME_PROPERTY = "xcc.elb.pool.max.lifetime";
+    static final String JITTER_PROPERTY = "xcc.elb.pool.evict.jitter";
+    static final String INTERVAL_PROPERTY = "xcc.elb.pool.reap.interval";
+    static final String VALIDATE_PROPERTY = "xcc.elb.pool.validate";
+    private static final long DEFAULT_MAX_IDLE = 50000;
+    private static final long DEFAULT_MAX_LIFETIME = 300000;
+    private static final double DEFAULT_JITTER = 0.2;
+    private static final long DEFAULT_INTERVAL = 1000;
+
+    private final long maxIdle = Long.getLong(MAX_IDLE_PROPERTY, DEFAULT_MAX_IDLE).longValue();
+    private final long maxLifetime = Long.getLong(MAX_LIFETIME_PROPERTY, DEFAULT_MAX_LIFETIME).longValue();
+    private final double jitter = Math.min(1, Math.max(0, Double.parseDouble(
+            System.getProperty(JITTER_PROPERTY, String.valueOf(DEFAULT_JITTER)))));
+    private final long interval = Math.max(100, Long.getLong(INTERVAL_PROPERTY, DEFAULT_INTERVAL).longValue());
+    private final boolean validate = Boolean.parseBoolean(System.getProperty(VALIDATE_PROPERTY, "true"));
+    private final Logger logger;
+    private ScheduledFuture<?> task;
+
+    ELBPoolReaper(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * @return true if a pooled connection is probed for liveness before it is handed out
+     */
+    boolean isValidate() {
+        return validate;
+    }
+
+    long getMaxIdle() {
+        return maxIdle;
+    }
+
+    long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    /**
+     * @return the time a connection opened now must be retired by, or Long.MAX_VALUE
+     */
+    long newDeadline() {
+        return (maxLifetime <= 0) ? Long.MAX_VALUE : System.currentTimeMillis() + jittered(maxLifetime);
+    }
+
+    /**
+     * @param keepAliveTime when the server will close the connection, from its keep-alive
+     * @param deadline      the connection's lifetime deadline
+     * @return when a connection pooled now should be closed
+     */
+    long expireTime(long keepAliveTime, long deadline) {
+        long expireTime = Math.min(keepAliveTime, deadline);
+
+        if (maxIdle > 0) {
+            expireTime = Math.min(expireTime, System.currentTimeMillis() + jittered(maxIdle));
+        }
+        return expireTime;
+    }
+
+    private long jittered(long millis) {
+        return millis - (long) (millis * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * Starts calling the provider's closeExpired every reap interval.
+     */
+    synchronized void start(final ConnectionProvider provider) {
+        if (task != null) {
+            return;
+        }
+        task = ELBScheduler.get().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    provider.closeExpired(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    // An exception would cancel the task; log it and try again next time
+                    logger.log(Level.WARNING, "unable to close expired connections", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "maxIdle=" + maxIdle + ", maxLifetime=" + maxLifetime + ", jitter=" + jitter;
+    }
+}
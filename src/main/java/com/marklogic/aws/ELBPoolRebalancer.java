@@ -0,0 +1,82 @@
+package com.marklogic.aws;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evens out open connections across ELB nodes after the fleet scales out. Pooled
+ * connections are reused for as long as they live, so without this the sockets opened
+ * before new nodes appeared stay on the old nodes for hours.
+ * <p>
+ * A connection returned to a node holding more than its share of the provider's open
+ * connections, by more than the tolerance, is closed instead of pooled; the request that
+ * would have reused it connects afresh, to whichever node the balance policy picks.
+ * Closes are spaced at least 1/rate seconds apart across the provider, so a scale-out
+ * never turns into a reconnect storm.
+ */
+class ELBPoolRebalancer {
+    static final String ENABLED_PROPERTY = "xcc.elb.rebalance";
+    static final String TOLERANCE_PROPERTY = "xcc.elb.rebalance.tolerance";
+    static final String RATE_PROPERTY = "xcc.elb.rebalance.rate";
+    private static final double DEFAULT_TOLERANCE = 0.2;
+    private static final double DEFAULT_RATE = 5;
+
+    private final double tolerance = Math.max(0, Double.parseDouble(
+            System.getProperty(TOLERANCE_PROPERTY, String.valueOf(DEFAULT_TOLERANCE))));
+    private final long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / Math.max(0.001, Double.parseDouble(
+            System.getProperty(RATE_PROPERTY, String.valueOf(DEFAULT_RATE)))));
+    private final AtomicLong nextClose = new AtomicLong(System.nanoTime());
+    private volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param node  the node a connection is being returned to
+     * @param nodes the nodes currently in DNS
+     * @return true if the connection should be closed to move load off the node
+     */
+    boolean shouldClose(ELBNode node, ELBNode[] nodes) {
+        if (!enabled || nodes.length < 2 || node.isRetired()) {
+            return false;
+        }
+
+        // Tripped nodes take no share, so their load is not pushed back onto them
+        int total = 0;
+        int healthy = 0;
+        for (ELBNode candidate : nodes) {
+            if (candidate.getCircuitBreaker().isClosed()) {
+                total += candidate.getOpenConnections();
+                healthy++;
+            }
+        }
+        if (healthy < 2) {
+            return false;
+        }
+
+        double share = (double) total / healthy;
+        // At least one connection over, or small pools would churn on rounding
+        if (node.getOpenConnections() <= Math.max(share * (1 + tolerance), share + 1)) {
+            return false;
+        }
+        return tryClose();
+    }
+
+    private boolean tryClose() {
+        long now = System.nanoTime();
+        long next = nextClose.get();
+
+        return (now - next >= 0) && nextClose.compareAndSet(next, now + intervalNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "rebalance=" + enabled + ", tolerance=" + tolerance + ", interval=" +
+                TimeUnit.NANOSECONDS.toMillis(intervalNanos) + "ms";
+    }
+}
@@ -0,0 +1,56 @@
+package com.marklogic.aws;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Immutable pairing of an address snapshot with the nodes built from it. A provider
+ * swaps whole states with compare-and-set, so request threads read the nodes without
+ * locking and every address change is applied once.
+ */
+final class ELBPoolState {
+    static final ELBPoolState EMPTY = new ELBPoolState(null, new ELBNode[0]);
+
+    private final ELBAddressSnapshot snapshot;
+    private final ELBNode[] nodes;
+
+    ELBPoolState(ELBAddressSnapshot snapshot, ELBNode[] nodes) {
+        this.snapshot = snapshot;
+        this.nodes = nodes;
+    }
+
+    /**
+     * @return the snapshot the nodes were built from, or null before the first one
+     */
+    ELBAddressSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the nodes; callers must not modify the array
+     */
+    ELBNode[] getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return true if this state was built from the snapshot or a later one, so the
+     *         snapshot must not replace it
+     */
+    boolean isAtLeast(ELBAddressSnapshot other) {
+        return (snapshot != null) && (snapshot.getGeneration() >= other.getGeneration());
+    }
+
+    ELBNode find(InetSocketAddress address) {
+        for (ELBNode node : nodes) {
+            if (node.getAddress().equals(address)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "gen=" + ((snapshot == null) ? -1 : snapshot.getGeneration()) + ", nodes=" + nodes.length;
+    }
+}
@@ -0,0 +1,12 @@
+package com.marklogic.aws;
+
+/**
+ * The idle connections a provider holds for each of its nodes.
+ */
+interface ELBPoolView {
+    ELBNode[] getNodes();
+
+    long idleCount(ELBNode node);
+
+    long idleCount(ELBNode node, ELBSocketProfile profile);
+}
@@ -0,0 +1,138 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps at least minIdle connections pooled for every ELB node, so requests after a
+ * deploy, an address change or an idle period do not pay for the connect (and TLS
+ * handshake) themselves. The scheduler only times the runs; the connects themselves
+ * happen on {@link ELBScheduler#blocking()}, as each may take up to the connect timeout.
+ * <p>
+ * Warmed connections are pooled for the idle timeout unless xcc.elb.pool.warm.ttl says
+ * otherwise, so the minimum is not reopened more often than idle connections expire.
+ */
+class ELBPoolWarmer {
+    static final String MIN_IDLE_PROPERTY = "xcc.elb.pool.min.idle";
+    static final String WARM_INTERVAL_PROPERTY = "xcc.elb.pool.warm.interval";
+    static final String WARM_TTL_PROPERTY = "xcc.elb.pool.warm.ttl";
+    private static final long DEFAULT_WARM_INTERVAL = 1000;
+
+    /**
+     * The pool being kept warm.
+     */
+    interface Target extends ELBPoolView {
+        /**
+         * Opens one connection to the node, ready for use, and pools it until expireTime.
+         *
+         * @return false if the provider is at its connection limit
+         */
+        boolean addIdle(ELBNode node, long expireTime) throws IOException;
+    }
+
+    private final Target target;
+    private final long interval;
+    private final long warmTtl;
+    private final Logger logger;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile int minIdle;
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param idleTimeout how long an idle connection may stay pooled, the default for how
+     *                    long a warmed one is
+     */
+    ELBPoolWarmer(Target target, int minIdle, long idleTimeout, Logger logger) {
+        this.target = target;
+        this.minIdle = minIdle;
+        this.interval = Long.getLong(WARM_INTERVAL_PROPERTY, DEFAULT_WARM_INTERVAL).longValue();
+        this.warmTtl = Long.getLong(WARM_TTL_PROPERTY, idleTimeout).longValue();
+        this.logger = logger;
+    }
+
+    long getWarmTtl() {
+        return warmTtl;
+    }
+
+    int getMinIdle() {
+        return minIdle;
+    }
+
+    synchronized void setMinIdle(int minIdle) {
+        this.minIdle = Math.max(0, minIdle);
+        if (this.minIdle == 0) {
+            stop();
+        } else if (task == null) {
+            task = ELBScheduler.get().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    warmSoon();
+                }
+            }, 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Tops the pool up straight away rather than at the next scheduled run, for instance
+     * because a node joined or connections were expired.
+     */
+    void warmSoon() {
+        if (minIdle > 0 && scheduled.compareAndSet(false, true)) {
+            ELBScheduler.blocking().execute(new Runnable() {
+                public void run() {
+                    scheduled.set(false);
+                    warm();
+                }
+            });
+        }
+    }
+
+    private void warm() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            warmNodes();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void warmNodes() {
+        int wanted = minIdle;
+
+        for (ELBNode node : target.getNodes()) {
+            if (node.isRetired() || !node.getCircuitBreaker().isClosed()) {
+                continue;
+            }
+            int opened = 0;
+            try {
+                long expireTime = System.currentTimeMillis() + warmTtl;
+                while (target.idleCount(node) < wanted && opened < wanted) {
+                    if (!target.addIdle(node, expireTime)) {
+                        return;
+                    }
+                    opened++;
+                }
+            } catch (IOException | RuntimeException e) {
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.log(Level.FINE, "unable to warm connection to " + node.getAddress(), e);
+                }
+            }
+            if (opened > 0 && logger.isLoggable(Level.FINE)) {
+                logger.fine("warmed " + opened + " connections to " + node.getAddress());
+            }
+        }
+    }
+}
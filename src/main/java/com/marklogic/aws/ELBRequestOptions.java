@@ -0,0 +1,74 @@
+package com.marklogic.aws;
+
+import java.net.InetAddress;
+
+import com.marklogic.xcc.RequestOptions;
+
+/**
+ * Request options that also pick the socket profile for the connection a request runs
+ * on, and optionally the ELB node it is sent to. Set them on a request, or as a session's
+ * default request options to cover every request in the session; the request's own
+ * options are looked at first.
+ */
+public class ELBRequestOptions extends RequestOptions {
+    private ELBSocketProfile socketProfile;
+    private InetAddress targetAddress;
+    private ELBHedgeAttempt attempt;
+
+    /**
+     * @return the profile to use, or null for the provider's
+     */
+    public ELBSocketProfile getSocketProfile() {
+        return socketProfile;
+    }
+
+    public void setSocketProfile(ELBSocketProfile socketProfile) {
+        this.socketProfile = socketProfile;
+    }
+
+    /**
+     * @return the ELB address the request must be sent to, or null to let the balance
+     *         policy choose
+     */
+    public InetAddress getTargetAddress() {
+        return targetAddress;
+    }
+
+    /**
+     * Sends the request to the node at this resolved ELB address, with no failover to
+     * another. If the address is not among the current ones, or its node is out of
+     * rotation, the balance policy chooses as usual. A session in a multi-statement
+     * transaction always stays on the node the transaction began on.
+     */
+    public void setTargetAddress(InetAddress targetAddress) {
+        this.targetAddress = targetAddress;
+    }
+
+    ELBHedgeAttempt getAttempt() {
+        return attempt;
+    }
+
+    void setAttempt(ELBHedgeAttempt attempt) {
+        this.attempt = attempt;
+    }
+
+    /**
+     * @param requested the options the caller's request was built with, or null
+     * @param target    the ELB address to send the copy to, or null to let the balance
+     *                  policy choose
+     * @return options for one copy of a request, with the effective values and socket
+     *         profile of the requested ones
+     */
+    static ELBRequestOptions forAttempt(RequestOptions requested, InetAddress target, ELBHedgeAttempt attempt) {
+        ELBRequestOptions options = new ELBRequestOptions();
+        if (requested != null) {
+            options.applyEffectiveValues(new RequestOptions[] { requested });
+        }
+        if (requested instanceof ELBRequestOptions) {
+            options.setSocketProfile(((ELBRequestOptions) requested).getSocketProfile());
+        }
+        options.setTargetAddress(target);
+        options.setAttempt(attempt);
+        return options;
+    }
+}
@@ -2,12 +2,13 @@ package com.marklogic.aws;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.SocketChannel;
 import java.util.logging.Logger;
 
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
 
 import com.marklogic.io.SslByteChannel;
 import com.marklogic.xcc.SecurityOptions;
@@ -15,22 +16,45 @@ import com.marklogic.xcc.spi.ConnectionProvider;
 import com.marklogic.xcc.spi.ServerConnection;
 
 public class ELBSSLConnection implements ServerConnection {
+    private static final String HANDSHAKE_TIMEOUT_PROPERTY = "xcc.elb.tls.handshake.timeout";
+    private static final int handshakeTimeout = Integer.getInteger(HANDSHAKE_TIMEOUT_PROPERTY, 10000).intValue();
+    // "xcc" goes back to XCC's SslByteChannel; read per connection so it can be switched at run time
+    static final String CHANNEL_PROPERTY = "xcc.elb.tls.channel";
+    private static final int RECORD_HEADER_LENGTH = 5;
+
     private final ServerConnection plainConn;
     private final ConnectionProvider provider;
+    private final SSLEngine sslEngine;
     private final ByteChannel sslChannel;
+    private ByteBuffer probeHeader;
 
+    /**
+     * Runs the TLS handshake before returning, so the connection is ready for its first
+     * request and the provider's session cache sees whether the session was resumed.
+     */
     public ELBSSLConnection(ServerConnection conn, SecurityOptions securityOptions, ELBSSLConnectionProvider provider,
                          Logger logger) throws IOException {
+        this(conn, securityOptions, provider.getSessionCache(), provider.getStats(), provider,
+                addressOf(conn, provider), logger);
+    }
+
+    ELBSSLConnection(ELBConnection conn, SecurityOptions securityOptions, ELBTlsSessionCache sessionCache,
+                     ELBStats stats, ConnectionProvider provider, Logger logger) throws IOException {
+        this(conn, securityOptions, sessionCache, stats, provider, conn.getNode().getAddress(), logger);
+    }
+
+    private ELBSSLConnection(ServerConnection conn, SecurityOptions securityOptions, ELBTlsSessionCache sessionCache,
+                             ELBStats stats, ConnectionProvider provider, InetSocketAddress address, Logger logger)
+            throws IOException {
         if (!(conn.channel() instanceof SocketChannel)) {
             throw new IllegalArgumentException("Underlying channel is not a SocketChannel");
         }
 
-        InetSocketAddress addr = provider.getAddress();
-        SSLContext context = securityOptions.getSslContext();
-        SSLEngine sslEngine = context.createSSLEngine(addr.getHostName(), addr.getPort());
+        SSLEngine sslEngine = sessionCache.createEngine();
 
         this.plainConn = conn;
         this.provider = provider;
+        this.sslEngine = sslEngine;
 
         sslEngine.setUseClientMode(true);
 
@@ -44,7 +68,23 @@ public class ELBSSLConnection implements ServerConnection {
             sslEngine.setEnabledCipherSuites(ciphers);
         }
 
-        sslChannel = new SslByteChannel(plainConn.channel(), sslEngine, logger);
+        long handshakeStart = System.currentTimeMillis();
+        long start = System.nanoTime();
+        ELBTlsHandshake.run((SocketChannel) plainConn.channel(), sslEngine, handshakeTimeout);
+
+        boolean resumed = sessionCache.handshakeCompleted(sslEngine.getSession(), handshakeStart);
+        stats.tlsHandshake(address, System.nanoTime() - start, resumed);
+
+        if ("xcc".equalsIgnoreCase(System.getProperty(CHANNEL_PROPERTY))) {
+            sslChannel = new SslByteChannel(plainConn.channel(), sslEngine, logger);
+        } else {
+            sslChannel = new ELBTlsChannel((SocketChannel) plainConn.channel(), sslEngine, ELBBufferPool.shared());
+        }
+    }
+
+    private static InetSocketAddress addressOf(ServerConnection conn, ELBSSLConnectionProvider provider) {
+        ELBNode node = ELBConnectionProvider.nodeOf(conn);
+        return (node == null) ? provider.getAddress() : node.getAddress();
     }
 
     public ByteChannel channel() {
@@ -55,6 +95,109 @@ public class ELBSSLConnection implements ServerConnection {
         return provider;
     }
 
+    ServerConnection getPlainConnection() {
+        return plainConn;
+    }
+
+    /**
+     * XCC only times out reads on its own TLS channel, so the request timeout is passed to
+     * ours, which enforces it itself.
+     */
+    void setReadTimeout(int timeoutMillis) {
+        if (sslChannel instanceof ELBTlsChannel) {
+            ((ELBTlsChannel) sslChannel).setTimeout(timeoutMillis);
+        }
+    }
+
+    /**
+     * Called as the connection goes back to the pool, to give up the channel's buffers
+     * while it is idle.
+     */
+    void idle() {
+        if (sslChannel instanceof ELBTlsChannel) {
+            ((ELBTlsChannel) sslChannel).releaseBuffers();
+        }
+    }
+
+    /**
+     * Checks, without blocking, that an idle connection is still usable. Data the channel
+     * still holds fails the check. Records the
+     * server sent since the last response, typically a TLS 1.3 session ticket, go to the
+     * engine as the TLS channel would have passed them; a close_notify or other alert,
+     * application data or a partial record fail the check.
+     */
+    boolean isAlive() {
+        if (!sslChannel.isOpen()) {
+            return false;
+        }
+        if (sslChannel instanceof ELBTlsChannel && ((ELBTlsChannel) sslChannel).hasBuffered()) {
+            // Left over from the last response, which the next one would be read after
+            return false;
+        }
+        SocketChannel channel = (SocketChannel) plainConn.channel();
+        if (probeHeader == null) {
+            probeHeader = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        }
+        ByteBuffer header = probeHeader;
+        header.clear();
+
+        while (true) {
+            int read = ELBConnection.probe(channel, header);
+            if (read == 0) {
+                return true;
+            }
+            if (read < 0 || !unwrapRecord(channel, header)) {
+                return false;
+            }
+            header.clear();
+        }
+    }
+
+    private boolean unwrapRecord(SocketChannel channel, ByteBuffer header) {
+        if (!readFully(channel, header)) {
+            return false;
+        }
+        int length = ((header.get(3) & 0xff) << 8) | (header.get(4) & 0xff);
+        if (length > sslEngine.getSession().getPacketBufferSize()) {
+            return false;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_LENGTH + length);
+        header.flip();
+        record.put(header);
+        if (!readFully(channel, record)) {
+            return false;
+        }
+        record.flip();
+
+        try {
+            SSLEngineResult result = sslEngine.unwrap(record,
+                    ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize()));
+            Runnable task;
+            while ((task = sslEngine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            return result.getStatus() == SSLEngineResult.Status.OK && result.bytesProduced() == 0 &&
+                    !record.hasRemaining() &&
+                    sslEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the rest of a record the server has already sent, giving up rather than
+     * waiting if it has not all arrived.
+     */
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (ELBConnection.probe(channel, buffer) <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public long getTimeoutMillis() {
         return plainConn.getTimeoutMillis();
     }
@@ -83,6 +226,7 @@ public class ELBSSLConnection implements ServerConnection {
         } catch (IOException e) {
             // ignore
         }
+        plainConn.close();
     }
 
     public boolean isOpen() {
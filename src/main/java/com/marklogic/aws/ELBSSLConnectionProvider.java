@@ -1,7 +1,5 @@
 package com.marklogic.aws;
 
-import com.marklogic.io.ResourcePool;
-import com.marklogic.io.SslByteChannel;
 import com.marklogic.xcc.Request;
 import com.marklogic.xcc.SecurityOptions;
 import com.marklogic.xcc.Session;
@@ -11,36 +9,20 @@ import com.marklogic.xcc.spi.ServerConnection;
 import com.marklogic.xcc.spi.SingleHostAddress;
 
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.UnknownHostException;
-import java.nio.channels.ByteChannel;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.time.Duration;
-import java.time.Instant;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ELBSSLConnectionProvider implements ConnectionProvider, SingleHostAddress {
-    private SocketAddress address;
     private final SecurityOptions securityOptions;
-    private ELBConnectionProvider socketProvider;
-    private final ResourcePool<SocketAddress, ServerConnection> sslPool;
-    private final Logger logger;
+    private final ELBTlsSessionCache sessionCache;
+    private final ELBConnectionProvider core;
 
     public ELBSSLConnectionProvider(SocketAddress address, SecurityOptions options) throws NoSuchAlgorithmException,
             KeyManagementException {
-        logger = Logger.getLogger(ConnectionProvider.class.getName());
-
-        logger.info("constructing new ELBSSLConnectionProvider for " + address);
-
-        this.address = address;
-        this.socketProvider = new ELBConnectionProvider(address);
-        this.securityOptions = options;
-
-        sslPool = new ResourcePool<SocketAddress, ServerConnection>();
+        this(ELBAddressRefresher.forAddress((InetSocketAddress) address, new InetAddressResolver()), options);
     }
 
     public ELBSSLConnectionProvider(String host, int port, SecurityOptions options) throws NoSuchAlgorithmException,
@@ -48,157 +30,182 @@ public class ELBSSLConnectionProvider implements ConnectionProvider, SingleHostA
         this(new InetSocketAddress(host, port),options);
     }
 
+    public ELBSSLConnectionProvider(String host, int port, SecurityOptions options, ELBBalancePolicy balancePolicy)
+            throws NoSuchAlgorithmException, KeyManagementException {
+        this(ELBAddressRefresher.forAddress(new InetSocketAddress(host, port), new InetAddressResolver()), options,
+                balancePolicy);
+    }
+
+    public ELBSSLConnectionProvider(String host, int port, SecurityOptions options, ELBAddressResolver resolver)
+            throws NoSuchAlgorithmException, KeyManagementException {
+        this(host, port, options, resolver, ELBBalancePolicy.fromSystemProperty());
+    }
+
+    public ELBSSLConnectionProvider(String host, int port, SecurityOptions options, ELBAddressResolver resolver,
+                                    ELBBalancePolicy balancePolicy)
+            throws NoSuchAlgorithmException, KeyManagementException {
+        this(new ELBAddressRefresher(host, port, resolver), options, balancePolicy);
+    }
+
+    private ELBSSLConnectionProvider(ELBAddressRefresher refresher, SecurityOptions options) {
+        this(refresher, options, ELBBalancePolicy.fromSystemProperty());
+    }
+
+    /**
+     * Pools through an {@link ELBConnectionProvider} core whose connections are handshaken
+     * as they are opened, so TLS connections are pooled, limited, warmed and reaped exactly
+     * as plain ones are, with one pool and one set of settings.
+     */
+    private ELBSSLConnectionProvider(ELBAddressRefresher refresher, SecurityOptions options,
+                                     ELBBalancePolicy balancePolicy) {
+        this.securityOptions = options;
+        this.sessionCache = new ELBTlsSessionCache(options.getSslContext(), refresher.getHostName(),
+                refresher.getPort());
+        this.core = new ELBConnectionProvider(refresher, balancePolicy,
+                new ELBTlsDecorator(options, sessionCache, this), ELBSSLConnectionProvider.class.getSimpleName());
+    }
+
     @Override
     public boolean equals(Object o) {
         if(this == o) return true;
         if(o == null) return false;
         if(!(o instanceof ELBSSLConnectionProvider)) return false;
-        return address.equals(((ELBSSLConnectionProvider)o).getAddress()) &&
+        return getAddress().equals(((ELBSSLConnectionProvider)o).getAddress()) &&
                 securityOptions.equals(((ELBSSLConnectionProvider)o).getSecurityOptions());
     }
 
     @Override
     public int hashCode() {
-        return address.hashCode() + securityOptions.hashCode();
+        return getAddress().hashCode() + securityOptions.hashCode();
     }
 
     public InetSocketAddress getAddress() {
-        Instant start = Instant.now();
-        try {
-            // Get cached IP address for hostname
-            InetSocketAddress ia = (InetSocketAddress) address;
-            // Get current IP address for hostname
-            InetAddress inetAddress = InetAddress.getByName(ia.getHostName());
-            // If the IP addresses differ then update the cached addressed to reflect changes
-            if (!ia.getAddress().getHostAddress().equals(inetAddress.getHostAddress())) {
-                getLogger(logger).info("Cached InetAddress " + ia.getAddress().getHostAddress());
-                getLogger(logger).info("Current InetAddress " + inetAddress.getHostAddress());
-                getLogger(logger).info("Current and Cached IP Addresses do not match... updating...");
-                address = new InetSocketAddress(inetAddress.getHostAddress(), ia.getPort());
-                // Update the underlying Connectin Provider
-                socketProvider = new ELBConnectionProvider(address);
-                Instant end = Instant.now();
-                long delta = Duration.between(start, end).toMillis();
-                getLogger(logger).info("Update complete, time=" + delta + "m/s");
-            }
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        }
-
-        return (InetSocketAddress)((address instanceof InetSocketAddress) ? address : null);
+        return core.getAddress();
     }
 
     public SecurityOptions getSecurityOptions() {
         return securityOptions;
     }
 
-    public ServerConnection obtainConnection(Session session, Request request, Logger logger) throws IOException {
-        ServerConnection conn = sslPool.get(address);
+    /**
+     * @return connection, TLS and DNS counters and latencies, also published over JMX
+     */
+    public ELBStats getStats() {
+        return core.getStats();
+    }
 
-        if (conn != null) {
-            return conn;
-        }
+    ELBConnectionProvider getCore() {
+        return core;
+    }
 
-        conn = socketProvider.obtainConnection(session, request, logger);
+    /**
+     * @return the TLS session cache shared by connections to every ELB node
+     */
+    public ELBTlsSessionCache getSessionCache() {
+        return sessionCache;
+    }
 
-        return new ELBSSLConnection(conn, securityOptions,  this, logger);
+    public ELBBalancePolicy getBalancePolicy() {
+        return core.getBalancePolicy();
     }
 
-    public void returnConnection(ServerConnection connection, Logger logger) {
-        if (getLogger(logger).isLoggable(Level.FINE)) {
-            getLogger(logger).fine("returnConnection for " + address + ", expire=" + connection.getTimeoutMillis());
-        }
+    public ELBNode[] getNodes() {
+        return core.getNodes();
+    }
 
-        ByteChannel channel = connection.channel();
+    public long getDrainGraceMillis() {
+        return core.getDrainGraceMillis();
+    }
 
-        if ((channel == null) || (!(channel instanceof SslByteChannel))) {
-            getLogger(logger).fine("channel is not eligible for pooling, dropping");
-            try {
-                channel.close();
-            } catch (IOException e) {
-                getLogger(logger).fine("unable to close channel");
-            }
-            return;
-        }
+    public void setDrainGraceMillis(long drainGraceMillis) {
+        core.setDrainGraceMillis(drainGraceMillis);
+    }
 
-        SslByteChannel socketChannel = (SslByteChannel)channel;
-        if (!socketChannel.isOpen()) {
-            getLogger(logger).fine("channel has been closed, dropping");
-            return;
-        }
+    public long getReclaimedConnections() {
+        return core.getReclaimedConnections();
+    }
 
-        long timeoutMillis = connection.getTimeoutMillis();
+    public boolean isRebalancing() {
+        return core.isRebalancing();
+    }
 
-        if (timeoutMillis <= 0) {
-            getLogger(logger).fine("channel has already expired, closing");
+    /**
+     * Turns on closing returned connections to nodes that hold more than their share of
+     * connections, at a limited rate, so load spreads onto nodes added by a scale-out.
+     */
+    public void setRebalancing(boolean rebalancing) {
+        core.setRebalancing(rebalancing);
+    }
 
-            connection.close();
+    public ELBSocketProfile getSocketProfile() {
+        return core.getSocketProfile();
+    }
 
-            return;
-        }
+    /**
+     * Sets the socket options for new connections, unless a request picks its own with
+     * {@link ELBRequestOptions}.
+     */
+    public void setSocketProfile(ELBSocketProfile socketProfile) {
+        core.setSocketProfile(socketProfile);
+    }
 
-        long timeoutTime = connection.getTimeoutTime();
+    public boolean isSessionAffinity() {
+        return core.isSessionAffinity();
+    }
 
-        if (getLogger(logger).isLoggable(Level.FINE)) {
-            getLogger(logger).fine("returning socket to pool (" + address + "), timeout time=" + timeoutTime);
-        }
+    /**
+     * Turns on keeping every statement of a multi-statement transaction on the ELB node
+     * the transaction began on; on by default.
+     */
+    public void setSessionAffinity(boolean sessionAffinity) {
+        core.setSessionAffinity(sessionAffinity);
+    }
 
-        sslPool.put(address, connection, timeoutTime);
+    public int getPinnedSessions() {
+        return core.getPinnedSessions();
     }
 
-    public ConnectionErrorAction returnErrorConnection(ServerConnection connection, Throwable exception, Logger logger) {
-        getLogger(logger).log(Level.FINE, "error return", exception);
+    public int getMinIdle() {
+        return core.getMinIdle();
+    }
 
-        ByteChannel channel = connection.channel();
+    /**
+     * Sets the number of idle, already handshaken connections a background task keeps
+     * open to every ELB address. 0 turns warm-up off.
+     */
+    public void setMinIdle(int minIdle) {
+        core.setMinIdle(minIdle);
+    }
 
-        if (channel != null) {
-            if (channel.isOpen()) {
-                try {
-                    channel.close();
-                } catch (IOException e) {
-                    // do nothing, don't care anymore
-                }
-            } else {
-                getLogger(logger).warning("returned error connection is closed, retrying");
+    public ELBConnectionLimiter getConnectionLimiter() {
+        return core.getConnectionLimiter();
+    }
 
-                return (ConnectionErrorAction.RETRY);
-            }
-        }
+    public ServerConnection obtainConnection(Session session, Request request, Logger logger) throws IOException {
+        return core.obtainConnection(session, request, logger);
+    }
 
-        getLogger(logger).fine("returning FAIL action");
+    public void returnConnection(ServerConnection connection, Logger logger) {
+        core.returnConnection(connection, logger);
+    }
 
-        return ConnectionErrorAction.FAIL;
+    public ConnectionErrorAction returnErrorConnection(ServerConnection connection, Throwable exception, Logger logger) {
+        return core.returnErrorConnection(connection, exception, logger);
     }
 
     public void shutdown(Logger logger) {
-        getLogger(logger).fine("shutting down socket pool provider");
-
-        ServerConnection conn;
-
-        while ((conn = sslPool.get(address)) != null) {
-            conn.close();
-        }
+        core.shutdown(logger);
+    }
 
-        socketProvider.shutdown(logger);
+    public void closeExpired(long currTime) {
+        core.closeExpired(currTime);
     }
 
     // ---------------------------------------------------------------
 
     @Override
     public String toString() {
-        // TODO: Add more SSL info here?
-        return "ELBSSLConnection address=" + address.toString() + ", pool=" + sslPool.size(address) + "/"
-                + socketProvider.getPoolSize();
-    }
-
-    // --------------------------------------------------------
-
-    private Logger getLogger(Logger clientLogger) {
-        return ((clientLogger == null) ? this.logger : clientLogger);
-    }
-
-    public void closeExpired(long currTime) {
-        sslPool.closeExpired(currTime);
+        return "ELBSSLConnection " + core + ", " + sessionCache;
     }
 
     @Override
@@ -210,6 +217,6 @@ public class ELBSSLConnectionProvider implements ConnectionProvider, SingleHostA
     @Override
     public String getHostName() {
         InetSocketAddress inetAddress = getAddress();
-        return inetAddress == null ? null : inetAddress.getHostName();
+        return inetAddress == null ? null : inetAddress.getHostString();
     }
 }
@@ -0,0 +1,60 @@
+package com.marklogic.aws;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared daemon scheduler for the background work done by the ELB providers.
+ * <p>
+ * Work that blocks on the network, such as the connects and TLS handshakes of warm-up,
+ * goes to a separate executor, so it never holds up a DNS refresh or a reap.
+ */
+final class ELBScheduler {
+    private static final String THREADS_PROPERTY = "xcc.elb.scheduler.threads";
+    private static final String BLOCKING_THREADS_PROPERTY = "xcc.elb.scheduler.blocking.threads";
+    private static final int DEFAULT_THREADS = 2;
+    private static final int DEFAULT_BLOCKING_THREADS = 2;
+
+    private ELBScheduler() {
+    }
+
+    static ScheduledExecutorService get() {
+        return Holder.EXECUTOR;
+    }
+
+    /**
+     * @return the executor for background tasks that may block for as long as a connect
+     *         timeout; its threads exit when idle
+     */
+    static ExecutorService blocking() {
+        return BlockingHolder.EXECUTOR;
+    }
+
+    private static final class Holder {
+        static final ScheduledExecutorService EXECUTOR = create();
+
+        private static ScheduledExecutorService create() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                    Math.max(1, Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS).intValue()),
+                    new ELBThreadFactory("elb-scheduler-"));
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+
+    private static final class BlockingHolder {
+        static final ExecutorService EXECUTOR = create();
+
+        private static ExecutorService create() {
+            int threads = Math.max(1, Integer.getInteger(BLOCKING_THREADS_PROPERTY, DEFAULT_BLOCKING_THREADS).intValue());
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ELBThreadFactory("elb-blocking-"));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.marklogic.aws;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.marklogic.xcc.Session;
+
+/**
+ * Keeps the statements of a multi-statement transaction on the ELB node it began on.
+ * Stickiness is a cookie the ELB node sets on the transaction's first response, so a
+ * later statement sent to another node of the same ELB would reach a MarkLogic host
+ * that does not know the transaction.
+ * <p>
+ * A session is pinned to the node its first statement ran on, keyed by the session's
+ * identity, and the pin is dropped once XCC has seen the commit or rollback. Requests
+ * in auto-commit sessions never look at the table and spread as the balance policy
+ * picks. Pins are held weakly, so a session abandoned mid-transaction is forgotten once
+ * it is collected. The table is split into stripes by session, each with its own lock,
+ * so transactions on different sessions rarely wait on each other.
+ */
+class ELBSessionAffinity {
+    static final String ENABLED_PROPERTY = "xcc.elb.affinity";
+    // A power of two
+    private static final int STRIPES = 32;
+
+    private static final Logger LOGGER = Logger.getLogger(ELBSessionAffinity.class.getName());
+    private static final Object[] NO_ARGS = new Object[0];
+    // XCC's SessionImpl.getTxnID(), or null if this XCC has no such method
+    private static final Method TXN_ID = txnIdMethod();
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private volatile boolean enabled = Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<Session, ELBNode> pins = new WeakHashMap<Session, ELBNode>();
+    }
+
+    ELBSessionAffinity() {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            for (Stripe stripe : stripes) {
+                stripe.lock.lock();
+                try {
+                    stripe.pins.clear();
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the node the session's open transaction runs on, or null if the session is
+     *         not in one and the request can go to any node
+     */
+    ELBNode nodeFor(Session session) {
+        if (!isTransactional(session)) {
+            return null;
+        }
+        Stripe stripe = stripeOf(session);
+        ELBNode node;
+        stripe.lock.lock();
+        try {
+            node = stripe.pins.get(session);
+            if (node != null && (!inTransaction(session) || node.isRetired())) {
+                // The transaction ended, or its node left and it is lost anyway
+                stripe.pins.remove(session);
+                node = null;
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        return node;
+    }
+
+    /**
+     * Pins the session to the node its connection was opened to, if it is in a
+     * multi-statement transaction.
+     */
+    void pin(Session session, ELBNode node) {
+        if (node == null || !isTransactional(session)) {
+            return;
+        }
+        Stripe stripe = stripeOf(session);
+        stripe.lock.lock();
+        try {
+            stripe.pins.put(session, node);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * @return sessions currently pinned, including any not yet collected
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.pins.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripeOf(Session session) {
+        int hash = System.identityHashCode(session);
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    private boolean isTransactional(Session session) {
+        return enabled && session != null && !session.isAutoCommit() && !session.isClosed();
+    }
+
+    /**
+     * XCC keeps the id from the server's TxnID cookie while a transaction is open and
+     * clears it when the commit or rollback response comes back. It is only exposed on its
+     * internal SessionImpl, so it is looked up reflectively; for any other session, or an
+     * XCC without it, the transaction is taken to be open until the session goes back to
+     * auto-commit or is closed.
+     */
+    private static boolean inTransaction(Session session) {
+        if (TXN_ID == null || !TXN_ID.getDeclaringClass().isInstance(session)) {
+            return true;
+        }
+        try {
+            return TXN_ID.invoke(session, NO_ARGS) != null;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return true;
+        }
+    }
+
+    private static Method txnIdMethod() {
+        try {
+            return Class.forName("com.marklogic.xcc.impl.SessionImpl").getMethod("getTxnID");
+        } catch (ClassNotFoundException | NoSuchMethodException | SecurityException | LinkageError e) {
+            LOGGER.log(Level.INFO, "XCC does not expose SessionImpl.getTxnID(), transactions stay pinned until " +
+                    "their session leaves multi-statement mode: " + e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Socket options for the connections a provider opens. A provider has one profile for
+ * all its requests ({@link ELBConnectionProvider#setSocketProfile}), and a request or
+ * session can pick another with {@link ELBRequestOptions}.
+ * <p>
+ * Connections are pooled by profile, so a socket opened with bulk-load buffers is never
+ * handed to a latency-sensitive request, or the other way round. Profiles are immutable;
+ * create them once and reuse them, since each one a provider sees gets pools of its own.
+ * <p>
+ * TCP keepalive timing and TCP_QUICKACK are extended socket options, applied only where
+ * the JDK and operating system support them (Linux on Java 11 and later); elsewhere they
+ * are skipped.
+ */
+public final class ELBSocketProfile {
+    private static final int DEFAULT_SOCKET_BUFFER_SIZE = 128 * 1024;
+    private static final String SOCKET_SEND_BUFFER_PROPERTY = "xcc.socket.sendbuf";
+    private static final String SOCKET_RECV_BUFFER_PROPERTY = "xcc.socket.recvbuf";
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * Buffer sizes from xcc.socket.sendbuf and xcc.socket.recvbuf, Nagle off, keepalive
+     * with the operating system's timing: the options every connection had before
+     * profiles.
+     */
+    public static final ELBSocketProfile DEFAULT = new ELBSocketProfile("default",
+            Integer.getInteger(SOCKET_SEND_BUFFER_PROPERTY, DEFAULT_SOCKET_BUFFER_SIZE).intValue(),
+            Integer.getInteger(SOCKET_RECV_BUFFER_PROPERTY, DEFAULT_SOCKET_BUFFER_SIZE).intValue(),
+            true, true, 0, 0, 0, false);
+
+    /**
+     * 1 MB buffers for inserts and large result sets.
+     */
+    public static final ELBSocketProfile BULK = DEFAULT.withName("bulk").withBufferSizes(1024 * 1024, 1024 * 1024);
+
+    /**
+     * Small buffers, quick acks, and keepalive probes after 30 seconds idle, so a dead
+     * ELB path is noticed before a request is sent down it.
+     */
+    public static final ELBSocketProfile LOW_LATENCY = DEFAULT.withName("low-latency")
+            .withBufferSizes(64 * 1024, 64 * 1024).withQuickAck(true).withKeepAlive(30, 10, 3);
+
+    private final String name;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+    private final int keepAliveIdleSeconds;
+    private final int keepAliveIntervalSeconds;
+    private final int keepAliveCount;
+    private final boolean quickAck;
+    // Assigned on first use, so profiles built up with the with methods do not use up ids
+    private volatile int id = -1;
+
+    private ELBSocketProfile(String name, int sendBufferSize, int receiveBufferSize, boolean tcpNoDelay,
+                             boolean keepAlive, int keepAliveIdleSeconds, int keepAliveIntervalSeconds,
+                             int keepAliveCount, boolean quickAck) {
+        this.name = name;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+        this.keepAliveIdleSeconds = keepAliveIdleSeconds;
+        this.keepAliveIntervalSeconds = keepAliveIntervalSeconds;
+        this.keepAliveCount = keepAliveCount;
+        this.quickAck = quickAck;
+    }
+
+    public ELBSocketProfile withName(String name) {
+        return new ELBSocketProfile(name, sendBufferSize, receiveBufferSize, tcpNoDelay, keepAlive,
+                keepAliveIdleSeconds, keepAliveIntervalSeconds, keepAliveCount, quickAck);
+    }
+
+    /**
+     * @param sendBufferSize    SO_SNDBUF, or 0 for the operating system's default
+     * @param receiveBufferSize SO_RCVBUF, or 0 for the operating system's default
+     */
+    public ELBSocketProfile withBufferSizes(int sendBufferSize, int receiveBufferSize) {
+        return new ELBSocketProfile(name, sendBufferSize, receiveBufferSize, tcpNoDelay, keepAlive,
+                keepAliveIdleSeconds, keepAliveIntervalSeconds, keepAliveCount, quickAck);
+    }
+
+    public ELBSocketProfile withTcpNoDelay(boolean tcpNoDelay) {
+        return new ELBSocketProfile(name, sendBufferSize, receiveBufferSize, tcpNoDelay, keepAlive,
+                keepAliveIdleSeconds, keepAliveIntervalSeconds, keepAliveCount, quickAck);
+    }
+
+    /**
+     * Turns TCP keepalive on with the given timing; a value of 0 leaves that one to the
+     * operating system.
+     *
+     * @param idleSeconds     TCP_KEEPIDLE, idle time before the first probe
+     * @param intervalSeconds TCP_KEEPINTERVAL, time between probes
+     * @param count           TCP_KEEPCOUNT, unanswered probes before the connection is dropped
+     */
+    public ELBSocketProfile withKeepAlive(int idleSeconds, int intervalSeconds, int count) {
+        return new ELBSocketProfile(name, sendBufferSize, receiveBufferSize, tcpNoDelay, true, idleSeconds,
+                intervalSeconds, count, quickAck);
+    }
+
+    public ELBSocketProfile withoutKeepAlive() {
+        return new ELBSocketProfile(name, sendBufferSize, receiveBufferSize, tcpNoDelay, false, 0, 0, 0, quickAck);
+    }
+
+    /**
+     * Sets TCP_QUICKACK on new connections. Linux clears it again once the connection has
+     * been quiet for a while, so it helps most with the first exchanges on a socket.
+     */
+    public ELBSocketProfile withQuickAck(boolean quickAck) {
+        return new ELBSocketProfile(name, sendBufferSize, receiveBufferSize, tcpNoDelay, keepAlive,
+                keepAliveIdleSeconds, keepAliveIntervalSeconds, keepAliveCount, quickAck);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public int getKeepAliveIdleSeconds() {
+        return keepAliveIdleSeconds;
+    }
+
+    public int getKeepAliveIntervalSeconds() {
+        return keepAliveIntervalSeconds;
+    }
+
+    public int getKeepAliveCount() {
+        return keepAliveCount;
+    }
+
+    public boolean isQuickAck() {
+        return quickAck;
+    }
+
+    /**
+     * @return a small number unique to this profile, which idle pools are indexed by
+     */
+    int getId() {
+        int current = id;
+        if (current < 0) {
+            synchronized (this) {
+                if (id < 0) {
+                    id = nextId.getAndIncrement();
+                }
+                current = id;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Applies the profile to a newly connected socket.
+     */
+    void apply(SocketChannel channel) throws IOException {
+        if (sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, Integer.valueOf(sendBufferSize));
+        }
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, Integer.valueOf(receiveBufferSize));
+        }
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.valueOf(tcpNoDelay));
+        channel.setOption(StandardSocketOptions.SO_LINGER, Integer.valueOf(-1));
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, Boolean.valueOf(keepAlive));
+
+        if (keepAlive) {
+            setExtended(channel, "TCP_KEEPIDLE", keepAliveIdleSeconds);
+            setExtended(channel, "TCP_KEEPINTERVAL", keepAliveIntervalSeconds);
+            setExtended(channel, "TCP_KEEPCOUNT", keepAliveCount);
+        }
+        if (quickAck) {
+            setExtended(channel, "TCP_QUICKACK", Boolean.TRUE);
+        }
+    }
+
+    private static void setExtended(SocketChannel channel, String name, int value) throws IOException {
+        if (value > 0) {
+            setExtended(channel, name, Integer.valueOf(value));
+        }
+    }
+
+    /**
+     * Sets a jdk.net.ExtendedSocketOptions option by name, as it cannot be referred to
+     * when compiling for Java 8.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> void setExtended(SocketChannel channel, String name, T value) throws IOException {
+        for (SocketOption<?> option : channel.supportedOptions()) {
+            if (option.name().equals(name) && option.type() == value.getClass()) {
+                channel.setOption((SocketOption<T>) option, value);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " [sndbuf=" + sendBufferSize + ", rcvbuf=" + receiveBufferSize + ", nodelay=" + tcpNoDelay +
+                ", keepalive=" + (keepAlive ? keepAliveIdleSeconds + "/" + keepAliveIntervalSeconds + "/" +
+                keepAliveCount : "off") + ", quickack=" + quickAck + "]";
+    }
+}
@@ -0,0 +1,331 @@
+package com.marklogic.aws;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms for one provider's pooling core. The TLS provider has
+ * no stats of its own: its core counts the handshakes its connection decorator runs
+ * alongside the connects, pool hits and returns. Every event is also passed on to the
+ * {@link ELBMetrics} set with {@link #setMetrics(ELBMetrics)}.
+ * <p>
+ * Registered with the platform MBean server unless xcc.elb.jmx is false.
+ */
+public class ELBStats implements ELBMetrics, ELBStatsMXBean {
+    private static final String JMX_PROPERTY = "xcc.elb.jmx";
+    private static final String JMX_DOMAIN = "com.marklogic.aws";
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private final ELBConnectionLimiter limiter;
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder returned = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder errorReturns = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder rebalanced = new LongAdder();
+    private final LongAdder trips = new LongAdder();
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder dnsRefreshes = new LongAdder();
+    private final LongAdder dnsChanges = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final ELBLatencyHistogram connectLatency = new ELBLatencyHistogram();
+    private final ELBLatencyHistogram handshakeLatency = new ELBLatencyHistogram();
+    private final ELBLatencyHistogram dnsLatency = new ELBLatencyHistogram();
+    private volatile ELBMetrics metrics = ELBMetrics.NONE;
+    private volatile ELBPoolView pool;
+    private ObjectName objectName;
+
+    ELBStats(ELBConnectionLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * @param metrics receives every event from now on; null for none
+     */
+    public void setMetrics(ELBMetrics metrics) {
+        this.metrics = (metrics == null) ? ELBMetrics.NONE : metrics;
+    }
+
+    public ELBMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the MBean for a provider, whose pool supplies the per-address occupancy.
+     */
+    synchronized void register(String type, String hostName, int port, ELBPoolView pool, Logger logger) {
+        this.pool = pool;
+
+        if (!Boolean.parseBoolean(System.getProperty(JMX_PROPERTY, "true")) || objectName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" +
+                    ObjectName.quote(hostName + ":" + port) + ",id=" + ids.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException | RuntimeException e) {
+            logger.log(Level.WARNING, "unable to register MBean for " + hostName + ":" + port, e);
+        }
+    }
+
+    synchronized void unregister(Logger logger) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "unable to unregister MBean " + objectName, e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * @return the name the MBean is registered under, or null
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName;
+    }
+
+    // ---------------------------------------------------------------
+    // ELBMetrics
+
+    public void connectionOpened(InetSocketAddress address, long connectNanos) {
+        opened.increment();
+        connectLatency.record(connectNanos);
+        metrics.connectionOpened(address, connectNanos);
+    }
+
+    public void connectFailed(InetSocketAddress address) {
+        connectFailures.increment();
+        metrics.connectFailed(address);
+    }
+
+    public void connectionReused(InetSocketAddress address) {
+        reused.increment();
+        metrics.connectionReused(address);
+    }
+
+    public void connectionReturned(InetSocketAddress address) {
+        returned.increment();
+        metrics.connectionReturned(address);
+    }
+
+    public void connectionExpired(InetSocketAddress address) {
+        expired.increment();
+        metrics.connectionExpired(address);
+    }
+
+    public void connectionErrorReturned(InetSocketAddress address) {
+        errorReturns.increment();
+        metrics.connectionErrorReturned(address);
+    }
+
+    public void connectionStale(InetSocketAddress address) {
+        stale.increment();
+        metrics.connectionStale(address);
+    }
+
+    public void connectionRebalanced(InetSocketAddress address) {
+        rebalanced.increment();
+        metrics.connectionRebalanced(address);
+    }
+
+    public void nodeTripped(InetSocketAddress address, long backoffMillis) {
+        trips.increment();
+        metrics.nodeTripped(address, backoffMillis);
+    }
+
+    public void nodeRecovered(InetSocketAddress address) {
+        metrics.nodeRecovered(address);
+    }
+
+    public void tlsHandshake(InetSocketAddress address, long handshakeNanos, boolean resumed) {
+        handshakes.increment();
+        if (resumed) {
+            this.resumed.increment();
+        }
+        handshakeLatency.record(handshakeNanos);
+        metrics.tlsHandshake(address, handshakeNanos, resumed);
+    }
+
+    public void hedgeSent(InetSocketAddress address) {
+        hedges.increment();
+        metrics.hedgeSent(address);
+    }
+
+    public void hedgeWon(InetSocketAddress address) {
+        hedgeWins.increment();
+        metrics.hedgeWon(address);
+    }
+
+    public void dnsRefreshed(String hostName, long refreshNanos, boolean changed) {
+        dnsRefreshes.increment();
+        if (changed) {
+            dnsChanges.increment();
+        }
+        dnsLatency.record(refreshNanos);
+        metrics.dnsRefreshed(hostName, refreshNanos, changed);
+    }
+
+    // ---------------------------------------------------------------
+    // ELBStatsMXBean
+
+    public long getConnectionsOpened() {
+        return opened.sum();
+    }
+
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    public long getConnectionsReused() {
+        return reused.sum();
+    }
+
+    public long getConnectionsReturned() {
+        return returned.sum();
+    }
+
+    public long getConnectionsExpired() {
+        return expired.sum();
+    }
+
+    public long getErrorReturns() {
+        return errorReturns.sum();
+    }
+
+    public long getStaleConnections() {
+        return stale.sum();
+    }
+
+    public long getRebalancedConnections() {
+        return rebalanced.sum();
+    }
+
+    public long getCircuitTrips() {
+        return trips.sum();
+    }
+
+    public double getReuseRatio() {
+        long reused = this.reused.sum();
+        long total = reused + opened.sum();
+
+        return (total == 0) ? 0 : (double) reused / total;
+    }
+
+    public ELBLatencyHistogram getConnectLatency() {
+        return connectLatency;
+    }
+
+    public long getTlsHandshakes() {
+        return handshakes.sum();
+    }
+
+    public long getTlsResumedHandshakes() {
+        return resumed.sum();
+    }
+
+    public ELBLatencyHistogram getTlsHandshakeLatency() {
+        return handshakeLatency;
+    }
+
+    public long getDnsRefreshes() {
+        return dnsRefreshes.sum();
+    }
+
+    public long getDnsChanges() {
+        return dnsChanges.sum();
+    }
+
+    public ELBLatencyHistogram getDnsRefreshLatency() {
+        return dnsLatency;
+    }
+
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    public int getInUse() {
+        return limiter.getInUse();
+    }
+
+    public int getOpenConnections() {
+        return limiter.getOpenConnections();
+    }
+
+    public int getWaiting() {
+        return limiter.getWaiting();
+    }
+
+    public Map<String, Long> getIdleByAddress() {
+        Map<String, Long> idle = new TreeMap<String, Long>();
+        ELBPoolView pool = this.pool;
+
+        if (pool != null) {
+            for (ELBNode node : pool.getNodes()) {
+                idle.put(addressKey(node), Long.valueOf(pool.idleCount(node)));
+            }
+        }
+        return idle;
+    }
+
+    public Map<String, Integer> getInUseByAddress() {
+        Map<String, Integer> inUse = new TreeMap<String, Integer>();
+        ELBPoolView pool = this.pool;
+
+        if (pool != null) {
+            for (ELBNode node : pool.getNodes()) {
+                inUse.put(addressKey(node), Integer.valueOf(node.getOutstanding()));
+            }
+        }
+        return inUse;
+    }
+
+    public Map<String, Integer> getOpenByAddress() {
+        Map<String, Integer> open = new TreeMap<String, Integer>();
+        ELBPoolView pool = this.pool;
+
+        if (pool != null) {
+            for (ELBNode node : pool.getNodes()) {
+                open.put(addressKey(node), Integer.valueOf(node.getOpenConnections()));
+            }
+        }
+        return open;
+    }
+
+    private static String addressKey(ELBNode node) {
+        InetSocketAddress address = node.getAddress();
+        return address.getAddress().getHostAddress() + ":" + address.getPort();
+    }
+
+    @Override
+    public String toString() {
+        return "opened=" + getConnectionsOpened() + ", reused=" + getConnectionsReused() + ", returned=" +
+                getConnectionsReturned() + ", expired=" + getConnectionsExpired() + ", errors=" + getErrorReturns() +
+                ", stale=" + getStaleConnections() + ", rebalanced=" + getRebalancedConnections() + ", trips=" + getCircuitTrips() +
+                ", connect=[" + connectLatency + "], tls=[" + handshakeLatency + "]";
+    }
+}
@@ -0,0 +1,86 @@
+package com.marklogic.aws;
+
+import java.util.Map;
+
+/**
+ * JMX view of an ELB connection provider, registered as
+ * {@code com.marklogic.aws:type=<provider class>,name="<host>:<port>",id=<n>}.
+ */
+public interface ELBStatsMXBean {
+    long getConnectionsOpened();
+
+    long getConnectFailures();
+
+    long getConnectionsReused();
+
+    long getConnectionsReturned();
+
+    long getConnectionsExpired();
+
+    long getErrorReturns();
+
+    /**
+     * @return pooled connections found dead when borrowed, typically dropped by the ELB
+     */
+    long getStaleConnections();
+
+    /**
+     * @return connections closed on return to move load onto less busy nodes
+     */
+    long getRebalancedConnections();
+
+    /**
+     * @return how many times a node was taken out of rotation by its circuit breaker
+     */
+    long getCircuitTrips();
+
+    /**
+     * @return the fraction of connections handed out that came from the pool
+     */
+    double getReuseRatio();
+
+    ELBLatencyHistogram getConnectLatency();
+
+    long getTlsHandshakes();
+
+    long getTlsResumedHandshakes();
+
+    ELBLatencyHistogram getTlsHandshakeLatency();
+
+    long getDnsRefreshes();
+
+    long getDnsChanges();
+
+    ELBLatencyHistogram getDnsRefreshLatency();
+
+    /**
+     * @return reads sent again to another node by {@link ELBHedgedReads}
+     */
+    long getHedges();
+
+    /**
+     * @return hedged copies that answered before the original
+     */
+    long getHedgeWins();
+
+    int getInUse();
+
+    int getOpenConnections();
+
+    int getWaiting();
+
+    /**
+     * @return pooled idle connections by node address
+     */
+    Map<String, Long> getIdleByAddress();
+
+    /**
+     * @return connections handed out to requests by node address
+     */
+    Map<String, Integer> getInUseByAddress();
+
+    /**
+     * @return open sockets, pooled or in use, by node address; shows skew across nodes
+     */
+    Map<String, Integer> getOpenByAddress();
+}
@@ -0,0 +1,30 @@
+package com.marklogic.aws;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Daemon threads named with a prefix and a count, for the executors the ELB classes
+ * share, so none of them keeps the JVM running.
+ */
+final class ELBThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    ELBThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return the name for the next thread, for callers that start threads themselves
+     */
+    String nextName() {
+        return prefix + count.incrementAndGet();
+    }
+
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, nextName());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,33 @@
+package com.marklogic.aws;
+
+/**
+ * Thread facilities that depend on the Java release. This is the Java 8 version; the
+ * multi-release JAR also carries a Java 21 version, from src/main/java21, that knows
+ * about virtual threads.
+ */
+final class ELBThreads {
+    private ELBThreads() {
+    }
+
+    /**
+     * @return true if {@link #startVirtual} can start virtual threads
+     */
+    static boolean hasVirtualThreads() {
+        return false;
+    }
+
+    /**
+     * @return true if the thread is virtual, so blocking it must park rather than pin
+     *         its carrier
+     */
+    static boolean isVirtual(Thread thread) {
+        return false;
+    }
+
+    /**
+     * Runs the task on a new virtual thread.
+     */
+    static Thread startVirtual(String name, Runnable task) {
+        throw new UnsupportedOperationException("virtual threads need Java 21 or later");
+    }
+}
@@ -0,0 +1,343 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS over a connected socket whose handshake is complete, in place of XCC's
+ * SslByteChannel, which keeps four heap buffers for the life of the connection and
+ * copies everything through them.
+ * <p>
+ * The network and application buffers are direct, sized from the TLS session, and come
+ * from a {@link ELBBufferPool} on the first read or write; {@link #releaseBuffers()}
+ * hands them back while the connection is idle in the pool. Writes are wrapped straight
+ * from the caller's buffer, and a read into a buffer with room for a whole record is
+ * unwrapped straight into it, so large responses are not copied a second time.
+ * <p>
+ * Like the connection it belongs to, a channel is used by one thread at a time.
+ */
+class ELBTlsChannel implements ByteChannel {
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ELBBufferPool pool;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    // Decrypted data not yet read, in read mode; only used for reads too small for a record
+    private ByteBuffer appIn;
+    private int timeoutMillis;
+    private Selector selector;
+    private boolean closed;
+
+    ELBTlsChannel(SocketChannel channel, SSLEngine engine, ELBBufferPool pool) {
+        this.channel = channel;
+        this.engine = engine;
+        this.pool = pool;
+    }
+
+    /**
+     * @param timeoutMillis how long a read may wait for the server, or 0 to wait forever
+     */
+    void setTimeout(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    int getTimeout() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @return true if data the server sent has been read off the socket and not yet
+     *         handed to the caller
+     */
+    boolean hasBuffered() {
+        return (netIn != null && netIn.position() > 0) || (appIn != null && appIn.hasRemaining());
+    }
+
+    /**
+     * Gives the buffers back to the pool, unless data is still buffered; they are taken
+     * again on the next read or write.
+     *
+     * @return true if the channel now holds no buffers
+     */
+    boolean releaseBuffers() {
+        if (hasBuffered()) {
+            return false;
+        }
+        netIn = release(netIn);
+        netOut = release(netOut);
+        appIn = release(appIn);
+        return true;
+    }
+
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (appIn != null && appIn.hasRemaining()) {
+            return copyOut(dst);
+        }
+        if (netIn == null) {
+            netIn = pool.acquire(engine.getSession().getPacketBufferSize());
+        }
+
+        // Set once the caller's buffer has overflowed, so the rest goes through appIn
+        boolean overflowed = false;
+        while (true) {
+            boolean direct = !overflowed && dst.remaining() >= engine.getSession().getApplicationBufferSize();
+            ByteBuffer target = direct ? dst : appBuffer();
+
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, target);
+            } finally {
+                netIn.compact();
+            }
+            if (!direct) {
+                appIn.flip();
+            }
+
+            switch (result.getStatus()) {
+                case OK:
+                    handshake(result.getHandshakeStatus());
+                    if (result.bytesProduced() > 0) {
+                        return direct ? result.bytesProduced() : copyOut(dst);
+                    }
+                    // A session ticket or other handshake record; look for data after it
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    if (readNet() < 0) {
+                        return -1;
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    // Only the application buffer can overflow, if the session's size grew:
+                    // retry through appIn, made larger if it was the one that overflowed
+                    if (direct) {
+                        overflowed = true;
+                    } else {
+                        appIn.compact();
+                        appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                        appIn.flip();
+                    }
+                    break;
+                case CLOSED:
+                    return -1;
+                default:
+                    throw new SSLException("unexpected unwrap status " + result.getStatus());
+            }
+        }
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        int written = 0;
+
+        while (src.hasRemaining()) {
+            SSLEngineResult result = wrap(src);
+            switch (result.getStatus()) {
+                case OK:
+                    written += result.bytesConsumed();
+                    flush();
+                    handshake(result.getHandshakeStatus());
+                    break;
+                case BUFFER_OVERFLOW:
+                    netOut.compact();
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    break;
+                case CLOSED:
+                    throw new SSLException("TLS connection closed by the server");
+                default:
+                    throw new SSLException("unexpected wrap status " + result.getStatus());
+            }
+        }
+        return written;
+    }
+
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify, if the socket will take it without waiting, and closes the
+     * socket.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            engine.closeOutbound();
+            if (channel.isOpen()) {
+                if (wrap(ByteBuffer.allocate(0)).getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    channel.configureBlocking(false);
+                    channel.write(netOut);
+                }
+            }
+        } catch (IOException e) {
+            // the socket is being closed anyway
+        } finally {
+            if (selector != null) {
+                selector.close();
+            }
+            netIn = release(netIn);
+            netOut = release(netOut);
+            appIn = release(appIn);
+            channel.close();
+        }
+    }
+
+    /**
+     * Wraps into netOut, leaving it ready to be written.
+     */
+    private SSLEngineResult wrap(ByteBuffer src) throws SSLException {
+        if (netOut == null) {
+            netOut = pool.acquire(engine.getSession().getPacketBufferSize());
+        }
+        netOut.clear();
+        try {
+            return engine.wrap(src, netOut);
+        } finally {
+            netOut.flip();
+        }
+    }
+
+    private void flush() throws IOException {
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+    }
+
+    /**
+     * Completes what the engine needs after a post-handshake message, such as a TLS 1.3
+     * key update.
+     */
+    private void handshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    SSLEngineResult result = wrap(ByteBuffer.allocate(0));
+                    flush();
+                    status = result.getHandshakeStatus();
+                    break;
+                default:
+                    // NEED_UNWRAP is met by the next read
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Reads what the server has sent into netIn, waiting no longer than the timeout.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    private int readNet() throws IOException {
+        if (timeoutMillis <= 0) {
+            return channel.read(netIn);
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        channel.configureBlocking(false);
+        try {
+            int read;
+            while ((read = channel.read(netIn)) == 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new SocketTimeoutException("Timeout waiting for read (" + timeoutMillis + " milliseconds)");
+                }
+                if (selector == null) {
+                    selector = Selector.open();
+                }
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                try {
+                    selector.select(wait);
+                } finally {
+                    key.cancel();
+                    // Deregisters the channel, so it can be put back into blocking mode
+                    selector.selectNow();
+                }
+            }
+            return read;
+        } finally {
+            channel.configureBlocking(true);
+        }
+    }
+
+    /**
+     * @return the application buffer, in write mode
+     */
+    private ByteBuffer appBuffer() {
+        if (appIn == null) {
+            appIn = pool.acquire(engine.getSession().getApplicationBufferSize());
+        } else {
+            appIn.compact();
+        }
+        return appIn;
+    }
+
+    private int copyOut(ByteBuffer dst) {
+        int count = Math.min(dst.remaining(), appIn.remaining());
+        if (count == appIn.remaining()) {
+            dst.put(appIn);
+        } else {
+            int limit = appIn.limit();
+            appIn.limit(appIn.position() + count);
+            dst.put(appIn);
+            appIn.limit(limit);
+        }
+        return count;
+    }
+
+    /**
+     * @param buffer a buffer in write mode
+     * @param size   the session's packet or application buffer size
+     * @return a pooled buffer with room for the size after what the old one held, or of
+     *         the next size class if that is no larger, holding what the old one did, in
+     *         write mode
+     */
+    private ByteBuffer grow(ByteBuffer buffer, int size) throws SSLException {
+        int needed = Math.max(buffer.position() + size, buffer.capacity() + 1);
+        if (needed > ELBBufferPool.MAX_CAPACITY) {
+            throw new SSLException("TLS record does not fit in " + buffer.capacity() + " bytes");
+        }
+        ByteBuffer larger = pool.acquire(needed);
+        buffer.flip();
+        larger.put(buffer);
+        pool.release(buffer);
+        return larger;
+    }
+
+    private ByteBuffer release(ByteBuffer buffer) {
+        if (buffer != null) {
+            pool.release(buffer);
+        }
+        return null;
+    }
+}
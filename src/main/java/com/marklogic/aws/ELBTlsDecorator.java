@@ -0,0 +1,31 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import com.marklogic.xcc.SecurityOptions;
+import com.marklogic.xcc.spi.ConnectionProvider;
+import com.marklogic.xcc.spi.ServerConnection;
+
+/**
+ * Runs the TLS handshake on each new socket, resuming sessions from a cache shared by
+ * every ELB node.
+ */
+class ELBTlsDecorator implements ELBConnectionDecorator {
+    private final SecurityOptions securityOptions;
+    private final ELBTlsSessionCache sessionCache;
+    private final ConnectionProvider provider;
+
+    /**
+     * @param provider the provider the TLS connections report as theirs
+     */
+    ELBTlsDecorator(SecurityOptions securityOptions, ELBTlsSessionCache sessionCache, ConnectionProvider provider) {
+        this.securityOptions = securityOptions;
+        this.sessionCache = sessionCache;
+        this.provider = provider;
+    }
+
+    public ServerConnection decorate(ELBConnection connection, ELBStats stats, Logger logger) throws IOException {
+        return new ELBSSLConnection(connection, securityOptions, sessionCache, stats, provider, logger);
+    }
+}
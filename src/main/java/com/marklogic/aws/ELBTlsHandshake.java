@@ -0,0 +1,127 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * Drives a client TLS handshake to completion over a blocking socket, so a connection
+ * can be handshaken before it is handed to the TLS channel and then pooled.
+ */
+final class ELBTlsHandshake {
+    private static final int RECORD_HEADER_LENGTH = 5;
+
+    private ELBTlsHandshake() {
+    }
+
+    static void run(SocketChannel channel, SSLEngine engine, int timeoutMillis) throws IOException {
+        SSLSession session = engine.getSession();
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        ByteBuffer netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        ByteBuffer appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+
+        Socket socket = channel.socket();
+        int previousTimeout = socket.getSoTimeout();
+        // Reads through the socket stream, unlike channel reads, honour SO_TIMEOUT
+        InputStream in = socket.getInputStream();
+        socket.setSoTimeout(timeoutMillis);
+
+        try {
+            engine.beginHandshake();
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+
+            while (status != SSLEngineResult.HandshakeStatus.FINISHED &&
+                    status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                switch (status) {
+                    case NEED_WRAP:
+                        netOut.clear();
+                        SSLEngineResult wrapped = engine.wrap(empty, netOut);
+                        netOut.flip();
+                        while (netOut.hasRemaining()) {
+                            channel.write(netOut);
+                        }
+                        if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            throw new SSLException("TLS engine closed during handshake");
+                        }
+                        status = wrapped.getHandshakeStatus();
+                        break;
+                    case NEED_UNWRAP:
+                        SSLEngineResult unwrapped = unwrap(engine, in, netIn, appIn);
+                        status = unwrapped.getHandshakeStatus();
+                        break;
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        status = engine.getHandshakeStatus();
+                        break;
+                    default:
+                        throw new SSLException("unexpected handshake status " + status);
+                }
+            }
+
+            // The TLS channel starts with empty buffers, so nothing read ahead may be left over;
+            // reading a record at a time makes sure there is none
+            if (netIn.position() > 0 || appIn.position() > 0) {
+                throw new SSLException("unexpected data after TLS handshake");
+            }
+        } finally {
+            socket.setSoTimeout(previousTimeout);
+        }
+    }
+
+    private static SSLEngineResult unwrap(SSLEngine engine, InputStream in, ByteBuffer netIn, ByteBuffer appIn)
+            throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+
+            switch (result.getStatus()) {
+                case OK:
+                    return result;
+                case BUFFER_UNDERFLOW:
+                    readRecord(in, netIn);
+                    break;
+                case CLOSED:
+                    throw new SSLException("TLS engine closed during handshake");
+                default:
+                    throw new SSLException("unexpected unwrap status " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Reads no further than the end of the TLS record being assembled in netIn, so bytes
+     * the server sends after the handshake stay in the socket for the TLS channel.
+     */
+    private static void readRecord(InputStream in, ByteBuffer netIn) throws IOException {
+        int have = netIn.position();
+        int want;
+
+        if (have < RECORD_HEADER_LENGTH) {
+            want = RECORD_HEADER_LENGTH - have;
+        } else {
+            int length = ((netIn.get(3) & 0xff) << 8) | (netIn.get(4) & 0xff);
+            want = RECORD_HEADER_LENGTH + length - have;
+        }
+        if (want <= 0 || want > netIn.remaining()) {
+            throw new SSLException("malformed TLS record during handshake");
+        }
+
+        int read = in.read(netIn.array(), netIn.arrayOffset() + have, want);
+        if (read < 0) {
+            throw new SSLException("connection closed during TLS handshake");
+        }
+        netIn.position(have + read);
+    }
+}
@@ -0,0 +1,105 @@
+package com.marklogic.aws;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TLS session resumption for an ELB. The JDK caches client sessions by the peer host
+ * and port an engine is created for, so every engine is created for the logical ELB
+ * hostname and port, never a resolved IP, and a session negotiated with one ELB node
+ * (session ID or TLS 1.3 ticket) is offered to all of them.
+ * <p>
+ * Size and TTL are applied to the SSL context's client session cache, which is shared
+ * by everything using that context. They are left at the JDK defaults unless set.
+ */
+public class ELBTlsSessionCache {
+    private static final String CACHE_SIZE_PROPERTY = "xcc.elb.tls.session.cache.size";
+    private static final String SESSION_TTL_PROPERTY = "xcc.elb.tls.session.ttl";
+
+    private final SSLContext context;
+    private final String hostName;
+    private final int port;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ELBTlsSessionCache(SSLContext context, String hostName, int port) {
+        this.context = context;
+        this.hostName = hostName;
+        this.port = port;
+
+        Integer size = Integer.getInteger(CACHE_SIZE_PROPERTY);
+        if (size != null) {
+            setSize(size.intValue());
+        }
+        Integer ttl = Integer.getInteger(SESSION_TTL_PROPERTY);
+        if (ttl != null) {
+            setTtlSeconds(ttl.intValue());
+        }
+    }
+
+    /**
+     * @param size the most sessions the context caches, 0 for no limit
+     */
+    public void setSize(int size) {
+        context.getClientSessionContext().setSessionCacheSize(size);
+    }
+
+    public int getSize() {
+        return context.getClientSessionContext().getSessionCacheSize();
+    }
+
+    /**
+     * @param seconds how long a cached session may be resumed, 0 for no limit
+     */
+    public void setTtlSeconds(int seconds) {
+        context.getClientSessionContext().setSessionTimeout(seconds);
+    }
+
+    public int getTtlSeconds() {
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        return sessionContext.getSessionTimeout();
+    }
+
+    SSLEngine createEngine() {
+        return context.createSSLEngine(hostName, port);
+    }
+
+    /**
+     * Counts a completed handshake as a hit if it resumed a cached session. A resumed
+     * session keeps the creation time of the session it resumes, so it predates the
+     * handshake.
+     *
+     * @return true if the session was resumed
+     */
+    boolean handshakeCompleted(SSLSession session, long handshakeStartMillis) {
+        if (session.getCreationTime() < handshakeStartMillis) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    /**
+     * @return handshakes that resumed a cached session
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return handshakes that had to negotiate a new session
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "sessions " + hostName + ":" + port + " hits=" + getHits() + ", misses=" + getMisses();
+    }
+}
@@ -0,0 +1,50 @@
+package com.marklogic.aws;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+
+/**
+ * {@link ELBAddressResolver} backed by the JVM resolver. The TTL reported is the
+ * JVM positive lookup cache TTL, since there is no point asking more often than that.
+ */
+public class InetAddressResolver implements ELBAddressResolver {
+    private static final String CACHE_TTL_SECURITY_PROPERTY = "networkaddress.cache.ttl";
+    private static final String CACHE_TTL_SYSTEM_PROPERTY = "sun.net.inetaddr.ttl";
+    private static final long DEFAULT_CACHE_TTL_SECONDS = 30;
+
+    private final long ttlMillis;
+
+    public InetAddressResolver() {
+        long ttl = parseTtl(Security.getProperty(CACHE_TTL_SECURITY_PROPERTY));
+
+        if (ttl == Long.MIN_VALUE) {
+            ttl = parseTtl(System.getProperty(CACHE_TTL_SYSTEM_PROPERTY));
+        }
+        if (ttl == Long.MIN_VALUE) {
+            ttl = DEFAULT_CACHE_TTL_SECONDS;
+        }
+
+        // A negative TTL means cache forever, which tells us nothing useful
+        this.ttlMillis = (ttl < 0) ? -1 : ttl * 1000;
+    }
+
+    public InetAddress[] resolve(String hostName) throws UnknownHostException {
+        return InetAddress.getAllByName(hostName);
+    }
+
+    public long getTtlMillis(String hostName) {
+        return ttlMillis;
+    }
+
+    private static long parseTtl(String value) {
+        if (value == null) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package com.marklogic.load;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.marklogic.aws.ELBBalancePolicy;
+import com.marklogic.aws.ELBConnectionProvider;
+import com.marklogic.aws.ELBRequestOptions;
+import com.marklogic.aws.ELBSSLConnectionProvider;
+import com.marklogic.aws.ELBSocketProfile;
+import com.marklogic.xcc.Content;
+import com.marklogic.xcc.ContentCreateOptions;
+import com.marklogic.xcc.ContentFactory;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.exceptions.RequestException;
+import com.marklogic.xcc.exceptions.RetryableQueryException;
+import com.marklogic.xcc.exceptions.ServerConnectionException;
+import com.marklogic.xcc.spi.ConnectionProvider;
+
+/**
+ * Streams documents into MarkLogic through a content source, a batch of documents per
+ * insertContent call, from several sessions in parallel.
+ * <p>
+ * The thread calling {@link #load} reads the source and queues batches; the queue is
+ * bounded and the caller blocks while it is full, so however large the load, no more
+ * than the queue capacity plus one batch per session is held in memory. While it waits
+ * it checks that the sessions are still running: if one dies, with an Error or because
+ * its session could not be opened, the load is stopped and its exception thrown.
+ * <p>
+ * Each session gets its connections from the content source's provider, and the load is
+ * only spread across the ELB's addresses if the provider spreads it. An
+ * {@link ELBConnectionProvider} or {@link ELBSSLConnectionProvider} built with
+ * {@link ELBBalancePolicy#FIRST_ADDRESS}, the default unless xcc.elb.balance says
+ * otherwise, only ever connects to one address, so the loader refuses it; build the
+ * provider with {@link ELBBalancePolicy#ROUND_ROBIN} or another spreading policy.
+ * <p>
+ * A batch is inserted in one transaction, so it succeeds or fails whole. XCC already
+ * resends a request the provider answers with RETRY; a batch that still fails with a
+ * {@link ServerConnectionException} or a {@link RetryableQueryException} is sent again,
+ * up to the retry limit with a doubling backoff, provided all its content can be
+ * rewound. Batches that fail for good are logged and counted, and the load goes on.
+ *
+ * <pre>
+ * ContentSource contentSource = ContentSourceFactory.newContentSource(
+ *         new ELBConnectionProvider(host, port, ELBBalancePolicy.ROUND_ROBIN), user, password, database);
+ * BulkLoader loader = new BulkLoader(contentSource);
+ * loader.setSessions(16);
+ * loader.setBatchSize(200);
+ * BulkLoader.Result result = loader.load(BulkLoader.lines(in, "/ingest/", ContentCreateOptions.newJsonInstance()));
+ * </pre>
+ */
+public class BulkLoader {
+    private static final Logger logger = Logger.getLogger(BulkLoader.class.getName());
+
+    // Queued once per session to tell it the source is exhausted
+    private static final Content[] END = new Content[0];
+    // How often a caller waiting for room in the queue checks that the sessions are alive
+    private static final long PUT_POLL_MILLIS = 100;
+
+    private final ContentSource contentSource;
+    private int sessions = 8;
+    private int batchSize = 100;
+    private int queueCapacity = 16;
+    private int maxRetries = 3;
+    private long retryBackoffMillis = 100;
+    private ELBSocketProfile socketProfile = ELBSocketProfile.BULK;
+
+    /**
+     * Counts for one {@link #load}.
+     */
+    public static final class Result {
+        private final LongAdder documents = new LongAdder();
+        private final LongAdder batches = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder failedDocuments = new LongAdder();
+        private final LongAdder failedBatches = new LongAdder();
+        private final AtomicReference<Exception> firstFailure = new AtomicReference<Exception>();
+        private long blockedNanos;
+        private long elapsedNanos;
+
+        /**
+         * @return documents inserted
+         */
+        public long getDocuments() {
+            return documents.sum();
+        }
+
+        public long getBatches() {
+            return batches.sum();
+        }
+
+        /**
+         * @return batches sent again after a retryable failure
+         */
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        public long getFailedDocuments() {
+            return failedDocuments.sum();
+        }
+
+        public long getFailedBatches() {
+            return failedBatches.sum();
+        }
+
+        /**
+         * @return the exception the first batch that failed for good gave up with, or null
+         */
+        public Exception getFirstFailure() {
+            return firstFailure.get();
+        }
+
+        /**
+         * @return time the caller spent waiting for room in the queue, that is, how far
+         *         the source was held back to the rate the sessions could insert at
+         */
+        public long getBlockedNanos() {
+            return blockedNanos;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("documents=%d in %.1fs, %.0f/s, batches=%d, retries=%d, failed=%d documents " +
+                            "in %d batches, blocked=%.1fs", getDocuments(), elapsedNanos / 1e9,
+                    (elapsedNanos > 0) ? getDocuments() * 1e9 / elapsedNanos : 0.0, getBatches(), getRetries(),
+                    getFailedDocuments(), getFailedBatches(), blockedNanos / 1e9);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the content source's provider is an ELB provider
+     *                                  that sends everything to the first address
+     */
+    public BulkLoader(ContentSource contentSource) {
+        if (balancePolicyOf(contentSource.getConnectionProvider()) == ELBBalancePolicy.FIRST_ADDRESS) {
+            throw new IllegalArgumentException("the provider sends every session to the first ELB address; " +
+                    "build it with ELBBalancePolicy.ROUND_ROBIN or another policy that spreads them");
+        }
+        this.contentSource = contentSource;
+    }
+
+    /**
+     * @return the balance policy of an ELB provider, or null for any other provider
+     */
+    private static ELBBalancePolicy balancePolicyOf(ConnectionProvider provider) {
+        if (provider instanceof ELBConnectionProvider) {
+            return ((ELBConnectionProvider) provider).getBalancePolicy();
+        }
+        if (provider instanceof ELBSSLConnectionProvider) {
+            return ((ELBSSLConnectionProvider) provider).getBalancePolicy();
+        }
+        return null;
+    }
+
+    public int getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @param sessions sessions inserting in parallel, each on its own thread
+     */
+    public void setSessions(int sessions) {
+        if (sessions < 1) {
+            throw new IllegalArgumentException("sessions");
+        }
+        this.sessions = sessions;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize documents sent in each insertContent call
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @param queueCapacity batches read ahead of the sessions before the caller blocks
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    public long getRetryBackoffMillis() {
+        return retryBackoffMillis;
+    }
+
+    /**
+     * @param retryBackoffMillis wait before the first retry of a batch, doubled for each
+     *                           retry after it
+     */
+    public void setRetryBackoffMillis(long retryBackoffMillis) {
+        this.retryBackoffMillis = Math.max(0, retryBackoffMillis);
+    }
+
+    public ELBSocketProfile getSocketProfile() {
+        return socketProfile;
+    }
+
+    /**
+     * @param socketProfile socket options for the sessions' connections, or null for the
+     *                      provider's; {@link ELBSocketProfile#BULK} by default
+     */
+    public void setSocketProfile(ELBSocketProfile socketProfile) {
+        this.socketProfile = socketProfile;
+    }
+
+    /**
+     * Inserts every document from the source and returns once all have been inserted or
+     * have failed for good. If the source throws, a session dies, or the caller is
+     * interrupted, the sessions are stopped and the first exception is passed on; batches
+     * already inserted stay inserted.
+     */
+    public Result load(Iterator<? extends Content> documents) throws InterruptedException {
+        final Result result = new Result();
+        final BlockingQueue<Content[]> queue = new ArrayBlockingQueue<Content[]>(queueCapacity);
+        final AtomicReference<Throwable> died = new AtomicReference<Throwable>();
+        long start = System.nanoTime();
+
+        ExecutorService workers = newWorkers();
+        for (int i = 0; i < sessions; i++) {
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        work(queue, result);
+                    } catch (RuntimeException | Error e) {
+                        died.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+
+        try {
+            Content[] batch = new Content[batchSize];
+            int size = 0;
+
+            while (documents.hasNext()) {
+                batch[size++] = documents.next();
+                if (size == batch.length) {
+                    enqueue(queue, batch, died, result);
+                    batch = new Content[batchSize];
+                    size = 0;
+                }
+            }
+            if (size > 0) {
+                enqueue(queue, Arrays.copyOf(batch, size), died, result);
+            }
+            for (int i = 0; i < sessions; i++) {
+                put(queue, END, died);
+            }
+        } catch (InterruptedException | RuntimeException | Error e) {
+            workers.shutdownNow();
+            throw e;
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        // A session that died after the last batch was queued may have taken batches with it
+        rethrow(died);
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void enqueue(BlockingQueue<Content[]> queue, Content[] batch, AtomicReference<Throwable> died,
+                                Result result) throws InterruptedException {
+        rethrow(died);
+        if (!queue.offer(batch)) {
+            long blocked = System.nanoTime();
+            put(queue, batch, died);
+            result.blockedNanos += System.nanoTime() - blocked;
+        }
+    }
+
+    /**
+     * Waits for room in the queue, checking the sessions between waits; with no session
+     * left to take from the queue, a plain put would wait forever.
+     */
+    private static void put(BlockingQueue<Content[]> queue, Content[] batch, AtomicReference<Throwable> died)
+            throws InterruptedException {
+        while (!queue.offer(batch, PUT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            rethrow(died);
+        }
+    }
+
+    /**
+     * Throws what the first session to die died of, if one has.
+     */
+    private static void rethrow(AtomicReference<Throwable> died) {
+        Throwable e = died.get();
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        if (e != null) {
+            throw (RuntimeException) e;
+        }
+    }
+
+    private void work(BlockingQueue<Content[]> queue, Result result) {
+        Session session = contentSource.newSession();
+        try {
+            if (socketProfile != null) {
+                ELBRequestOptions options = new ELBRequestOptions();
+                options.setSocketProfile(socketProfile);
+                session.setDefaultRequestOptions(options);
+            }
+            Content[] batch;
+            while ((batch = queue.take()) != END) {
+                insert(session, batch, result);
+            }
+        } catch (InterruptedException e) {
+            // the load was abandoned
+        } finally {
+            session.close();
+        }
+    }
+
+    private void insert(Session session, Content[] batch, Result result) throws InterruptedException {
+        try {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    session.insertContent(batch);
+                    result.documents.add(batch.length);
+                    result.batches.increment();
+                    return;
+                } catch (RequestException e) {
+                    if (attempt >= maxRetries || !isRetryable(e) || !rewind(batch)) {
+                        failed(batch, attempt + 1, e, result);
+                        return;
+                    }
+                    result.retries.increment();
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine("retrying batch starting at " + batch[0].getUri() + ": " + e);
+                    }
+                    Thread.sleep(retryBackoffMillis << Math.min(attempt, 16));
+                } catch (RuntimeException e) {
+                    // Not retried, but the session carries on, so the queue keeps draining
+                    failed(batch, attempt + 1, e, result);
+                    return;
+                }
+            }
+        } finally {
+            for (Content content : batch) {
+                content.close();
+            }
+        }
+    }
+
+    private static void failed(Content[] batch, int attempts, Exception e, Result result) {
+        result.failedDocuments.add(batch.length);
+        result.failedBatches.increment();
+        result.firstFailure.compareAndSet(null, e);
+        logger.log(Level.WARNING, "unable to insert batch of " + batch.length + " documents starting at " +
+                batch[0].getUri() + " after " + attempts + " attempts", e);
+    }
+
+    /**
+     * @return true for a failure that left nothing inserted and may succeed if sent again
+     */
+    private static boolean isRetryable(RequestException e) {
+        return (e instanceof ServerConnectionException) || (e instanceof RetryableQueryException);
+    }
+
+    private static boolean rewind(Content[] batch) {
+        for (Content content : batch) {
+            if (!content.isRewindable()) {
+                return false;
+            }
+        }
+        try {
+            for (Content content : batch) {
+                content.rewind();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private ExecutorService newWorkers() {
+        return Executors.newFixedThreadPool(sessions, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "bulk-loader-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Reads one document per line, such as JSON lines, without reading ahead of the
+     * loader. Blank lines are skipped; documents are named uriPrefix followed by the line
+     * number. A read failure is thrown from the iterator as an {@link UncheckedIOException}.
+     */
+    public static Iterator<Content> lines(InputStream in, final String uriPrefix,
+                                         final ContentCreateOptions options) {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+
+        return new Iterator<Content>() {
+            private String next;
+            private long lineNumber;
+
+            public boolean hasNext() {
+                while (next == null) {
+                    try {
+                        next = reader.readLine();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (next == null) {
+                        return false;
+                    }
+                    lineNumber++;
+                    if (next.trim().isEmpty()) {
+                        next = null;
+                    }
+                }
+                return true;
+            }
+
+            public Content next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Content content = ContentFactory.newContent(uriPrefix + lineNumber, next, options);
+                next = null;
+                return content;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
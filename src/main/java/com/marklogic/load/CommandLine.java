@@ -0,0 +1,91 @@
+package com.marklogic.load;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.marklogic.sim.SimScript;
+
+/**
+ * {@code --name value} and {@code --flag} options, declared as rows of name, default
+ * (null for a flag) and description.
+ */
+public class CommandLine {
+    private final String usage;
+    private final String[][] options;
+    private final Map<String, String> values = new HashMap<String, String>();
+
+    public CommandLine(String usage, String[][] options) {
+        this.usage = usage;
+        this.options = options;
+        for (String[] option : options) {
+            if (option[1] != null) {
+                values.put(option[0], option[1]);
+            }
+        }
+    }
+
+    /**
+     * @return false if the arguments are not valid or ask for help
+     */
+    public boolean parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                return false;
+            }
+            String name = args[i].substring(2);
+            String[] option = find(name);
+            if (option == null) {
+                return false;
+            }
+            if (option[1] == null) {
+                values.put(name, "true");
+            } else if (i + 1 < args.length) {
+                values.put(name, args[++i]);
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean has(String name) {
+        return values.containsKey(name);
+    }
+
+    public String get(String name) {
+        return values.get(name);
+    }
+
+    public int getInt(String name) {
+        return Integer.parseInt(values.get(name));
+    }
+
+    public double getDouble(String name) {
+        return Double.parseDouble(values.get(name));
+    }
+
+    /**
+     * @return a duration option, which takes an ms, s or m suffix
+     */
+    public long getMillis(String name) {
+        return SimScript.parseMillis(values.get(name));
+    }
+
+    public void printUsage(PrintStream out) {
+        out.println("usage: " + usage);
+        for (String[] option : options) {
+            out.println(String.format("  --%-18s %s%s", option[0] + (option[1] == null ? "" : " <value>"), option[2],
+                    (option[1] == null || option[1].isEmpty()) ? "" : " (" + option[1] + ")"));
+        }
+    }
+
+    private String[] find(String name) {
+        for (String[] option : options) {
+            if (option[0].equals(name)) {
+                return option;
+            }
+        }
+        return null;
+    }
+}
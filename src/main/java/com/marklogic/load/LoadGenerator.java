@@ -0,0 +1,426 @@
+package com.marklogic.load;
+
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import com.marklogic.aws.ELBConnectionLimiter;
+import com.marklogic.aws.ELBConnectionProvider;
+import com.marklogic.aws.ELBHedgedReads;
+import com.marklogic.aws.ELBRequestOptions;
+import com.marklogic.aws.ELBSSLConnectionProvider;
+import com.marklogic.aws.ELBSocketProfile;
+import com.marklogic.aws.ELBStats;
+import com.marklogic.xcc.ContentCreateOptions;
+import com.marklogic.xcc.ContentFactory;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.spi.ConnectionProvider;
+
+/**
+ * Puts a mix of adhoc queries, multi-statement transactions and document inserts
+ * through a content source from a pool of worker threads.
+ * <p>
+ * With a target rate the schedule is open loop: request n is due at start + n / rate
+ * whether or not earlier requests have finished, and its latency is measured from when
+ * it was due, so a stalled pool shows up in the percentiles instead of silently
+ * lowering the request rate (coordinated omission). Without a rate every worker sends
+ * requests back to back and latency is service time.
+ */
+public class LoadGenerator {
+    public enum Operation {
+        /** One adhoc query. */
+        QUERY,
+        /** Several document inserts in an update transaction, then a commit. */
+        TRANSACTION,
+        /** One document sent with insertContent. */
+        INSERT
+    }
+
+    private static final String DOCUMENT = "<doc>load generator</doc>";
+
+    private final ContentSource contentSource;
+    private final ConnectionProvider provider;
+    private final Operation[] operations = Operation.values();
+    private final int[] weights = new int[operations.length];
+    private final Recorder recorder = new Recorder(3);
+    private final Histogram total = new Histogram(3);
+    private final LongAdder[] completed = new LongAdder[operations.length];
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+    private final AtomicLong documents = new AtomicLong();
+    private int threads = 8;
+    private boolean virtualThreads;
+    private double rate;
+    private long durationMillis = 60000;
+    private long reportMillis = 1000;
+    private String query = "1 + 1";
+    private int documentsPerTransaction = 2;
+    private String uriPrefix = "/load/";
+    private PrintStream out = System.out;
+    private ELBRequestOptions queryOptions;
+    private ELBRequestOptions updateOptions;
+    private ELBHedgedReads hedgedReads;
+
+    public LoadGenerator(ContentSource contentSource, ConnectionProvider provider) {
+        this.contentSource = contentSource;
+        this.provider = provider;
+        for (int i = 0; i < operations.length; i++) {
+            completed[i] = new LongAdder();
+        }
+        weights[Operation.QUERY.ordinal()] = 1;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @param virtualThreads run each worker on a virtual thread; needs Java 21
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * @param rate requests per second across all workers, 0 to send back to back
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public void setReportMillis(long reportMillis) {
+        this.reportMillis = reportMillis;
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    public void setDocumentsPerTransaction(int documentsPerTransaction) {
+        this.documentsPerTransaction = documentsPerTransaction;
+    }
+
+    public void setUriPrefix(String uriPrefix) {
+        this.uriPrefix = uriPrefix;
+    }
+
+    /**
+     * @param socketProfiles run queries on {@link ELBSocketProfile#LOW_LATENCY} sockets and
+     *                       transactions and inserts on {@link ELBSocketProfile#BULK} ones,
+     *                       instead of the provider's profile for everything
+     */
+    public void setSocketProfiles(boolean socketProfiles) {
+        if (socketProfiles) {
+            queryOptions = new ELBRequestOptions();
+            queryOptions.setSocketProfile(ELBSocketProfile.LOW_LATENCY);
+            updateOptions = new ELBRequestOptions();
+            updateOptions.setSocketProfile(ELBSocketProfile.BULK);
+        } else {
+            queryOptions = null;
+            updateOptions = null;
+        }
+    }
+
+    /**
+     * @param hedgedReads runs query operations, or null to run them in the worker's session
+     */
+    public void setHedgedReads(ELBHedgedReads hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    public void setOut(PrintStream out) {
+        this.out = out;
+    }
+
+    public void setWeight(Operation operation, int weight) {
+        weights[operation.ordinal()] = Math.max(0, weight);
+    }
+
+    /**
+     * @param mix weights as a comma separated list, e.g. "query=70,transaction=20,insert=10";
+     *            operations left out get no requests
+     */
+    public void setMix(String mix) {
+        for (Operation operation : operations) {
+            weights[operation.ordinal()] = 0;
+        }
+        for (String entry : mix.split(",")) {
+            String[] pair = entry.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("expected <operation>=<weight> in '" + entry + "'");
+            }
+            setWeight(Operation.valueOf(pair[0].trim().toUpperCase(Locale.ROOT)), Integer.parseInt(pair[1].trim()));
+        }
+    }
+
+    /**
+     * @return the latency of every request so far, in nanoseconds
+     */
+    public Histogram getTotal() {
+        return total;
+    }
+
+    public long getErrors() {
+        long count = 0;
+        for (LongAdder adder : errors.values()) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Runs the load for the configured duration, printing a report line every interval
+     * and a summary at the end.
+     */
+    public void run() throws InterruptedException {
+        int weightTotal = 0;
+        for (int weight : weights) {
+            weightTotal += weight;
+        }
+        if (weightTotal == 0) {
+            throw new IllegalArgumentException("the operation mix is empty");
+        }
+
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        final long intervalNanos = (rate > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+        final AtomicLong tickets = new AtomicLong();
+        final int weightSum = weightTotal;
+
+        out.println(String.format("%d %s workers, %s, mix %s, %ds", threads, virtualThreads ? "virtual" : "platform",
+                (rate > 0) ? String.format("%.0f req/s open loop", rate) : "closed loop", mixString(),
+                TimeUnit.MILLISECONDS.toSeconds(durationMillis)));
+
+        ExecutorService workers = newWorkers();
+        for (int i = 0; i < threads; i++) {
+            workers.execute(new Runnable() {
+                public void run() {
+                    work(start, end, intervalNanos, tickets, weightSum);
+                }
+            });
+        }
+        workers.shutdown();
+
+        Histogram interval = null;
+        long lastReport = start;
+        while (!workers.awaitTermination(reportMillis, TimeUnit.MILLISECONDS)) {
+            long now = System.nanoTime();
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            report(now - start, now - lastReport, interval);
+            lastReport = now;
+        }
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+
+        summary(System.nanoTime() - start);
+    }
+
+    private void work(long start, long end, long intervalNanos, AtomicLong tickets, int weightSum) {
+        while (true) {
+            long due;
+            if (intervalNanos > 0) {
+                due = start + tickets.getAndIncrement() * intervalNanos;
+                if (due >= end) {
+                    return;
+                }
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                due = System.nanoTime();
+                if (due >= end) {
+                    return;
+                }
+            }
+
+            Operation operation = pick(weightSum);
+            try {
+                execute(operation);
+                recorder.recordValue(System.nanoTime() - due);
+                completed[operation.ordinal()].increment();
+            } catch (Exception e) {
+                String type = e.getClass().getSimpleName();
+                LongAdder count = errors.get(type);
+                if (count == null) {
+                    errors.putIfAbsent(type, new LongAdder());
+                    count = errors.get(type);
+                }
+                count.increment();
+            }
+        }
+    }
+
+    private Operation pick(int weightSum) {
+        int roll = ThreadLocalRandom.current().nextInt(weightSum);
+        for (int i = 0; i < weights.length; i++) {
+            if ((roll -= weights[i]) < 0) {
+                return operations[i];
+            }
+        }
+        return Operation.QUERY;
+    }
+
+    private void execute(Operation operation) throws Exception {
+        Session session = contentSource.newSession();
+        try {
+            if (queryOptions != null) {
+                session.setDefaultRequestOptions((operation == Operation.QUERY) ? queryOptions : updateOptions);
+            }
+            switch (operation) {
+                case QUERY:
+                    if (hedgedReads != null) {
+                        hedgedReads.submit(query, queryOptions).close();
+                    } else {
+                        session.submitRequest(session.newAdhocQuery(query)).close();
+                    }
+                    break;
+                case TRANSACTION:
+                    session.setTransactionMode(Session.TransactionMode.UPDATE);
+                    for (int i = 0; i < documentsPerTransaction; i++) {
+                        session.submitRequest(session.newAdhocQuery("xdmp:document-insert('" + nextUri() + "', " +
+                                DOCUMENT + ")")).close();
+                    }
+                    session.commit();
+                    break;
+                case INSERT:
+                    session.insertContent(ContentFactory.newContent(nextUri(), DOCUMENT,
+                            ContentCreateOptions.newXmlInstance()));
+                    break;
+                default:
+                    throw new IllegalStateException(operation.toString());
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private String nextUri() {
+        return uriPrefix + documents.incrementAndGet() + ".xml";
+    }
+
+    private ExecutorService newWorkers() {
+        if (virtualThreads) {
+            try {
+                // Looked up reflectively so the driver still builds and runs on Java 8
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException("virtual threads need Java 21 or later", e);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("unable to create virtual threads", e);
+            }
+        }
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "load-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private void report(long elapsedNanos, long intervalNanos, Histogram interval) {
+        out.println(String.format("%7.1fs  ops/s=%7.0f  p50=%8.2fms  p99=%8.2fms  p999=%8.2fms  max=%8.2fms" +
+                        "  errors=%d  %s",
+                elapsedNanos / 1e9, interval.getTotalCount() * 1e9 / intervalNanos, millis(interval, 50),
+                millis(interval, 99), millis(interval, 99.9), interval.getMaxValue() / 1e6, getErrors(),
+                describePool(provider)));
+    }
+
+    private void summary(long elapsedNanos) {
+        out.println();
+        out.println(String.format("requests=%d in %.1fs, %.0f/s (query=%d, transaction=%d, insert=%d)",
+                total.getTotalCount(), elapsedNanos / 1e9, total.getTotalCount() * 1e9 / elapsedNanos,
+                completed[Operation.QUERY.ordinal()].sum(), completed[Operation.TRANSACTION.ordinal()].sum(),
+                completed[Operation.INSERT.ordinal()].sum()));
+        out.println(String.format("latency mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+                total.getMean() / 1e6, millis(total, 50), millis(total, 90), millis(total, 99), millis(total, 99.9),
+                total.getMaxValue() / 1e6));
+        out.println("errors=" + getErrors() + " " + new TreeMap<String, LongAdder>(errors));
+        out.println("provider " + describePool(provider));
+        ELBStats stats = statsOf(provider);
+        if (stats != null) {
+            out.println("stats " + stats);
+        }
+        if (hedgedReads != null) {
+            out.println("hedging " + hedgedReads);
+        }
+    }
+
+    private String mixString() {
+        StringBuilder mix = new StringBuilder();
+        for (int i = 0; i < operations.length; i++) {
+            if (weights[i] > 0) {
+                mix.append(mix.length() == 0 ? "" : ",").append(operations[i].toString().toLowerCase(Locale.ROOT))
+                        .append('=').append(weights[i]);
+            }
+        }
+        return mix.toString();
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1e6;
+    }
+
+    /**
+     * @return the stats of an ELB provider, or null for any other provider
+     */
+    public static ELBStats statsOf(ConnectionProvider provider) {
+        if (provider instanceof ELBSSLConnectionProvider) {
+            return ((ELBSSLConnectionProvider) provider).getStats();
+        }
+        if (provider instanceof ELBConnectionProvider) {
+            return ((ELBConnectionProvider) provider).getStats();
+        }
+        return null;
+    }
+
+    /**
+     * @return a one-line summary of an ELB provider's nodes and connections
+     */
+    public static String describePool(ConnectionProvider provider) {
+        ELBConnectionLimiter limiter;
+        long reclaimed;
+        int nodes;
+
+        if (provider instanceof ELBSSLConnectionProvider) {
+            ELBSSLConnectionProvider ssl = (ELBSSLConnectionProvider) provider;
+            limiter = ssl.getConnectionLimiter();
+            reclaimed = ssl.getReclaimedConnections();
+            nodes = ssl.getNodes().length;
+        } else if (provider instanceof ELBConnectionProvider) {
+            ELBConnectionProvider plain = (ELBConnectionProvider) provider;
+            limiter = plain.getConnectionLimiter();
+            reclaimed = plain.getReclaimedConnections();
+            nodes = plain.getNodes().length;
+        } else {
+            return String.valueOf(provider);
+        }
+        ELBStats stats = statsOf(provider);
+        return String.format("nodes=%d open=%d inUse=%d waiting=%d reclaimed=%d reuse=%.1f%%", nodes,
+                limiter.getOpenConnections(), limiter.getInUse(), limiter.getWaiting(), reclaimed,
+                stats.getReuseRatio() * 100);
+    }
+}
@@ -0,0 +1,66 @@
+package com.marklogic.sim;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.marklogic.aws.ELBAddressResolver;
+
+/**
+ * Fake DNS for a {@link SimElb}: answers every lookup with the addresses of the
+ * simulated nodes currently in service, in the order they joined.
+ */
+public class SimDns implements ELBAddressResolver {
+    private final List<InetAddress> addresses = new ArrayList<InetAddress>();
+    private volatile long ttlMillis = -1;
+    private volatile int generation;
+
+    public synchronized InetAddress[] resolve(String hostName) throws UnknownHostException {
+        if (addresses.isEmpty()) {
+            throw new UnknownHostException(hostName + ": no simulated ELB nodes");
+        }
+        return addresses.toArray(new InetAddress[addresses.size()]);
+    }
+
+    @Override
+    public long getTtlMillis(String hostName) {
+        return ttlMillis;
+    }
+
+    /**
+     * @param ttlMillis the TTL reported to the provider's refresher, or -1 for none
+     */
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * @return how many times the answer has changed
+     */
+    public int getGeneration() {
+        return generation;
+    }
+
+    public synchronized List<InetAddress> getAddresses() {
+        return new ArrayList<InetAddress>(addresses);
+    }
+
+    synchronized void add(InetAddress address) {
+        if (!addresses.contains(address)) {
+            addresses.add(address);
+            generation++;
+        }
+    }
+
+    synchronized void remove(InetAddress address) {
+        if (addresses.remove(address)) {
+            generation++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SimDns " + addresses + " generation=" + generation;
+    }
+}
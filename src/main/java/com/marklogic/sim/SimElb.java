@@ -0,0 +1,385 @@
+package com.marklogic.sim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * An in-process stand-in for an AWS ELB in front of MarkLogic: a set of {@link SimNode}
+ * listeners on loopback addresses 127.0.0.x sharing one port, and a {@link SimDns}
+ * resolver that answers with the nodes in service. Nodes can be added, removed and
+ * rotated while a provider is using them, by hand or from a {@link SimScript}.
+ * <p>
+ * Transactions are shared by all nodes, like the cluster behind a real ELB, but a
+ * statement that reaches a node other than the one its transaction began on is counted
+ * as misrouted: through a real ELB it would lose the stickiness that keeps the
+ * transaction on its MarkLogic host. Extra
+ * loopback addresses work out of the box on Linux; elsewhere they may need to be
+ * configured first.
+ */
+public class SimElb implements Closeable {
+    private static final Logger logger = Logger.getLogger(SimElb.class.getName());
+    private static final String KEYSTORE = "loopback.p12";
+    private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+
+    private final SSLContext sslContext;
+    private final SimDns dns = new SimDns();
+    private final SimFaults faults = new SimFaults();
+    private final List<SimNode> nodes = new ArrayList<SimNode>();
+    private final List<SimNode> leaving = new ArrayList<SimNode>();
+    private final Map<String, InetAddress> transactions = new ConcurrentHashMap<String, InetAddress>();
+    private final AtomicLong transactionIds = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private final AtomicLong misrouted = new AtomicLong();
+    private final AtomicLong inserts = new AtomicLong();
+    private final ScheduledExecutorService scheduler;
+    private int port;
+    private int nextAddress = 1;
+    private volatile int keepAliveSeconds = 30;
+    private volatile int idleTimeoutMillis = 60000;
+
+    /**
+     * @param port the port every node listens on, 0 to pick a free one
+     * @param sslContext the server context for TLS, or null for plain connections
+     */
+    public SimElb(int port, SSLContext sslContext) {
+        this.port = port;
+        this.sslContext = sslContext;
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "sim-elb");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return a server context with the self-signed localhost certificate shipped with
+     *         the simulator
+     */
+    public static SSLContext serverContext() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = SimElb.class.getResourceAsStream(KEYSTORE);
+        if (in == null) {
+            throw new IOException(KEYSTORE + " not found on the class path");
+        }
+        try {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * @return a client context that trusts any certificate, for talking to the simulator
+     */
+    public static SSLContext clientContext() throws GeneralSecurityException {
+        TrustManager trustAll = new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] { trustAll }, null);
+        return context;
+    }
+
+    public SimDns getDns() {
+        return dns;
+    }
+
+    /**
+     * @return the fault settings shared by every node that has not been given its own
+     */
+    public SimFaults getFaults() {
+        return faults;
+    }
+
+    public synchronized int getPort() {
+        return port;
+    }
+
+    public boolean isTls() {
+        return sslContext != null;
+    }
+
+    public int getKeepAliveSeconds() {
+        return keepAliveSeconds;
+    }
+
+    /**
+     * @param keepAliveSeconds the keep-alive timeout advertised to XCC
+     */
+    public void setKeepAliveSeconds(int keepAliveSeconds) {
+        this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * @param idleTimeoutMillis how long a node keeps an idle connection open, like the
+     *            ELB idle timeout; 0 for ever
+     */
+    public void setIdleTimeoutMillis(int idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * @return the nodes in service, in the order they joined
+     */
+    public synchronized List<SimNode> getNodes() {
+        return new ArrayList<SimNode>(nodes);
+    }
+
+    /**
+     * Starts a node on the next unused loopback address and adds it to DNS.
+     */
+    public synchronized SimNode addNode() throws IOException {
+        InetAddress address = nextAddress();
+        SimNode node = new SimNode(this, address, port, sslContext);
+        port = node.getPort();
+        nodes.add(node);
+        dns.add(address);
+
+        logger.info("simulated ELB node up " + node);
+        return node;
+    }
+
+    /**
+     * Takes the oldest node out of DNS and shuts it down once the drain time has passed.
+     *
+     * @return the node removed, or null if there are none
+     */
+    public synchronized SimNode removeNode(long drainMillis) {
+        return nodes.isEmpty() ? null : removeNode(nodes.get(0), drainMillis);
+    }
+
+    /**
+     * Takes a node out of DNS at once, and after drainMillis stops its listener and resets
+     * its remaining connections, as AWS does when it replaces an ELB node.
+     */
+    public synchronized SimNode removeNode(final SimNode node, long drainMillis) {
+        if (!nodes.remove(node)) {
+            return null;
+        }
+        dns.remove(node.getAddress());
+        leaving.add(node);
+        logger.info("simulated ELB node leaving DNS " + node);
+
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                logger.info("simulated ELB node down " + node);
+                node.shutdown();
+                synchronized (SimElb.this) {
+                    leaving.remove(node);
+                }
+            }
+        }, drainMillis, TimeUnit.MILLISECONDS);
+        return node;
+    }
+
+    /**
+     * Stops the oldest node at once but leaves it in DNS for drainMillis, as when an ELB
+     * node fails before DNS catches up: connections are reset and new ones refused.
+     *
+     * @return the node stopped, or null if there are none
+     */
+    public synchronized SimNode killNode(long drainMillis) {
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        final SimNode node = nodes.remove(0);
+        leaving.add(node);
+        logger.info("simulated ELB node failed " + node);
+        node.shutdown();
+
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                logger.info("simulated ELB node leaving DNS " + node);
+                synchronized (SimElb.this) {
+                    dns.remove(node.getAddress());
+                    leaving.remove(node);
+                }
+            }
+        }, drainMillis, TimeUnit.MILLISECONDS);
+        return node;
+    }
+
+    /**
+     * Replaces the oldest node with one on a new address.
+     */
+    public synchronized SimNode rotate(long drainMillis) throws IOException {
+        SimNode added = addNode();
+        if (nodes.size() > 1) {
+            removeNode(drainMillis);
+        }
+        return added;
+    }
+
+    /**
+     * Runs a script's DNS changes on the simulator's scheduler, timed from now.
+     */
+    public void schedule(SimScript script, final long drainMillis) {
+        for (final SimScript.Event event : script.getEvents()) {
+            Runnable action = new Runnable() {
+                public void run() {
+                    try {
+                        apply(event.getAction(), drainMillis);
+                    } catch (IOException e) {
+                        logger.warning("simulated ELB " + event + " failed: " + e);
+                    }
+                }
+            };
+            if (event.getPeriodMillis() > 0) {
+                scheduler.scheduleAtFixedRate(action, event.getAtMillis(), event.getPeriodMillis(),
+                        TimeUnit.MILLISECONDS);
+            } else {
+                scheduler.schedule(action, event.getAtMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    void apply(SimScript.Action action, long drainMillis) throws IOException {
+        switch (action) {
+            case ADD:
+                addNode();
+                break;
+            case REMOVE:
+                removeNode(drainMillis);
+                break;
+            case ROTATE:
+                rotate(drainMillis);
+                break;
+            case KILL:
+                killNode(drainMillis);
+                break;
+            default:
+                throw new IllegalArgumentException(action.toString());
+        }
+    }
+
+    private InetAddress nextAddress() throws UnknownHostException {
+        if (nextAddress > 254) {
+            throw new UnknownHostException("out of simulated ELB addresses");
+        }
+        return InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) nextAddress++ });
+    }
+
+    String beginTransaction(InetAddress node) {
+        String id = Long.toString(transactionIds.incrementAndGet());
+        transactions.put(id, node);
+        return id;
+    }
+
+    /**
+     * Notes a statement in a transaction arriving at a node.
+     */
+    void statementReceived(String id, InetAddress node) {
+        InetAddress began = transactions.get(id);
+        if (began != null && !began.equals(node)) {
+            misrouted.incrementAndGet();
+        }
+    }
+
+    void endTransaction(String id, boolean commit) {
+        if (id != null && transactions.remove(id) != null) {
+            (commit ? commits : rollbacks).incrementAndGet();
+        }
+    }
+
+    void requestReceived() {
+        requests.incrementAndGet();
+    }
+
+    void documentInserted() {
+        inserts.incrementAndGet();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getRollbacks() {
+        return rollbacks.get();
+    }
+
+    public long getInserts() {
+        return inserts.get();
+    }
+
+    /**
+     * @return statements, commits and rollbacks that reached a node other than the one
+     *         their transaction began on
+     */
+    public long getMisroutedStatements() {
+        return misrouted.get();
+    }
+
+    public int getOpenTransactions() {
+        return transactions.size();
+    }
+
+    /**
+     * Shuts every node down at once.
+     */
+    public synchronized void close() {
+        scheduler.shutdownNow();
+        for (SimNode node : nodes) {
+            node.shutdown();
+            dns.remove(node.getAddress());
+        }
+        nodes.clear();
+        for (SimNode node : leaving) {
+            node.shutdown();
+        }
+        leaving.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SimElb port=" + port + (isTls() ? " tls" : "") + ", nodes=" + nodes + ", requests=" + requests +
+                ", commits=" + commits + ", rollbacks=" + rollbacks + ", misrouted=" + misrouted + ", inserts=" +
+                inserts;
+    }
+}
@@ -0,0 +1,101 @@
+package com.marklogic.sim;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Fault injection settings for a simulated ELB node. Each request the node receives
+ * draws at most one fault, with the given probabilities.
+ */
+public class SimFaults {
+    public enum Fault {
+        /** Answer normally. */
+        NONE,
+        /** Abort the connection with a TCP RST instead of answering. */
+        RESET,
+        /** Shut down the server's side of the connection instead of answering. */
+        HALF_CLOSE,
+        /** Read the request slowly and answer after a delay. */
+        SLOW
+    }
+
+    private volatile double resetRate;
+    private volatile double halfCloseRate;
+    private volatile double slowRate;
+    private volatile long slowMillis = 200;
+    private volatile long latencyMillis;
+
+    public double getResetRate() {
+        return resetRate;
+    }
+
+    public void setResetRate(double resetRate) {
+        this.resetRate = resetRate;
+    }
+
+    public double getHalfCloseRate() {
+        return halfCloseRate;
+    }
+
+    public void setHalfCloseRate(double halfCloseRate) {
+        this.halfCloseRate = halfCloseRate;
+    }
+
+    public double getSlowRate() {
+        return slowRate;
+    }
+
+    public void setSlowRate(double slowRate) {
+        this.slowRate = slowRate;
+    }
+
+    public long getSlowMillis() {
+        return slowMillis;
+    }
+
+    public void setSlowMillis(long slowMillis) {
+        this.slowMillis = slowMillis;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * Delays every answer by this long, like the round trip to an ELB in another zone.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Copies every setting from another instance.
+     */
+    public void copy(SimFaults other) {
+        resetRate = other.resetRate;
+        halfCloseRate = other.halfCloseRate;
+        slowRate = other.slowRate;
+        slowMillis = other.slowMillis;
+        latencyMillis = other.latencyMillis;
+    }
+
+    Fault draw() {
+        double roll = ThreadLocalRandom.current().nextDouble();
+
+        if ((roll -= resetRate) < 0) {
+            return Fault.RESET;
+        }
+        if ((roll -= halfCloseRate) < 0) {
+            return Fault.HALF_CLOSE;
+        }
+        if ((roll -= slowRate) < 0) {
+            return Fault.SLOW;
+        }
+        return Fault.NONE;
+    }
+
+    @Override
+    public String toString() {
+        return "reset=" + resetRate + ", halfClose=" + halfCloseRate + ", slow=" + slowRate + "/" + slowMillis + "ms" +
+                ((latencyMillis > 0) ? ", latency=" + latencyMillis + "ms" : "");
+    }
+}
@@ -0,0 +1,247 @@
+package com.marklogic.sim;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.marklogic.aws.ELBBalancePolicy;
+import com.marklogic.aws.ELBConnectionProvider;
+import com.marklogic.aws.ELBLatencyHistogram;
+import com.marklogic.aws.ELBSSLConnectionProvider;
+import com.marklogic.load.CommandLine;
+import com.marklogic.load.LoadGenerator;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.ContentSourceFactory;
+import com.marklogic.xcc.ResultSequence;
+import com.marklogic.xcc.SecurityOptions;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.spi.ConnectionProvider;
+
+/**
+ * Drives a {@link SimElb} through an ELB connection provider from several threads while
+ * the simulated ELB changes its addresses and injects faults, reporting throughput,
+ * latency percentiles and errors as it goes.
+ *
+ * <pre>
+ * java -cp ... com.marklogic.sim.SimLoadDriver --nodes 3 --threads 16 --duration 60s \
+ *     --script "every 10s:rotate" --reset-rate 0.001 --tls
+ * </pre>
+ *
+ * Run with {@code --help} for every option.
+ */
+public class SimLoadDriver {
+    private static final String ELB_HOST = "localhost";
+    private static final String[][] OPTIONS = {
+            { "nodes", "3", "ELB nodes at start" },
+            { "port", "0", "port the nodes listen on, 0 for any" },
+            { "tls", null, "use TLS and ELBSSLConnectionProvider" },
+            { "balance", "ROUND_ROBIN", "ELBBalancePolicy" },
+            { "threads", "8", "worker threads" },
+            { "duration", "30s", "how long to run" },
+            { "report", "1s", "reporting interval" },
+            { "update-percent", "20", "percentage of requests that are insert + commit transactions" },
+            { "script", "", "DNS changes, e.g. \"5s:add, every 10s:rotate\"" },
+            { "drain", "2s", "how long a node serves after leaving DNS" },
+            { "dns-refresh", "1000", "xcc.elb.dns.refresh for the provider, in ms" },
+            { "keep-alive", "30", "keep-alive seconds advertised by the nodes" },
+            { "reset-rate", "0", "fraction of requests answered with a TCP reset" },
+            { "half-close-rate", "0", "fraction of requests answered by closing the server side" },
+            { "slow-rate", "0", "fraction of requests answered slowly" },
+            { "slow-ms", "200", "delay for slow requests" } };
+
+    // Held so the level set in main is not lost when the logger is collected
+    private static final Logger xccLogger = Logger.getLogger("com.marklogic.xcc");
+
+    private final CommandLine options;
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+    private final ELBLatencyHistogram total = new ELBLatencyHistogram();
+    private final AtomicReference<ELBLatencyHistogram> interval =
+            new AtomicReference<ELBLatencyHistogram>(new ELBLatencyHistogram());
+    private final AtomicLong documents = new AtomicLong();
+    private final LongAdder wrongResults = new LongAdder();
+
+    SimLoadDriver(CommandLine options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLine options = new CommandLine("SimLoadDriver [options]", OPTIONS);
+        if (!options.parse(args)) {
+            options.printUsage(System.out);
+            return;
+        }
+        Logger.getLogger("").setLevel(Level.WARNING);
+        // Errors are counted and reported; XCC would also log every retry
+        xccLogger.setLevel(Level.SEVERE);
+        new SimLoadDriver(options).run();
+    }
+
+    void run() throws Exception {
+        boolean tls = options.has("tls");
+        SimElb elb = new SimElb(intOption("port"), tls ? SimElb.serverContext() : null);
+        elb.setKeepAliveSeconds(intOption("keep-alive"));
+        SimFaults faults = elb.getFaults();
+        faults.setResetRate(options.getDouble("reset-rate"));
+        faults.setHalfCloseRate(options.getDouble("half-close-rate"));
+        faults.setSlowRate(options.getDouble("slow-rate"));
+        faults.setSlowMillis(millisOption("slow-ms"));
+
+        for (int i = 0; i < intOption("nodes"); i++) {
+            elb.addNode();
+        }
+
+        System.setProperty("xcc.elb.dns.refresh", options.get("dns-refresh"));
+        ELBBalancePolicy policy = ELBBalancePolicy.valueOf(options.get("balance"));
+        ConnectionProvider provider = tls
+                ? new ELBSSLConnectionProvider(ELB_HOST, elb.getPort(), new SecurityOptions(SimElb.clientContext()),
+                        elb.getDns(), policy)
+                : new ELBConnectionProvider(ELB_HOST, elb.getPort(), elb.getDns(), policy);
+        ContentSource contentSource = ContentSourceFactory.newContentSource(provider, "admin", "admin", "Documents");
+
+        System.out.println("simulated ELB " + elb);
+        System.out.println("faults " + faults + ", script " + SimScript.parse(options.get("script")));
+        elb.schedule(SimScript.parse(options.get("script")), millisOption("drain"));
+
+        long duration = millisOption("duration");
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(duration);
+        int threads = intOption("threads");
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++) {
+            final ContentSource source = contentSource;
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        work(source, end);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "sim-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        long reportMillis = millisOption("report");
+        long start = System.nanoTime();
+        int generation = elb.getDns().getGeneration();
+        while (!done.await(reportMillis, TimeUnit.MILLISECONDS)) {
+            if (elb.getDns().getGeneration() != generation) {
+                generation = elb.getDns().getGeneration();
+                System.out.println("DNS now " + elb.getDns().getAddresses());
+            }
+            report(start, reportMillis, provider);
+        }
+
+        summary(start, elb, provider);
+        provider.shutdown(null);
+        elb.close();
+    }
+
+    private void work(ContentSource contentSource, long end) {
+        int updatePercent = intOption("update-percent");
+
+        while (System.nanoTime() < end) {
+            boolean update = ThreadLocalRandom.current().nextInt(100) < updatePercent;
+            long start = System.nanoTime();
+            try {
+                if (update) {
+                    insertAndCommit(contentSource);
+                } else {
+                    query(contentSource);
+                }
+                long nanos = System.nanoTime() - start;
+                total.record(nanos);
+                interval.get().record(nanos);
+            } catch (Exception e) {
+                String type = e.getClass().getSimpleName();
+                LongAdder count = errors.get(type);
+                if (count == null) {
+                    errors.putIfAbsent(type, new LongAdder());
+                    count = errors.get(type);
+                }
+                count.increment();
+            }
+        }
+    }
+
+    private void query(ContentSource contentSource) throws Exception {
+        Session session = contentSource.newSession();
+        try {
+            ResultSequence result = session.submitRequest(session.newAdhocQuery("20 + 22"));
+            if (!"42".equals(result.asString())) {
+                wrongResults.increment();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private void insertAndCommit(ContentSource contentSource) throws Exception {
+        Session session = contentSource.newSession();
+        try {
+            session.setTransactionMode(Session.TransactionMode.UPDATE);
+            session.submitRequest(session.newAdhocQuery(
+                    "xdmp:document-insert('/sim/" + documents.incrementAndGet() + ".xml', <doc/>)"));
+            session.commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    private void report(long start, long reportMillis, ConnectionProvider provider) {
+        ELBLatencyHistogram latency = interval.getAndSet(new ELBLatencyHistogram());
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%7.1fs  ops/s=%7.0f  p50=%8.2fms  p99=%8.2fms  max=%8.2fms  errors=%d  %s",
+                elapsed, latency.getCount() * 1000.0 / reportMillis, latency.getMedianMicros() / 1000.0,
+                latency.get99thPercentileMicros() / 1000.0, latency.getMaxMicros() / 1000.0, errorCount(),
+                LoadGenerator.describePool(provider)));
+    }
+
+    private void summary(long start, SimElb elb, ConnectionProvider provider) {
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println();
+        System.out.println(String.format("requests=%d in %.1fs, %.0f/s", total.getCount(), elapsed,
+                total.getCount() / elapsed));
+        System.out.println(String.format("latency mean=%.2fms p50=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms",
+                total.getMeanMicros() / 1000.0, total.getMedianMicros() / 1000.0,
+                total.get99thPercentileMicros() / 1000.0, total.get999thPercentileMicros() / 1000.0,
+                total.getMaxMicros() / 1000.0));
+        System.out.println("errors=" + errorCount() + " " + new TreeMap<String, LongAdder>(errors) +
+                ", wrong results=" + wrongResults.sum());
+        System.out.println("provider " + LoadGenerator.describePool(provider));
+        System.out.println("stats " + LoadGenerator.statsOf(provider));
+        System.out.println("server requests=" + elb.getRequests() + ", commits=" + elb.getCommits() +
+                ", rollbacks=" + elb.getRollbacks() + ", open transactions=" + elb.getOpenTransactions() +
+                ", misrouted statements=" + elb.getMisroutedStatements());
+        for (SimNode node : elb.getNodes()) {
+            System.out.println("  node " + node);
+        }
+    }
+
+    private long errorCount() {
+        long count = 0;
+        for (LongAdder adder : errors.values()) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    private int intOption(String name) {
+        return options.getInt(name);
+    }
+
+    private long millisOption(String name) {
+        return options.getMillis(name);
+    }
+}
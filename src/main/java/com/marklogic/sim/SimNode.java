@@ -0,0 +1,442 @@
+package com.marklogic.sim;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * One simulated ELB node: a listener on its own loopback address that answers enough
+ * of the XDBC protocol for XCC adhoc queries, multi-statement transactions and
+ * document inserts. Both XDBC framing and xcc.httpcompliant HTTP/1.1 are accepted.
+ * <p>
+ * Query results are canned: {@code a + b} returns the integer sum, {@code xdmp:sleep(n)}
+ * waits n milliseconds, updates return the empty sequence and anything else returns
+ * the node's address as a string.
+ */
+public class SimNode {
+    private static final Logger logger = Logger.getLogger(SimNode.class.getName());
+    private static final String SERVER_VERSION = "MarkLogic 10.0-9";
+    private static final String BOUNDARY = "SIMXCC";
+    private static final Pattern SUM = Pattern.compile("^\\s*(\\d+)\\s*\\+\\s*(\\d+)\\s*$");
+    private static final Pattern SLEEP = Pattern.compile("xdmp:sleep\\(\\s*(\\d+)\\s*\\)");
+
+    private final SimElb elb;
+    private final InetAddress address;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong faultsInjected = new AtomicLong();
+    private volatile SimFaults faults;
+    private volatile boolean closed;
+
+    SimNode(SimElb elb, InetAddress address, int port, SSLContext sslContext) throws IOException {
+        this.elb = elb;
+        this.address = address;
+        this.faults = elb.getFaults();
+        serverSocket = (sslContext == null) ? new ServerSocket(port, 1024, address)
+                : sslContext.getServerSocketFactory().createServerSocket(port, 1024, address);
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "sim-node-" + address.getHostAddress());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return the faults this node injects; the ELB's shared settings unless replaced
+     */
+    public SimFaults getFaults() {
+        return faults;
+    }
+
+    public void setFaults(SimFaults faults) {
+        this.faults = faults;
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFaultsInjected() {
+        return faultsInjected.get();
+    }
+
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops listening and resets every open connection, as a decommissioned ELB node does.
+     */
+    void shutdown() {
+        closed = true;
+        closeQuietly(serverSocket);
+        for (Socket socket : connections) {
+            reset(socket);
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.log(Level.WARNING, "accept failed on " + address.getHostAddress(), e);
+                }
+                continue;
+            }
+            accepted.incrementAndGet();
+            connections.add(socket);
+
+            Thread handler = new Thread(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            }, "sim-conn-" + address.getHostAddress() + ":" + socket.getPort());
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(elb.getIdleTimeoutMillis());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            while (!closed && serveRequest(socket, in, out)) {
+                // keep-alive
+            }
+        } catch (SocketTimeoutException e) {
+            logger.fine("idle timeout, closing connection from " + socket.getRemoteSocketAddress());
+        } catch (IOException e) {
+            logger.log(Level.FINE, "connection from " + socket.getRemoteSocketAddress() + " failed", e);
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return false once the connection should be closed
+     */
+    private boolean serveRequest(Socket socket, InputStream in, OutputStream out) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return false;
+        }
+        String[] request = requestLine.split(" ");
+        if (request.length < 3) {
+            throw new IOException("malformed request line: " + requestLine);
+        }
+        Map<String, String> headers = readHeaders(in);
+        requests.incrementAndGet();
+        elb.requestReceived();
+
+        if (faults.getLatencyMillis() > 0) {
+            sleep(faults.getLatencyMillis());
+        }
+        SimFaults.Fault fault = faults.draw();
+        if (fault != SimFaults.Fault.NONE) {
+            faultsInjected.incrementAndGet();
+        }
+        switch (fault) {
+            case RESET:
+                reset(socket);
+                return false;
+            case HALF_CLOSE:
+                halfClose(socket, in);
+                return false;
+            case SLOW:
+                sleep(faults.getSlowMillis());
+                break;
+            default:
+                break;
+        }
+
+        byte[] body = readBody(request[0], headers, in);
+        String path = request[1];
+
+        if ("POST".equals(request[0]) && path.startsWith("/eval")) {
+            eval(parseForm(new String(body, StandardCharsets.UTF_8)), out);
+        } else if ("PUT".equals(request[0]) && path.startsWith("/insert")) {
+            elb.documentInserted();
+            respond(out, "200 OK", null, new byte[0], null);
+        } else {
+            respond(out, "404 Not Found", null, new byte[0], null);
+        }
+        return true;
+    }
+
+    private void eval(Map<String, String> form, OutputStream out) throws IOException {
+        String query = form.containsKey("xquery") ? form.get("xquery") : "";
+        String txnId = form.get("txnid");
+        boolean update = "update".equals(form.get("txnmode"));
+        List<String> cookies = new ArrayList<String>();
+
+        if (txnId != null) {
+            elb.statementReceived(txnId, address);
+        }
+        if (query.contains("xdmp:commit()") || query.contains("xdmp:rollback()")) {
+            elb.endTransaction(txnId, query.contains("xdmp:commit()"));
+            cookies.add("TxnID=null; path=/");
+            respond(out, "200 OK", null, new byte[0], cookies);
+            return;
+        }
+
+        if (update && txnId == null) {
+            txnId = elb.beginTransaction(address);
+            cookies.add("SessionID=" + txnId + "; path=/");
+            cookies.add("TxnID=" + txnId + "; path=/");
+            cookies.add("TxnMode=update; path=/");
+        }
+
+        Matcher sleep = SLEEP.matcher(query);
+        boolean slept = sleep.find();
+        if (slept) {
+            sleep(Long.parseLong(sleep.group(1)));
+        }
+
+        Matcher sum = SUM.matcher(query);
+        if (sum.matches()) {
+            long value = Long.parseLong(sum.group(1)) + Long.parseLong(sum.group(2));
+            respond(out, "200 OK", BOUNDARY, item("integer", Long.toString(value)), cookies);
+        } else if (update || slept || query.contains("xdmp:document-insert")) {
+            respond(out, "200 OK", null, new byte[0], cookies);
+        } else {
+            respond(out, "200 OK", BOUNDARY, item("string", address.getHostAddress()), cookies);
+        }
+    }
+
+    /**
+     * A one-item result sequence. XCC finds boundaries by "\n--", so lines end in LF.
+     */
+    private static byte[] item(String type, String value) {
+        String body = "\n--" + BOUNDARY + "\nContent-Type: text/plain\nX-Primitive: " + type + "\n\n" + value +
+                "\n--" + BOUNDARY + "--\n";
+        return body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void respond(OutputStream out, String status, String boundary, byte[] body, List<String> cookies)
+            throws IOException {
+        StringBuilder response = new StringBuilder(256);
+        response.append("HTTP/1.1 ").append(status).append("\r\n");
+        response.append("Server: ").append(SERVER_VERSION).append("\r\n");
+        if (boundary != null) {
+            response.append("Content-Type: multipart/mixed; boundary=").append(boundary).append("\r\n");
+        }
+        response.append("Content-Length: ").append(body.length).append("\r\n");
+        response.append("Connection: Keep-Alive\r\n");
+        response.append("Keep-Alive: timeout=").append(elb.getKeepAliveSeconds()).append("\r\n");
+        if (cookies != null) {
+            for (String cookie : cookies) {
+                response.append("Set-Cookie: ").append(cookie).append("\r\n");
+            }
+        }
+        response.append("\r\n");
+
+        out.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            throw new EOFException("connection closed in request headers");
+        }
+        return headers;
+    }
+
+    /**
+     * Reads a body framed by Content-Length, HTTP chunking or, for XDBC inserts, XDBC
+     * chunks: a line of one code digit and a decimal length, code 0 for data.
+     */
+    private static byte[] readBody(String method, Map<String, String> headers, InputStream in) throws IOException {
+        String length = headers.get("content-length");
+        if (length != null) {
+            return readFully(in, Integer.parseInt(length));
+        }
+
+        StringBuilder body = new StringBuilder();
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            while (true) {
+                String line = readLine(in);
+                if (line == null) {
+                    throw new EOFException("connection closed in chunked body");
+                }
+                int semicolon = line.indexOf(';');
+                int size = Integer.parseInt((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+                if (size == 0) {
+                    readHeaders(in);
+                    break;
+                }
+                body.append(new String(readFully(in, size), StandardCharsets.ISO_8859_1));
+                readLine(in);
+            }
+        } else if ("PUT".equals(method)) {
+            while (true) {
+                String line = readLine(in);
+                if (line == null || line.isEmpty()) {
+                    throw new EOFException("connection closed in XDBC body");
+                }
+                int size = Integer.parseInt(line.substring(1));
+                if (line.charAt(0) != '0') {
+                    break;
+                }
+                body.append(new String(readFully(in, size), StandardCharsets.ISO_8859_1));
+            }
+        }
+        return body.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int offset = 0;
+
+        while (offset < length) {
+            int read = in.read(bytes, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("connection closed in request body");
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the line without its CRLF or LF, or null at end of stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return (c < 0 && line.length() == 0) ? null : line.toString();
+    }
+
+    private static Map<String, String> parseForm(String body) throws UnsupportedEncodingException {
+        Map<String, String> form = new HashMap<String, String>();
+
+        for (String pair : body.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                form.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return form;
+    }
+
+    private static void reset(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+        } catch (SocketException e) {
+            // already closed
+        }
+        closeQuietly(socket);
+    }
+
+    /**
+     * Stops sending but keeps reading, so the client sees end of stream where it expects
+     * a response. TLS sockets cannot be half closed, so they send close_notify instead.
+     */
+    private static void halfClose(Socket socket, InputStream in) throws IOException {
+        if (socket instanceof SSLSocket) {
+            closeQuietly(socket);
+            return;
+        }
+        socket.shutdownOutput();
+        byte[] discard = new byte[4096];
+        try {
+            while (in.read(discard) >= 0) {
+                // wait for the client to close
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address.getHostAddress() + ":" + getPort() + " accepted=" + accepted + ", requests=" + requests +
+                ", faults=" + faultsInjected + ", open=" + connections.size() + (closed ? " closed" : "");
+    }
+}
@@ -0,0 +1,115 @@
+package com.marklogic.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A schedule of DNS changes for a {@link SimElb}, written as comma separated events:
+ * {@code <time>:<action>} runs once, {@code every <time>:<action>} repeats. Times take
+ * an ms, s or m suffix and actions are add, remove, rotate or kill, e.g.
+ * {@code "5s:add, 15s:remove, every 10s:rotate, 20s:kill"}.
+ */
+public class SimScript {
+    public enum Action {
+        ADD, REMOVE, ROTATE, KILL
+    }
+
+    public static class Event {
+        private final long atMillis;
+        private final long periodMillis;
+        private final Action action;
+
+        Event(long atMillis, long periodMillis, Action action) {
+            this.atMillis = atMillis;
+            this.periodMillis = periodMillis;
+            this.action = action;
+        }
+
+        /**
+         * @return when the event first runs, relative to the start of the script
+         */
+        public long getAtMillis() {
+            return atMillis;
+        }
+
+        /**
+         * @return how often the event repeats, or 0 if it runs once
+         */
+        public long getPeriodMillis() {
+            return periodMillis;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        @Override
+        public String toString() {
+            String action = this.action.toString().toLowerCase(Locale.ROOT);
+            return (periodMillis > 0) ? "every " + periodMillis + "ms:" + action : atMillis + "ms:" + action;
+        }
+    }
+
+    private final List<Event> events;
+
+    private SimScript(List<Event> events) {
+        this.events = Collections.unmodifiableList(events);
+    }
+
+    public static SimScript parse(String script) {
+        List<Event> events = new ArrayList<Event>();
+
+        for (String entry : script.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("expected <time>:<action> in '" + entry + "'");
+            }
+            String time = entry.substring(0, colon).trim();
+            Action action = Action.valueOf(entry.substring(colon + 1).trim().toUpperCase(Locale.ROOT));
+
+            if (time.startsWith("every")) {
+                long period = parseMillis(time.substring(5).trim());
+                if (period <= 0) {
+                    throw new IllegalArgumentException("period must be positive in '" + entry + "'");
+                }
+                events.add(new Event(period, period, action));
+            } else {
+                events.add(new Event(parseMillis(time), 0, action));
+            }
+        }
+        return new SimScript(events);
+    }
+
+    /**
+     * @param duration a number with an optional ms, s or m suffix; milliseconds if none
+     */
+    public static long parseMillis(String duration) {
+        String value = duration.trim().toLowerCase(Locale.ROOT);
+
+        if (value.endsWith("ms")) {
+            return Long.parseLong(value.substring(0, value.length() - 2).trim());
+        }
+        if (value.endsWith("s")) {
+            return Math.round(Double.parseDouble(value.substring(0, value.length() - 1).trim()) * 1000);
+        }
+        if (value.endsWith("m")) {
+            return Math.round(Double.parseDouble(value.substring(0, value.length() - 1).trim()) * 60000);
+        }
+        return Long.parseLong(value);
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    @Override
+    public String toString() {
+        return events.toString();
+    }
+}
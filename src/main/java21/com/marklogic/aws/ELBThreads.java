@@ -0,0 +1,32 @@
+package com.marklogic.aws;
+
+/**
+ * Thread facilities that depend on the Java release. This is the Java 21 version,
+ * packaged under META-INF/versions/21 of the multi-release JAR.
+ */
+final class ELBThreads {
+    private ELBThreads() {
+    }
+
+    /**
+     * @return true if {@link #startVirtual} can start virtual threads
+     */
+    static boolean hasVirtualThreads() {
+        return true;
+    }
+
+    /**
+     * @return true if the thread is virtual, so blocking it must park rather than pin
+     *         its carrier
+     */
+    static boolean isVirtual(Thread thread) {
+        return thread.isVirtual();
+    }
+
+    /**
+     * Runs the task on a new virtual thread.
+     */
+    static Thread startVirtual(String name, Runnable task) {
+        return Thread.ofVirtual().name(name).start(task);
+    }
+}
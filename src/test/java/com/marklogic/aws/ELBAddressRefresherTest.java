@@ -0,0 +1,128 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ELBAddressRefresherTest {
+    private static final String HOST = "elb.test";
+
+    private final FakeResolver dns = new FakeResolver(2);
+    // Long enough that nothing refreshes in the background unless a test asks
+    private final ELBAddressRefresher refresher = new ELBAddressRefresher(HOST, 8000, dns, 60000);
+
+    @After
+    public void tearDown() {
+        refresher.stop();
+    }
+
+    @Test
+    public void publishesTheResolvedAddresses() {
+        ELBAddressSnapshot snapshot = refresher.refresh();
+
+        assertSame(snapshot, refresher.getSnapshot());
+        assertTrue(snapshot.isResolved());
+        assertEquals(2, snapshot.getAddresses().size());
+        assertEquals(new InetSocketAddress(FakeResolver.loopback(1), 8000), snapshot.getPrimary());
+        assertEquals(0, snapshot.getGeneration());
+    }
+
+    @Test
+    public void addressesKeepTheElbHostName() {
+        InetSocketAddress primary = refresher.refresh().getPrimary();
+
+        // No reverse lookup of 127.0.0.1 is needed to name it
+        assertEquals(HOST, primary.getHostString());
+        assertEquals(HOST, primary.getAddress().getHostName());
+    }
+
+    @Test
+    public void keepsTheSnapshotWhenOnlyTheOrderChanges() {
+        ELBAddressSnapshot first = refresher.refresh();
+        dns.setAddresses(FakeResolver.loopback(2), FakeResolver.loopback(1));
+
+        assertSame(first, refresher.refresh());
+    }
+
+    @Test
+    public void tellsTheListenersAboutEachChange() {
+        final List<ELBAddressSnapshot[]> changes = new ArrayList<ELBAddressSnapshot[]>();
+        refresher.addListener(new ELBAddressListener() {
+            public void addressesChanged(ELBAddressSnapshot previous, ELBAddressSnapshot current) {
+                changes.add(new ELBAddressSnapshot[] { previous, current });
+            }
+        });
+
+        ELBAddressSnapshot first = refresher.refresh();
+        // The first resolution is not a change
+        assertEquals(0, changes.size());
+
+        dns.setAddresses(FakeResolver.loopback(2, 2));
+        ELBAddressSnapshot second = refresher.refresh();
+        refresher.refresh();
+
+        assertEquals(1, second.getGeneration());
+        assertEquals(1, changes.size());
+        assertSame(first, changes.get(0)[0]);
+        assertSame(second, changes.get(0)[1]);
+    }
+
+    @Test
+    public void keepsTheCachedAddressesWhenResolutionFails() {
+        ELBAddressSnapshot first = refresher.refresh();
+        dns.setFailing(true);
+
+        assertSame(first, refresher.refresh());
+    }
+
+    @Test
+    public void isUnresolvedUntilTheFirstSuccessfulLookup() {
+        dns.setFailing(true);
+        ELBAddressSnapshot snapshot = refresher.refresh();
+        assertFalse(snapshot.isResolved());
+        assertTrue(snapshot.getPrimary().isUnresolved());
+        assertEquals(HOST, snapshot.getPrimary().getHostString());
+
+        dns.setFailing(false);
+        assertTrue(refresher.refresh().isResolved());
+    }
+
+    @Test(timeout = 10000)
+    public void refreshesInTheBackgroundAsOftenAsTheTtlAllows() throws Exception {
+        // Shorter than the refresher allows, so it refreshes at its one second minimum
+        dns.setTtlMillis(1);
+        refresher.start();
+        ELBAddressSnapshot first = refresher.getSnapshot();
+        assertTrue(first.isResolved());
+
+        dns.setAddresses(FakeResolver.loopback(4, 1));
+        while (refresher.getSnapshot() == first) {
+            Thread.sleep(10);
+        }
+        assertEquals(new InetSocketAddress(FakeResolver.loopback(5), 8000), refresher.getSnapshot().getPrimary());
+    }
+
+    @Test
+    public void providersReadTheLatestSnapshot() {
+        ELBConnectionProvider provider = new ELBConnectionProvider(HOST, 8000, dns);
+        try {
+            assertEquals(new InetSocketAddress(FakeResolver.loopback(1), 8000), provider.getAddress());
+            assertEquals(HOST, provider.getHostName());
+            assertEquals(8000, provider.getPort());
+
+            dns.setAddresses(FakeResolver.loopback(3));
+            provider.getRefresher().refresh();
+            assertEquals(new InetSocketAddress(FakeResolver.loopback(3), 8000), provider.getAddress());
+        } finally {
+            provider.shutdown(null);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.marklogic.xcc.ContentSourceFactory;
+import com.marklogic.xcc.ResultSequence;
+
+public class ELBAsyncRequestsTest {
+    private LoopbackServer server;
+    private ELBConnectionProvider provider;
+    // Holds dispatched requests without running them, so they stay in flight
+    private final List<Runnable> started = new ArrayList<Runnable>();
+    private ELBAsyncRequests requests;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LoopbackServer();
+        provider = new ELBConnectionProvider("elb.test", server.getPort(), new FakeResolver(1));
+        requests = new ELBAsyncRequests(ContentSourceFactory.newContentSource(provider, "admin", "admin", "Documents"),
+                new Executor() {
+                    public void execute(Runnable task) {
+                        started.add(task);
+                    }
+                });
+        requests.setMaxInFlight(1);
+        requests.setMaxQueued(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        provider.shutdown(null);
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void aCancelledQueuedRequestLeavesRoomInTheQueue() {
+        requests.submit("1");
+        CompletableFuture<ResultSequence> queued = requests.submit("2");
+        assertEquals(1, started.size());
+        assertEquals(1, requests.getQueued());
+
+        assertTrue(queued.cancel(false));
+        assertEquals(0, requests.getQueued());
+
+        CompletableFuture<ResultSequence> next = requests.submit("3");
+        assertFalse(next.isDone());
+        assertEquals(1, requests.getQueued());
+        assertEquals(0, requests.getRejected());
+    }
+
+    @Test(timeout = 10000)
+    public void rejectsRequestsOverTheQueueLimit() {
+        requests.submit("1");
+        requests.submit("2");
+
+        assertTrue(requests.submit("3").isCompletedExceptionally());
+        assertEquals(1, requests.getRejected());
+    }
+}
@@ -0,0 +1,39 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ELBBufferPoolTest {
+    @Test
+    public void roundsSizesUpToFourClassesADoubling() {
+        assertEquals(4096, ELBBufferPool.sizeClass(1));
+        assertEquals(4096, ELBBufferPool.sizeClass(4096));
+        assertEquals(5120, ELBBufferPool.sizeClass(4097));
+        assertEquals(16384, ELBBufferPool.sizeClass(16384));
+        // The packet and application buffer sizes of a TLS 1.2 or 1.3 session
+        assertEquals(20480, ELBBufferPool.sizeClass(16709));
+        assertEquals(20480, ELBBufferPool.sizeClass(16384 + 2048 + 1));
+        assertEquals(40960, ELBBufferPool.sizeClass(33093));
+        assertEquals(1 << 20, ELBBufferPool.sizeClass(1 << 20));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesSizesOverTheLargestClass() {
+        ELBBufferPool.sizeClass((1 << 20) + 1);
+    }
+
+    @Test
+    public void reusesABufferForAnySizeInItsClass() {
+        ELBBufferPool pool = new ELBBufferPool(4);
+        ByteBuffer buffer = pool.acquire(16709);
+        assertEquals(20480, buffer.capacity());
+        pool.release(buffer);
+
+        assertSame(buffer, pool.acquire(17000));
+        assertEquals(1, pool.getAllocated());
+    }
+}
@@ -0,0 +1,165 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import javax.net.ssl.SSLHandshakeException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.spi.ConnectionErrorAction;
+import com.marklogic.xcc.spi.ServerConnection;
+
+public class ELBCircuitBreakerTest {
+    private final ELBCircuitBreaker breaker = new ELBCircuitBreaker();
+    private LoopbackServer server;
+    private ELBConnectionProvider provider;
+
+    @After
+    public void tearDown() throws Exception {
+        if (provider != null) {
+            provider.shutdown(null);
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        assertFalse(breaker.recordFailure());
+        assertFalse(breaker.recordFailure());
+        // A success in between starts the count again
+        breaker.recordSuccess();
+        assertEquals(0, breaker.getConsecutiveFailures());
+
+        assertFalse(breaker.recordFailure());
+        assertFalse(breaker.recordFailure());
+        assertTrue(breaker.recordFailure());
+        assertEquals(ELBCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertEquals(1, breaker.getTrips());
+    }
+
+    @Test(timeout = 10000)
+    public void letsOneTrialThroughAfterTheBackoff() throws Exception {
+        trip();
+        awaitTrial();
+        assertEquals(ELBCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        assertTrue(breaker.recordSuccess());
+        assertTrue(breaker.isClosed());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test(timeout = 10000)
+    public void aFailedTrialDoublesTheBackoff() throws Exception {
+        trip();
+        long backoff = breaker.getBackoffMillis();
+        awaitTrial();
+
+        assertTrue(breaker.recordFailure());
+        assertEquals(ELBCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(backoff * 2, breaker.getBackoffMillis());
+        assertEquals(2, breaker.getTrips());
+
+        // A success resets the backoff for the next time it opens
+        awaitTrial();
+        breaker.recordSuccess();
+        assertEquals(backoff, breaker.getBackoffMillis());
+    }
+
+    @Test(timeout = 10000)
+    public void failsOverFromANodeThatRefusesConnections() throws Exception {
+        // Nothing listens on 127.0.0.1 at the server's port
+        server = new LoopbackServer(FakeResolver.loopback(2));
+        provider = new ELBConnectionProvider("elb.test", server.getPort(), new FakeResolver(2),
+                ELBBalancePolicy.ROUND_ROBIN);
+        ELBNode refusing = provider.getNodes()[0];
+
+        for (int i = 0; i < 6; i++) {
+            ServerConnection connection = provider.obtainConnection((Session) null, null, null);
+            assertEquals(provider.getNodes()[1], ((ELBConnection) connection).getNode());
+        }
+
+        ELBCircuitBreaker breaker = refusing.getCircuitBreaker();
+        assertEquals(ELBCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getTrips());
+        // Once open, the node is passed over rather than tried and failed again
+        assertEquals(3, breaker.getConsecutiveFailures());
+    }
+
+    @Test(timeout = 10000)
+    public void retriesAFailedHandshakeWhenAnotherNodeIsHealthy() throws Exception {
+        startProvider(2);
+        ServerConnection connection = provider.obtainConnection((Session) null, null, null);
+        ELBNode node = ((ELBConnection) connection).getNode();
+
+        assertEquals(ConnectionErrorAction.RETRY, provider.returnErrorConnection(connection,
+                new IOException(new SSLHandshakeException("Remote host terminated the handshake")), null));
+        assertFalse(connection.isOpen());
+        assertEquals(1, node.getCircuitBreaker().getConsecutiveFailures());
+    }
+
+    @Test(timeout = 10000)
+    public void failsAnErrorThatMayComeAfterTheRequestWasSent() throws Exception {
+        startProvider(2);
+        ServerConnection connection = provider.obtainConnection((Session) null, null, null);
+        ELBNode node = ((ELBConnection) connection).getNode();
+
+        // The server may have run an update before the reset, so it must not run again
+        assertEquals(ConnectionErrorAction.FAIL,
+                provider.returnErrorConnection(connection, new IOException("connection reset"), null));
+        assertFalse(connection.isOpen());
+        assertEquals(1, node.getCircuitBreaker().getConsecutiveFailures());
+    }
+
+    @Test(timeout = 10000)
+    public void failsAnErrorWhenNoOtherNodeIsHealthy() throws Exception {
+        startProvider(1);
+        ServerConnection connection = provider.obtainConnection((Session) null, null, null);
+
+        assertEquals(ConnectionErrorAction.FAIL,
+                provider.returnErrorConnection(connection, new ConnectException("Connection refused"), null));
+    }
+
+    @Test(timeout = 10000)
+    public void aReadTimeoutDoesNotCountAgainstTheNode() throws Exception {
+        startProvider(2);
+        ServerConnection connection = provider.obtainConnection((Session) null, null, null);
+        ELBNode node = ((ELBConnection) connection).getNode();
+
+        assertEquals(ConnectionErrorAction.FAIL,
+                provider.returnErrorConnection(connection, new SocketTimeoutException("Read timed out"), null));
+        assertEquals(0, node.getCircuitBreaker().getConsecutiveFailures());
+    }
+
+    private void startProvider(int addresses) throws IOException {
+        server = new LoopbackServer();
+        provider = new ELBConnectionProvider("elb.test", server.getPort(), new FakeResolver(addresses),
+                ELBBalancePolicy.ROUND_ROBIN);
+    }
+
+    private void trip() {
+        while (!breaker.recordFailure()) {
+            // keep failing
+        }
+    }
+
+    /**
+     * Waits out the backoff, until the breaker lets a trial request through.
+     */
+    private void awaitTrial() throws InterruptedException {
+        while (!breaker.allowRequest()) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ELBConnectionLimiterTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void handsOutPermitsUpToTheTotal() throws Exception {
+        ELBConnectionLimiter limiter = new ELBConnectionLimiter(2, 2, 0);
+        ELBNode node = node(limiter, 1);
+
+        limiter.acquire(node);
+        limiter.acquire(node);
+        assertEquals(2, limiter.getInUse());
+        assertExhausted(limiter, node);
+        assertEquals(1, limiter.getTimeouts());
+
+        limiter.release(node);
+        assertEquals(1, limiter.getInUse());
+        limiter.acquire(node);
+    }
+
+    @Test
+    public void aFullNodeDoesNotHoldUpTheOthers() throws Exception {
+        ELBConnectionLimiter limiter = new ELBConnectionLimiter(4, 2, 0);
+        ELBNode full = node(limiter, 1);
+        ELBNode other = node(limiter, 2);
+
+        limiter.acquire(full);
+        limiter.acquire(full);
+        assertExhausted(limiter, full);
+        // The failed attempt must not keep a total permit
+        assertEquals(2, limiter.getInUse());
+
+        limiter.acquire(other);
+        limiter.acquire(other);
+        assertEquals(4, limiter.getInUse());
+    }
+
+    @Test(timeout = 10000)
+    public void aReleaseWakesAWaiter() throws Exception {
+        final ELBConnectionLimiter limiter = new ELBConnectionLimiter(1, 1, 5000);
+        final ELBNode node = node(limiter, 1);
+        limiter.acquire(node);
+
+        Future<?> waiter = executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                limiter.acquire(node);
+                return null;
+            }
+        });
+        while (limiter.getWaiting() == 0) {
+            Thread.sleep(1);
+        }
+        assertFalse(waiter.isDone());
+
+        limiter.release(node);
+        waiter.get(5, TimeUnit.SECONDS);
+        assertEquals(1, limiter.getInUse());
+        assertEquals(0, limiter.getWaiting());
+    }
+
+    @Test(timeout = 10000)
+    public void neverExceedsTheLimitsUnderContention() throws Exception {
+        final int threads = 16;
+        final ELBConnectionLimiter limiter = new ELBConnectionLimiter(6, 4, 5000);
+        final ELBNode[] nodes = { node(limiter, 1), node(limiter, 2), node(limiter, 3) };
+        final AtomicInteger inUse = new AtomicInteger();
+        final AtomicInteger[] perNode = { new AtomicInteger(), new AtomicInteger(), new AtomicInteger() };
+        final AtomicInteger violations = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Future<?>[] workers = new Future<?>[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            workers[t] = executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 0; i < 2000; i++) {
+                        int n = (first + i) % nodes.length;
+                        limiter.acquire(nodes[n]);
+                        try {
+                            int total = inUse.incrementAndGet();
+                            int onNode = perNode[n].incrementAndGet();
+                            if (total > 6 || onNode > 4) {
+                                violations.incrementAndGet();
+                            }
+                            Thread.yield();
+                        } finally {
+                            perNode[n].decrementAndGet();
+                            inUse.decrementAndGet();
+                            limiter.release(nodes[n]);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        start.countDown();
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+
+        assertEquals(0, violations.get());
+        assertEquals(0, limiter.getInUse());
+        for (ELBNode node : nodes) {
+            assertEquals(4, node.getPermits().availablePermits());
+        }
+    }
+
+    @Test
+    public void movesAPermitOnlyToANodeWithRoom() throws Exception {
+        ELBConnectionLimiter limiter = new ELBConnectionLimiter(4, 1, 0);
+        ELBNode from = node(limiter, 1);
+        ELBNode to = node(limiter, 2);
+        ELBNode busy = node(limiter, 3);
+
+        limiter.acquire(from);
+        limiter.acquire(busy);
+        assertFalse(limiter.tryMovePermit(from, busy));
+        assertTrue(limiter.tryMovePermit(from, to));
+        assertEquals(1, from.getPermits().availablePermits());
+        assertEquals(0, to.getPermits().availablePermits());
+        assertEquals(2, limiter.getInUse());
+    }
+
+    @Test
+    public void reservesSocketsWithinTheTotal() {
+        ELBConnectionLimiter limiter = new ELBConnectionLimiter(2, 2, 0);
+        assertTrue(limiter.tryReserveSocket());
+        assertTrue(limiter.tryReserveSocket());
+        assertFalse(limiter.tryReserveSocket());
+        assertTrue(limiter.isAtCapacity());
+
+        limiter.socketClosed();
+        assertFalse(limiter.isAtCapacity());
+        assertEquals(1, limiter.getOpenConnections());
+    }
+
+    private static ELBNode node(ELBConnectionLimiter limiter, int last) {
+        return new ELBNode(new InetSocketAddress("127.0.0." + last, 8000), limiter.newNodePermits());
+    }
+
+    private static void assertExhausted(ELBConnectionLimiter limiter, ELBNode node) throws Exception {
+        try {
+            limiter.acquire(node);
+            fail("expected the pool to be exhausted");
+        } catch (ELBPoolExhaustedException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ELBConnectorTest {
+    private LoopbackServer server;
+    private ServerSocket full;
+    private final List<Socket> backlog = new ArrayList<Socket>();
+    private final Recorder callback = new Recorder();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LoopbackServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Socket socket : backlog) {
+            socket.close();
+        }
+        if (full != null) {
+            full.close();
+        }
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void connectsToTheFirstNode() throws Exception {
+        ELBNode first = node(server.getPort());
+        ELBConnector.Connected connected = new ELBConnector(1000, 250).connect(
+                new ELBNode[] { first, node(server.getPort()) }, callback);
+        try {
+            assertSame(first, connected.node);
+            assertTrue(connected.channel.isConnected());
+            assertTrue(connected.channel.isBlocking());
+            assertEquals(0, callback.reserved.size());
+            assertEquals(0, callback.released.size());
+        } finally {
+            connected.channel.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void startsTheNextNodeAtOnceWhenAnAttemptFails() throws Exception {
+        ELBNode refusing = node(closedPort());
+        ELBNode second = node(server.getPort());
+        long start = System.currentTimeMillis();
+        // The stagger is far longer than the test allows, so only the failure can start the second
+        ELBConnector.Connected connected = new ELBConnector(1000, 60000).connect(
+                new ELBNode[] { refusing, second }, callback);
+        try {
+            assertSame(second, connected.node);
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertEquals(1, callback.failed.size());
+            assertSame(refusing, callback.failed.get(0));
+            assertEquals(1, callback.reserved.size());
+            // The loser is the first node, which the caller reserved
+            assertEquals(1, callback.released.size());
+            assertSame(refusing, callback.released.get(0));
+        } finally {
+            connected.channel.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void racesTheNextNodeWhenTheFirstIsSlow() throws Exception {
+        ELBNode slow = node(blackholedPort());
+        ELBNode second = node(server.getPort());
+        long start = System.currentTimeMillis();
+        ELBConnector.Connected connected = new ELBConnector(5000, 100).connect(
+                new ELBNode[] { slow, second }, callback);
+        try {
+            long elapsed = System.currentTimeMillis() - start;
+            assertSame(second, connected.node);
+            assertTrue("waited the stagger", elapsed >= 100);
+            assertTrue("did not wait for the slow node", elapsed < 4000);
+            // The slow attempt is abandoned, not failed
+            assertEquals(0, callback.failed.size());
+            assertEquals(1, callback.released.size());
+            assertSame(slow, callback.released.get(0));
+        } finally {
+            connected.channel.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void doesNotRaceWithoutAStagger() throws Exception {
+        ELBNode slow = node(blackholedPort());
+        ELBConnector connector = new ELBConnector(200, 0);
+        assertFalse(connector.isRacing());
+
+        long start = System.currentTimeMillis();
+        try {
+            connector.connect(new ELBNode[] { slow, node(server.getPort()) }, callback);
+            fail("connected to a blackholed node");
+        } catch (SocketTimeoutException e) {
+            assertTrue(System.currentTimeMillis() - start >= 200);
+        }
+        assertEquals(0, callback.reserved.size());
+        assertEquals(1, callback.failed.size());
+        assertSame(slow, callback.failed.get(0));
+        // The caller reserved the first node and gives it back itself
+        assertEquals(0, callback.released.size());
+    }
+
+    @Test(timeout = 10000)
+    public void passesOverANodeItCannotReserve() throws Exception {
+        ELBNode refusing = node(closedPort());
+        ELBNode busy = node(server.getPort());
+        callback.refuse = busy;
+        try {
+            new ELBConnector(1000, 50).connect(new ELBNode[] { refusing, busy }, callback);
+            fail("connected to a node it could not reserve");
+        } catch (IOException e) {
+            assertFalse(e instanceof SocketTimeoutException);
+        }
+        assertEquals(1, callback.failed.size());
+        assertEquals(0, callback.released.size());
+        assertEquals(0, server.getOpen());
+    }
+
+    private static ELBNode node(int port) {
+        return new ELBNode(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), new Semaphore(1));
+    }
+
+    /**
+     * @return a port nothing listens on, so connects to it are refused
+     */
+    private static int closedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    /**
+     * @return a port whose accept backlog is full, so the kernel drops further SYNs as an
+     *         unreachable ELB address would
+     */
+    private int blackholedPort() throws IOException {
+        full = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), full.getLocalPort());
+        for (int i = 0; i < 16; i++) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, 200);
+                backlog.add(socket);
+            } catch (SocketTimeoutException e) {
+                socket.close();
+                return full.getLocalPort();
+            }
+        }
+        throw new AssertionError("the accept backlog never filled");
+    }
+
+    private static class Recorder implements ELBConnector.Callback {
+        final List<ELBNode> reserved = new ArrayList<ELBNode>();
+        final List<ELBNode> released = new ArrayList<ELBNode>();
+        final List<ELBNode> failed = new ArrayList<ELBNode>();
+        ELBNode refuse;
+
+        public boolean reserve(ELBNode node) {
+            if (node == refuse) {
+                return false;
+            }
+            reserved.add(node);
+            return true;
+        }
+
+        public void release(ELBNode node) {
+            released.add(node);
+        }
+
+        public void failed(ELBNode node, IOException e) {
+            failed.add(node);
+        }
+    }
+}
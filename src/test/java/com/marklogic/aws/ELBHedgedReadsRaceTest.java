@@ -0,0 +1,156 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.marklogic.xcc.ResultSequence;
+
+public class ELBHedgedReadsRaceTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ELBHedgeAttempt first = new ELBHedgeAttempt();
+    private final ELBHedgeAttempt hedge = new ELBHedgeAttempt();
+    private final ELBHedgedReads.Race race = new ELBHedgedReads.Race(first);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void noHedgeGoesOutOnceTheFirstCopyHasAnswered() {
+        assertFalse(race.isDecided());
+        assertTrue(race.firstAnswered());
+        assertTrue(race.isDecided());
+        assertFalse(race.hedging(hedge));
+    }
+
+    @Test
+    public void onlyOneHedgeGoesOut() {
+        assertTrue(race.hedging(hedge));
+        assertTrue(race.isDecided());
+        assertFalse(race.hedging(new ELBHedgeAttempt()));
+    }
+
+    @Test
+    public void theFirstCopyWinningCancelsTheHedge() {
+        race.hedging(hedge);
+        assertTrue(race.firstAnswered());
+        assertTrue(hedge.isCancelled());
+
+        AtomicInteger closed = new AtomicInteger();
+        assertFalse(race.hedgeDone(result(closed)));
+        // The losing copy's result is closed, so its connection goes back
+        assertEquals(1, closed.get());
+        assertNull(race.hedgedResult());
+        assertFalse(first.isCancelled());
+    }
+
+    @Test
+    public void theHedgeWinningCancelsTheFirstCopy() {
+        race.hedging(hedge);
+        ResultSequence result = result(new AtomicInteger());
+        assertTrue(race.hedgeDone(result));
+        assertTrue(first.isCancelled());
+        assertFalse(race.firstAnswered());
+        assertSame(result, race.hedgedResult());
+    }
+
+    @Test
+    public void aFailedHedgeLeavesTheFirstCopyToAnswer() {
+        race.hedging(hedge);
+        assertFalse(race.hedgeDone(null));
+        assertFalse(first.isCancelled());
+        assertTrue(race.firstAnswered());
+    }
+
+    @Test(timeout = 10000)
+    public void aFailedFirstCopyWaitsForTheHedge() throws Exception {
+        race.hedging(hedge);
+        final CountDownLatch waiting = new CountDownLatch(1);
+        Future<ResultSequence> failed = executor.submit(new Callable<ResultSequence>() {
+            public ResultSequence call() {
+                waiting.countDown();
+                return race.firstFailed();
+            }
+        });
+        waiting.await();
+        Thread.sleep(50);
+        assertFalse(failed.isDone());
+
+        ResultSequence result = result(new AtomicInteger());
+        assertTrue(race.hedgeDone(result));
+        assertSame(result, failed.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void aFailedFirstCopyWithoutAHedgeStopsOneGoingOut() {
+        assertNull(race.firstFailed());
+        assertFalse(race.hedging(hedge));
+    }
+
+    @Test(timeout = 30000)
+    public void exactlyOneCopyWinsWhenBothAnswerAtOnce() throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            final ELBHedgeAttempt first = new ELBHedgeAttempt();
+            final ELBHedgeAttempt hedge = new ELBHedgeAttempt();
+            final ELBHedgedReads.Race race = new ELBHedgedReads.Race(first);
+            race.hedging(hedge);
+            final AtomicInteger closed = new AtomicInteger();
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+
+            Future<Boolean> firstWon = executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    barrier.await();
+                    return race.firstAnswered();
+                }
+            });
+            Future<Boolean> hedgeWon = executor.submit(new Callable<Boolean>() {
+                public Boolean call() throws Exception {
+                    barrier.await();
+                    return race.hedgeDone(result(closed));
+                }
+            });
+
+            boolean firstWins = firstWon.get(5, TimeUnit.SECONDS).booleanValue();
+            boolean hedgeWins = hedgeWon.get(5, TimeUnit.SECONDS).booleanValue();
+            assertTrue("exactly one winner", firstWins != hedgeWins);
+            // The loser is cancelled, and a losing hedge's result closed
+            assertEquals(firstWins, hedge.isCancelled());
+            assertEquals(hedgeWins, first.isCancelled());
+            assertEquals(firstWins ? 1 : 0, closed.get());
+        }
+    }
+
+    /**
+     * @return a result that counts how often it is closed
+     */
+    private static ResultSequence result(final AtomicInteger closed) {
+        return (ResultSequence) Proxy.newProxyInstance(ResultSequence.class.getClassLoader(),
+                new Class<?>[] { ResultSequence.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("close")) {
+                            closed.incrementAndGet();
+                        }
+                        return null;
+                    }
+                });
+    }
+}
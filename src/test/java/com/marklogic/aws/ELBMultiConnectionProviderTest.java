@@ -0,0 +1,105 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ELBMultiConnectionProviderTest {
+    private static final ELBEndpoint NEAR = new ELBEndpoint("near.elb.test", 8000, 0);
+    private static final ELBEndpoint FAR = new ELBEndpoint("far.elb.test", 8000, 1);
+    // Well past the score's default ten second time constant
+    private static final long LONG_AGO = TimeUnit.SECONDS.toNanos(60);
+
+    private ELBMultiConnectionProvider provider;
+
+    @Before
+    public void setUp() {
+        ELBAddressResolver resolver = new ELBAddressResolver() {
+            public InetAddress[] resolve(String hostName) throws UnknownHostException {
+                byte last = (byte) (hostName.equals(NEAR.getHostName()) ? 1 : 2);
+                return new InetAddress[] { InetAddress.getByAddress(new byte[] { 127, 0, 0, last }) };
+            }
+        };
+        // Given far first, to check the provider orders them by locality
+        provider = new ELBMultiConnectionProvider(Arrays.asList(FAR, NEAR), resolver, ELBBalancePolicy.ROUND_ROBIN);
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown(null);
+    }
+
+    @Test
+    public void staysNearWhenNothingIsKnown() {
+        assertEquals(NEAR, provider.select(null, false).endpoint);
+        assertEquals(NEAR, provider.select(null, true).endpoint);
+    }
+
+    @Test
+    public void staysNearWhileWithinTheOverflowRatio() {
+        time(NEAR, 15, 0);
+        time(FAR, 10, 0);
+        assertEquals(NEAR, provider.select(null, false).endpoint);
+    }
+
+    @Test
+    public void overflowsFromASlowNearEndpoint() {
+        time(NEAR, 100, 0);
+        time(FAR, 10, 0);
+        assertEquals(FAR, provider.select(null, false).endpoint);
+        // The odd request still measures the nearer one
+        assertEquals(NEAR, provider.select(null, true).endpoint);
+    }
+
+    @Test
+    public void routesOnLatencyAloneWithARatioOfOne() {
+        provider.setOverflowRatio(1);
+        time(NEAR, 12, 0);
+        time(FAR, 10, 0);
+        assertEquals(FAR, provider.select(null, false).endpoint);
+    }
+
+    @Test
+    public void doesNotOverflowToAnEndpointTimedLongAgo() {
+        time(NEAR, 100, 0);
+        time(FAR, 10, LONG_AGO);
+        // Its faded average is close to nothing, yet it must not look fastest
+        assertEquals(NEAR, provider.select(null, false).endpoint);
+    }
+
+    @Test
+    public void probesAnEndpointTimedLongAgoOnlyIfItWouldWin() {
+        time(NEAR, 100, 0);
+        time(FAR, 10, LONG_AGO);
+        assertEquals(FAR, provider.select(null, true).endpoint);
+
+        provider.setOverflowRatio(20);
+        assertEquals(NEAR, provider.select(null, true).endpoint);
+    }
+
+    @Test
+    public void skipsEndpointsAlreadyTried() {
+        boolean[] tried = new boolean[2];
+        tried[0] = true;
+        assertEquals(FAR, provider.select(tried, false).endpoint);
+        tried[1] = true;
+        assertNull(provider.select(tried, false));
+    }
+
+    /**
+     * Records a request to the endpoint that took the milliseconds and finished the
+     * nanoseconds ago.
+     */
+    private void time(ELBEndpoint endpoint, long millis, long agoNanos) {
+        provider.getScore(endpoint).requestSucceeded(TimeUnit.MILLISECONDS.toNanos(millis),
+                System.nanoTime() - agoNanos);
+    }
+}
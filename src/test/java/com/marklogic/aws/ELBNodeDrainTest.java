@@ -0,0 +1,117 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.spi.ServerConnection;
+
+public class ELBNodeDrainTest {
+    private final FakeResolver dns = new FakeResolver(2);
+    private LoopbackServer server;
+    private ELBConnectionProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LoopbackServer();
+        provider = new ELBConnectionProvider("elb.test", server.getPort(), dns, ELBBalancePolicy.ROUND_ROBIN);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        provider.shutdown(null);
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void closesIdleConnectionsToAnAddressThatLeaves() throws Exception {
+        ServerConnection leaving = borrow(1);
+        ServerConnection staying = borrow(2);
+        giveBack(leaving);
+        giveBack(staying);
+
+        dns.setAddresses(FakeResolver.loopback(2));
+        provider.getRefresher().refresh();
+
+        assertEquals(1, provider.getNodes().length);
+        assertFalse(leaving.isOpen());
+        assertTrue(staying.isOpen());
+        assertEquals(1, provider.getReclaimedConnections());
+        server.awaitAccepted(2);
+        server.awaitOpen(1);
+    }
+
+    @Test(timeout = 10000)
+    public void closesConnectionsInUseWhenTheyAreReturned() throws Exception {
+        ServerConnection inUse = borrow(1);
+        ELBNode node = ((ELBConnection) inUse).getNode();
+
+        dns.setAddresses(FakeResolver.loopback(2));
+        provider.getRefresher().refresh();
+        assertTrue(node.isRetired());
+        assertTrue(inUse.isOpen());
+        assertEquals(0, provider.getReclaimedConnections());
+
+        giveBack(inUse);
+        assertFalse(inUse.isOpen());
+        assertEquals(1, provider.getReclaimedConnections());
+        assertEquals(0, node.getOutstanding());
+        server.awaitAccepted(1);
+        server.awaitOpen(0);
+    }
+
+    @Test(timeout = 10000)
+    public void sweepsAgainOnceTheGracePeriodHasPassed() throws Exception {
+        provider.setDrainGraceMillis(50);
+        ServerConnection inUse = borrow(1);
+
+        dns.setAddresses(FakeResolver.loopback(2));
+        provider.getRefresher().refresh();
+        giveBack(inUse);
+
+        // Both the first sweep and the final one have run; nothing is counted twice
+        Thread.sleep(200);
+        assertEquals(1, provider.getReclaimedConnections());
+        assertFalse(inUse.isOpen());
+    }
+
+    @Test(timeout = 10000)
+    public void shutdownClosesEveryPooledConnection() throws Exception {
+        ServerConnection first = borrow(1);
+        ServerConnection second = borrow(2);
+        giveBack(first);
+        giveBack(second);
+
+        provider.shutdown(null);
+        assertFalse(first.isOpen());
+        assertFalse(second.isOpen());
+        server.awaitAccepted(2);
+        server.awaitOpen(0);
+    }
+
+    /**
+     * Borrows a connection, which round robin has to have sent to 127.0.0.(last).
+     */
+    private ServerConnection borrow(int last) throws Exception {
+        ServerConnection connection = provider.obtainConnection((Session) null, null, null);
+        assertEquals(new InetSocketAddress(FakeResolver.loopback(last), server.getPort()),
+                ((ELBConnection) connection).getNode().getAddress());
+        return connection;
+    }
+
+    /**
+     * Returns a connection to the pool, as XCC does once a request has finished.
+     */
+    private void giveBack(ServerConnection connection) {
+        connection.setTimeoutTime(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1));
+        provider.returnConnection(connection, null);
+    }
+}
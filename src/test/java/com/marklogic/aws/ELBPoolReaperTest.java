@@ -0,0 +1,139 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.spi.ServerConnection;
+
+public class ELBPoolReaperTest {
+    private static final long MINUTE = 60000;
+
+    private final ELBPoolReaper reaper = new ELBPoolReaper(Logger.getLogger(ELBPoolReaperTest.class.getName()));
+    private LoopbackServer server;
+    private ELBConnectionProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LoopbackServer();
+        provider = new ELBConnectionProvider("elb.test", server.getPort(), new FakeResolver(1));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        provider.shutdown(null);
+        server.close();
+    }
+
+    @Test
+    public void expiresAtTheEarliestOfKeepAliveDeadlineAndMaxIdle() {
+        long now = System.currentTimeMillis();
+        assertEquals(now + 1000, reaper.expireTime(now + 1000, now + 2000));
+        assertEquals(now + 1000, reaper.expireTime(now + 2000, now + 1000));
+
+        // Neither the server nor the lifetime limit it, so the jittered idle limit does
+        long idle = reaper.expireTime(Long.MAX_VALUE, Long.MAX_VALUE) - now;
+        assertTrue(idle <= reaper.getMaxIdle() + 1000);
+        assertTrue(idle >= reaper.getMaxIdle() * 0.8 - 1000);
+    }
+
+    @Test
+    public void spreadsLifetimeDeadlines() {
+        long now = System.currentTimeMillis();
+        long earliest = Long.MAX_VALUE;
+        long latest = 0;
+        for (int i = 0; i < 100; i++) {
+            long lifetime = reaper.newDeadline() - now;
+            earliest = Math.min(earliest, lifetime);
+            latest = Math.max(latest, lifetime);
+        }
+
+        assertTrue(latest <= reaper.getMaxLifetime() + 1000);
+        assertTrue(earliest >= reaper.getMaxLifetime() * 0.8 - 1000);
+        assertTrue("deadlines are jittered", latest > earliest);
+    }
+
+    @Test(timeout = 10000)
+    public void handsOutALivePooledConnectionAgain() throws Exception {
+        ServerConnection first = borrow();
+        giveBack(first, MINUTE);
+
+        assertSame(first, borrow());
+        assertEquals(0, provider.getStats().getStaleConnections());
+    }
+
+    @Test(timeout = 10000)
+    public void discardsAPooledConnectionTheServerClosed() throws Exception {
+        ServerConnection first = borrow();
+        giveBack(first, MINUTE);
+        server.awaitAccepted(1);
+        server.dropConnections();
+        server.awaitOpen(0);
+        // Let the FIN reach the client
+        Thread.sleep(50);
+
+        ServerConnection second = borrow();
+        assertNotSame(first, second);
+        assertFalse(first.isOpen());
+        assertTrue(second.isOpen());
+        assertEquals(1, provider.getStats().getStaleConnections());
+    }
+
+    @Test(timeout = 10000)
+    public void discardsAPooledConnectionWithUnreadBytes() throws Exception {
+        ServerConnection first = borrow();
+        // The echo is left unread, as after a response the client abandoned
+        first.channel().write(ByteBuffer.wrap(new byte[] { 1 }));
+        giveBack(first, MINUTE);
+        Thread.sleep(50);
+
+        assertNotSame(first, borrow());
+        assertFalse(first.isOpen());
+    }
+
+    @Test(timeout = 10000)
+    public void closesAConnectionPastItsLifetimeWhenItIsReturned() throws Exception {
+        ServerConnection connection = borrow();
+        ((ELBConnection) connection).setDeadline(System.currentTimeMillis() - 1);
+
+        giveBack(connection, MINUTE);
+        assertFalse(connection.isOpen());
+        server.awaitAccepted(1);
+        server.awaitOpen(0);
+    }
+
+    @Test(timeout = 10000)
+    public void reapsExpiredConnectionsInTheBackground() throws Exception {
+        ServerConnection connection = borrow();
+        giveBack(connection, 50);
+        assertTrue(connection.isOpen());
+        server.awaitAccepted(1);
+
+        // Nothing borrows again; the reaper closes it within its interval
+        server.awaitOpen(0);
+        assertFalse(connection.isOpen());
+    }
+
+    private ServerConnection borrow() throws Exception {
+        return provider.obtainConnection((Session) null, null, null);
+    }
+
+    /**
+     * Returns a connection to the pool, as XCC does with the server's keep-alive once a
+     * request has finished.
+     */
+    private void giveBack(ServerConnection connection, long keepAliveMillis) {
+        connection.setTimeoutTime(System.currentTimeMillis() + keepAliveMillis);
+        provider.returnConnection(connection, null);
+    }
+}
@@ -0,0 +1,137 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Semaphore;
+
+import org.junit.Test;
+
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.spi.ServerConnection;
+
+public class ELBPoolRebalancerTest {
+    private final ELBPoolRebalancer rebalancer = new ELBPoolRebalancer();
+
+    @Test
+    public void doesNothingUntilEnabled() {
+        ELBNode[] nodes = nodes(10, 0);
+
+        assertFalse(rebalancer.shouldClose(nodes[0], nodes));
+        rebalancer.setEnabled(true);
+        assertTrue(rebalancer.shouldClose(nodes[0], nodes));
+    }
+
+    @Test
+    public void leavesNodesWithinTheirShareAlone() {
+        rebalancer.setEnabled(true);
+        ELBNode[] nodes = nodes(3, 2, 1);
+
+        // A share of two, and one over is within the tolerance
+        assertFalse(rebalancer.shouldClose(nodes[0], nodes));
+        assertFalse(rebalancer.shouldClose(nodes[1], nodes));
+        assertFalse(rebalancer.shouldClose(nodes[2], nodes));
+    }
+
+    @Test
+    public void spacesClosesByTheRate() throws Exception {
+        rebalancer.setEnabled(true);
+        ELBNode[] nodes = nodes(10, 0);
+
+        assertTrue(rebalancer.shouldClose(nodes[0], nodes));
+        assertFalse(rebalancer.shouldClose(nodes[0], nodes));
+        // Five a second by default
+        Thread.sleep(250);
+        assertTrue(rebalancer.shouldClose(nodes[0], nodes));
+    }
+
+    @Test
+    public void leavesTrippedNodesOutOfTheShare() {
+        rebalancer.setEnabled(true);
+        ELBNode[] nodes = nodes(4, 0, 4);
+        while (!nodes[1].getCircuitBreaker().recordFailure()) {
+            // trip it
+        }
+
+        assertFalse(rebalancer.shouldClose(nodes[0], nodes));
+    }
+
+    @Test
+    public void leavesRetiredNodesToTheDrain() {
+        rebalancer.setEnabled(true);
+        ELBNode[] nodes = nodes(10, 0);
+        nodes[0].retire();
+
+        assertFalse(rebalancer.shouldClose(nodes[0], nodes));
+    }
+
+    @Test(timeout = 10000)
+    public void movesConnectionsOntoANodeAddedByAScaleOut() throws Exception {
+        LoopbackServer server = new LoopbackServer();
+        FakeResolver dns = new FakeResolver(1);
+        ELBConnectionProvider provider = new ELBConnectionProvider("elb.test", server.getPort(), dns,
+                ELBBalancePolicy.ROUND_ROBIN);
+        try {
+            provider.setRebalancing(true);
+            ServerConnection[] connections = new ServerConnection[4];
+            for (int i = 0; i < connections.length; i++) {
+                connections[i] = borrow(provider);
+            }
+            for (ServerConnection connection : connections) {
+                giveBack(provider, connection);
+            }
+            // With one node there is nowhere to move to
+            assertEquals(0, provider.getStats().getRebalancedConnections());
+
+            dns.setAddresses(FakeResolver.loopback(0, 2));
+            provider.getRefresher().refresh();
+            ELBNode old = provider.getNodes()[0];
+            assertEquals(4, old.getOpenConnections());
+
+            // Round robin hands out one pooled connection to the old node and opens one to the new
+            ServerConnection first = borrow(provider);
+            ServerConnection second = borrow(provider);
+            ServerConnection pooled = (ELBConnectionProvider.nodeOf(first) == old) ? first : second;
+            ServerConnection fresh = (pooled == first) ? second : first;
+            assertSame(old, ELBConnectionProvider.nodeOf(pooled));
+
+            giveBack(provider, pooled);
+            assertFalse(pooled.isOpen());
+            assertEquals(1, provider.getStats().getRebalancedConnections());
+            assertEquals(3, old.getOpenConnections());
+
+            giveBack(provider, fresh);
+            assertTrue(fresh.isOpen());
+            assertEquals(1, provider.getStats().getRebalancedConnections());
+        } finally {
+            provider.shutdown(null);
+            server.close();
+        }
+    }
+
+    /**
+     * @return a node per count, with that many open connections
+     */
+    private static ELBNode[] nodes(int... open) {
+        ELBNode[] nodes = new ELBNode[open.length];
+        for (int i = 0; i < open.length; i++) {
+            nodes[i] = new ELBNode(new InetSocketAddress(FakeResolver.loopback(i + 1), 8000), new Semaphore(10));
+            for (int j = 0; j < open[i]; j++) {
+                nodes[i].socketOpened();
+            }
+        }
+        return nodes;
+    }
+
+    private static ServerConnection borrow(ELBConnectionProvider provider) throws Exception {
+        return provider.obtainConnection((Session) null, null, null);
+    }
+
+    private static void giveBack(ELBConnectionProvider provider, ServerConnection connection) {
+        connection.setTimeoutTime(System.currentTimeMillis() + 60000);
+        provider.returnConnection(connection, null);
+    }
+}
@@ -0,0 +1,110 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ELBPoolStateTest {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 200;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    private final FakeResolver dns = new FakeResolver(2);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void aStateIsNotReplacedByAnOlderSnapshot() {
+        ELBAddressRefresher refresher = new ELBAddressRefresher("elb.test", 8000, dns, 60000);
+        ELBAddressSnapshot first = refresher.refresh();
+        dns.setAddresses(FakeResolver.loopback(3));
+        ELBAddressSnapshot second = refresher.refresh();
+
+        ELBPoolState state = new ELBPoolState(second, new ELBNode[0]);
+        assertTrue(state.isAtLeast(first));
+        assertTrue(state.isAtLeast(second));
+        assertFalse(new ELBPoolState(first, new ELBNode[0]).isAtLeast(second));
+        assertFalse(ELBPoolState.EMPTY.isAtLeast(first));
+    }
+
+    @Test(timeout = 30000)
+    public void racingRefreshesPublishEachChangeOnce() throws Exception {
+        final ELBAddressRefresher refresher = new ELBAddressRefresher("elb.test", 8000, dns, 60000);
+        refresher.refresh();
+        final AtomicInteger changes = new AtomicInteger();
+        refresher.addListener(new ELBAddressListener() {
+            public void addressesChanged(ELBAddressSnapshot previous, ELBAddressSnapshot current) {
+                changes.incrementAndGet();
+            }
+        });
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            dns.setAddresses(FakeResolver.loopback(1), FakeResolver.loopback(round + 2));
+            race(refresher);
+            assertEquals(round, changes.get());
+            assertEquals(round, refresher.getSnapshot().getGeneration());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void racingRefreshesKeepNodesThatStayAndRetireThoseThatLeave() throws Exception {
+        ELBConnectionProvider provider = new ELBConnectionProvider("elb.test", 8000, dns,
+                ELBBalancePolicy.ROUND_ROBIN);
+        try {
+            provider.setDrainGraceMillis(0);
+            ELBNode staying = provider.getNodes()[0];
+            ELBNode leaving = provider.getNodes()[1];
+
+            for (int round = 1; round <= ROUNDS; round++) {
+                dns.setAddresses(FakeResolver.loopback(1), FakeResolver.loopback(round + 2));
+                race(provider.getRefresher());
+
+                ELBNode[] nodes = provider.getNodes();
+                assertEquals(2, nodes.length);
+                // The same node, so its counters and sub-pool survive the change
+                assertSame(staying, nodes[0]);
+                assertFalse(staying.isRetired());
+                assertTrue(leaving.isRetired());
+                assertFalse(nodes[1].isRetired());
+                leaving = nodes[1];
+            }
+        } finally {
+            provider.shutdown(null);
+        }
+    }
+
+    /**
+     * Has every thread refresh at once.
+     */
+    private void race(final ELBAddressRefresher refresher) throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        Future<?>[] refreshes = new Future<?>[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            refreshes[i] = executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    barrier.await();
+                    refresher.refresh();
+                    return null;
+                }
+            });
+        }
+        for (Future<?> refresh : refreshes) {
+            refresh.get(5, TimeUnit.SECONDS);
+        }
+    }
+}
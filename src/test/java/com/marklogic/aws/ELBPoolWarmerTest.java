@@ -0,0 +1,96 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ELBPoolWarmerTest {
+    private static final long IDLE_TIMEOUT = 50000;
+
+    private final Pool pool = new Pool();
+    private final ELBPoolWarmer warmer = new ELBPoolWarmer(pool, 0, IDLE_TIMEOUT,
+            Logger.getLogger(ELBPoolWarmerTest.class.getName()));
+
+    @After
+    public void tearDown() {
+        warmer.stop();
+        pool.connected.countDown();
+    }
+
+    @Test(timeout = 10000)
+    public void connectsOffTheSchedulerThreads() throws Exception {
+        warmer.setMinIdle(1);
+        String thread = pool.threads.poll(5, TimeUnit.SECONDS);
+        assertTrue(thread, thread.startsWith("elb-blocking-"));
+
+        // The connect is still pending, and the scheduler is free for refreshes and reaps
+        final CountDownLatch ran = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            ELBScheduler.get().execute(new Runnable() {
+                public void run() {
+                    ran.countDown();
+                }
+            });
+        }
+        assertTrue(ran.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void poolsWarmedConnectionsForTheIdleTimeout() throws Exception {
+        assertEquals(IDLE_TIMEOUT, warmer.getWarmTtl());
+
+        pool.connected.countDown();
+        long now = System.currentTimeMillis();
+        warmer.setMinIdle(1);
+        pool.threads.poll(5, TimeUnit.SECONDS);
+
+        long ttl = pool.expireTime - now;
+        assertTrue(String.valueOf(ttl), ttl >= IDLE_TIMEOUT && ttl < IDLE_TIMEOUT + 5000);
+    }
+
+    /**
+     * One node whose connects wait until the test lets them finish.
+     */
+    private static class Pool implements ELBPoolWarmer.Target {
+        final ELBNode node = new ELBNode(new InetSocketAddress(FakeResolver.loopback(1), 8000), new Semaphore(1));
+        final BlockingQueue<String> threads = new LinkedBlockingQueue<String>();
+        final CountDownLatch connected = new CountDownLatch(1);
+        final AtomicInteger idle = new AtomicInteger();
+        volatile long expireTime;
+
+        public ELBNode[] getNodes() {
+            return new ELBNode[] { node };
+        }
+
+        public long idleCount(ELBNode node) {
+            return idle.get();
+        }
+
+        public long idleCount(ELBNode node, ELBSocketProfile profile) {
+            return idle.get();
+        }
+
+        public boolean addIdle(ELBNode node, long expireTime) {
+            this.expireTime = expireTime;
+            threads.add(Thread.currentThread().getName());
+            try {
+                connected.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            idle.incrementAndGet();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Field;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.marklogic.xcc.ContentSourceFactory;
+import com.marklogic.xcc.Session;
+import com.marklogic.xcc.impl.SessionImpl;
+import com.marklogic.xcc.spi.ServerConnection;
+
+public class ELBSessionAffinityTest {
+    private LoopbackServer server;
+    private FakeResolver dns;
+    private ELBConnectionProvider provider;
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LoopbackServer();
+        dns = new FakeResolver(3);
+        provider = new ELBConnectionProvider("elb.test", server.getPort(), dns, ELBBalancePolicy.ROUND_ROBIN);
+        provider.setDrainGraceMillis(0);
+        session = ContentSourceFactory.newContentSource(provider, "admin", "admin", "Documents").newSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.close();
+        provider.shutdown(null);
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void autoCommitRequestsSpreadOverTheNodes() throws Exception {
+        Set<ELBNode> nodes = new HashSet<ELBNode>();
+        for (int i = 0; i < 3; i++) {
+            nodes.add(roundTrip());
+        }
+
+        assertEquals(3, nodes.size());
+        assertEquals(0, provider.getPinnedSessions());
+    }
+
+    @Test(timeout = 10000)
+    public void keepsATransactionOnTheNodeItBeganOn() throws Exception {
+        session.setAutoCommit(false);
+        ELBNode began = roundTrip();
+        setTxnID("17");
+        assertEquals(1, provider.getPinnedSessions());
+
+        for (int i = 0; i < 6; i++) {
+            assertSame(began, roundTrip());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void forgetsTheNodeOnceTheTransactionEnds() throws Exception {
+        session.setAutoCommit(false);
+        ELBNode began = roundTrip();
+        setTxnID("17");
+        assertSame(began, roundTrip());
+
+        // As XCC does when the commit response comes back
+        setTxnID(null);
+        assertNotSame(began, roundTrip());
+    }
+
+    @Test(timeout = 10000)
+    public void forgetsTheNodeWhenItLeavesTheElb() throws Exception {
+        session.setAutoCommit(false);
+        ELBNode began = roundTrip();
+        setTxnID("17");
+
+        dns.setAddresses(FakeResolver.loopback(4, 3));
+        provider.getRefresher().refresh();
+
+        assertNull(provider.getAffinity().nodeFor(session));
+        assertEquals(0, provider.getPinnedSessions());
+        assertNotSame(began, roundTrip());
+    }
+
+    @Test(timeout = 10000)
+    public void pinsNothingWhenTurnedOff() throws Exception {
+        provider.setSessionAffinity(false);
+        session.setAutoCommit(false);
+        roundTrip();
+        setTxnID("17");
+
+        assertEquals(0, provider.getPinnedSessions());
+        assertNull(provider.getAffinity().nodeFor(session));
+    }
+
+    /**
+     * Borrows a connection for the session and returns it.
+     *
+     * @return the node the connection was to
+     */
+    private ELBNode roundTrip() throws Exception {
+        ServerConnection connection = provider.obtainConnection(session, null, null);
+        ELBNode node = ELBConnectionProvider.nodeOf(connection);
+        connection.setTimeoutTime(System.currentTimeMillis() + 60000);
+        provider.returnConnection(connection, null);
+        return node;
+    }
+
+    /**
+     * Sets the transaction id as XCC does from the server's TxnID cookie.
+     */
+    private void setTxnID(String txnID) throws Exception {
+        Field field = SessionImpl.class.getDeclaredField("txnID");
+        field.setAccessible(true);
+        field.set(session, txnID);
+    }
+}
@@ -0,0 +1,314 @@
+package com.marklogic.aws;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.marklogic.sim.SimElb;
+
+public class ELBTlsChannelTest {
+    // Several full TLS records and a partial one
+    private static final int PAYLOAD = 40000;
+
+    private SSLServerSocket server;
+    private Thread serverThread;
+    private SocketChannel socket;
+    private ResizingEngine engine;
+    private ELBBufferPool pool;
+    private ELBTlsChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        server = (SSLServerSocket) SimElb.serverContext().getServerSocketFactory().createServerSocket(0, 1,
+                InetAddress.getLoopbackAddress());
+        serverThread = new Thread(new Runnable() {
+            public void run() {
+                echo();
+            }
+        }, "tls-echo");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        SSLContext client = SimElb.clientContext();
+        socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+        SSLEngine real = client.createSSLEngine("localhost", server.getLocalPort());
+        real.setUseClientMode(true);
+        engine = new ResizingEngine(real);
+        ELBTlsHandshake.run(socket, engine, 5000);
+        pool = new ELBBufferPool(16);
+        channel = new ELBTlsChannel(socket, engine, pool);
+        channel.setTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (channel != null) {
+            channel.close();
+        }
+        server.close();
+        serverThread.join(5000);
+    }
+
+    @Test(timeout = 10000)
+    public void readsIntoLargeBuffersWithoutCopying() throws IOException {
+        byte[] payload = payload();
+        channel.write(ByteBuffer.wrap(payload));
+
+        assertArrayEquals(payload, readFully(payload.length, 65536));
+        assertTrue(channel.releaseBuffers());
+        assertEquals(pool.getAllocated(), pool.getFree());
+    }
+
+    @Test(timeout = 10000)
+    public void readsInSmallPieces() throws IOException {
+        byte[] payload = payload();
+        channel.write(ByteBuffer.wrap(payload));
+
+        assertArrayEquals(payload, readFully(payload.length, 100));
+        assertTrue(channel.releaseBuffers());
+    }
+
+    @Test(timeout = 10000)
+    public void growsTheApplicationBufferWhenTheSessionSizeGrows() throws IOException {
+        // The channel sizes its buffer for 512 bytes, and a record holds up to 16k
+        engine.applicationBufferSize = 512;
+        byte[] payload = payload();
+        channel.write(ByteBuffer.wrap(payload));
+
+        assertArrayEquals(payload, readFully(payload.length, 100));
+        assertTrue(channel.releaseBuffers());
+    }
+
+    @Test(timeout = 10000)
+    public void fallsBackToTheApplicationBufferWhenTheCallersOverflows() throws IOException {
+        // Reads of 1024 bytes look large enough to unwrap straight into, until a record
+        // larger than that overflows them
+        engine.applicationBufferSize = 512;
+        byte[] payload = payload();
+        channel.write(ByteBuffer.wrap(payload));
+
+        byte[] first = readFully(1024, 1024);
+        engine.applicationBufferSize = 0;
+        byte[] rest = readFully(payload.length - 1024, 65536);
+
+        byte[] read = new byte[payload.length];
+        System.arraycopy(first, 0, read, 0, first.length);
+        System.arraycopy(rest, 0, read, first.length, rest.length);
+        assertArrayEquals(payload, read);
+    }
+
+    private byte[] readFully(int length, int chunk) throws IOException {
+        ByteBuffer read = ByteBuffer.allocate(length);
+        ByteBuffer dst = ByteBuffer.allocate(chunk);
+        while (read.hasRemaining()) {
+            dst.clear();
+            dst.limit(Math.min(chunk, read.remaining()));
+            if (channel.read(dst) < 0) {
+                throw new IOException("end of stream after " + read.position() + " bytes");
+            }
+            dst.flip();
+            read.put(dst);
+        }
+        return read.array();
+    }
+
+    private static byte[] payload() {
+        byte[] payload = new byte[PAYLOAD];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        return payload;
+    }
+
+    private void echo() {
+        try {
+            SSLSocket accepted = (SSLSocket) server.accept();
+            try {
+                InputStream in = accepted.getInputStream();
+                OutputStream out = accepted.getOutputStream();
+                byte[] buffer = new byte[PAYLOAD];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            } finally {
+                accepted.close();
+            }
+        } catch (IOException e) {
+            // the test closed the socket
+        }
+    }
+
+    /**
+     * An engine whose session reports a smaller application buffer size than the records
+     * it unwraps, as after a renegotiation that grew the session's size.
+     */
+    private static final class ResizingEngine extends SSLEngine {
+        private final SSLEngine engine;
+        // 0 for the real size
+        volatile int applicationBufferSize;
+
+        ResizingEngine(SSLEngine engine) {
+            this.engine = engine;
+        }
+
+        @Override
+        public SSLSession getSession() {
+            final SSLSession session = engine.getSession();
+            return (SSLSession) Proxy.newProxyInstance(SSLSession.class.getClassLoader(),
+                    new Class<?>[] { SSLSession.class }, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if (method.getName().equals("getApplicationBufferSize") && applicationBufferSize > 0) {
+                                return Integer.valueOf(applicationBufferSize);
+                            }
+                            try {
+                                return method.invoke(session, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws SSLException {
+            return engine.wrap(srcs, offset, length, dst);
+        }
+
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length)
+                throws SSLException {
+            return engine.unwrap(src, dsts, offset, length);
+        }
+
+        @Override
+        public Runnable getDelegatedTask() {
+            return engine.getDelegatedTask();
+        }
+
+        @Override
+        public void closeInbound() throws SSLException {
+            engine.closeInbound();
+        }
+
+        @Override
+        public boolean isInboundDone() {
+            return engine.isInboundDone();
+        }
+
+        @Override
+        public void closeOutbound() {
+            engine.closeOutbound();
+        }
+
+        @Override
+        public boolean isOutboundDone() {
+            return engine.isOutboundDone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return engine.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return engine.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            engine.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return engine.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return engine.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            engine.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public void beginHandshake() throws SSLException {
+            engine.beginHandshake();
+        }
+
+        @Override
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+            return engine.getHandshakeStatus();
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            engine.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return engine.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            engine.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return engine.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            engine.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return engine.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            engine.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return engine.getEnableSessionCreation();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.marklogic.aws;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves any hostname to a settable list of loopback addresses, or fails if told to,
+ * so the providers can be driven without DNS.
+ */
+class FakeResolver implements ELBAddressResolver {
+    private volatile InetAddress[] addresses;
+    private volatile long ttlMillis = -1;
+    private volatile boolean failing;
+
+    FakeResolver(int count) {
+        this.addresses = loopback(0, count);
+    }
+
+    /**
+     * @return 127.0.0.(first + 1) to 127.0.0.(first + count)
+     */
+    static InetAddress[] loopback(int first, int count) {
+        InetAddress[] addresses = new InetAddress[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = loopback(first + i + 1);
+        }
+        return addresses;
+    }
+
+    static InetAddress loopback(int last) {
+        try {
+            return InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) last });
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    void setAddresses(InetAddress... addresses) {
+        this.addresses = addresses.clone();
+    }
+
+    void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    public InetAddress[] resolve(String hostName) throws UnknownHostException {
+        if (failing) {
+            throw new UnknownHostException(hostName);
+        }
+        return addresses.clone();
+    }
+
+    @Override
+    public long getTtlMillis(String hostName) {
+        return ttlMillis;
+    }
+}
@@ -0,0 +1,131 @@
+package com.marklogic.aws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in for the ELB: accepts connections on every loopback address and echoes
+ * whatever it is sent until the client closes.
+ */
+class LoopbackServer {
+    private final ServerSocket serverSocket;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private volatile boolean closed;
+
+    LoopbackServer() throws IOException {
+        this(InetAddress.getByName("0.0.0.0"));
+    }
+
+    /**
+     * @param bindAddress the one address to accept connections on
+     */
+    LoopbackServer(InetAddress bindAddress) throws IOException {
+        serverSocket = new ServerSocket(0, 64, bindAddress);
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept();
+            }
+        }, "loopback-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return connections accepted that the client has not closed
+     */
+    int getOpen() {
+        return sockets.size();
+    }
+
+    /**
+     * Waits until the count of connections have been accepted, since the client can
+     * finish connecting before the server has accepted.
+     */
+    void awaitAccepted(int count) throws InterruptedException {
+        while (accepted.get() < count) {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Waits for the client to close connections until no more than the count are open.
+     */
+    void awaitOpen(int count) throws InterruptedException {
+        while (sockets.size() > count) {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Closes every accepted connection, as an ELB does with connections idle for too long.
+     */
+    void dropConnections() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                continue;
+            }
+            sockets.add(socket);
+            accepted.incrementAndGet();
+
+            Thread echo = new Thread(new Runnable() {
+                public void run() {
+                    echo(socket);
+                }
+            }, "loopback-echo");
+            echo.setDaemon(true);
+            echo.start();
+        }
+    }
+
+    private void echo(Socket socket) {
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        } finally {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.marklogic.load;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import com.marklogic.aws.ELBBalancePolicy;
+import com.marklogic.aws.ELBConnectionProvider;
+import com.marklogic.xcc.Content;
+import com.marklogic.xcc.ContentCreateOptions;
+import com.marklogic.xcc.ContentFactory;
+import com.marklogic.xcc.ContentSource;
+import com.marklogic.xcc.spi.ConnectionProvider;
+
+public class BulkLoaderTest {
+    @Test
+    public void refusesAProviderThatOnlyUsesTheFirstAddress() {
+        ELBConnectionProvider provider = new ELBConnectionProvider("127.0.0.1", 8000, ELBBalancePolicy.FIRST_ADDRESS);
+        try {
+            new BulkLoader(contentSource(provider, null));
+            fail("accepted a provider that sends every session to one address");
+        } catch (IllegalArgumentException e) {
+            // expected
+        } finally {
+            provider.shutdown(null);
+        }
+    }
+
+    @Test
+    public void acceptsAProviderThatSpreads() {
+        ELBConnectionProvider provider = new ELBConnectionProvider("127.0.0.1", 8000, ELBBalancePolicy.ROUND_ROBIN);
+        try {
+            new BulkLoader(contentSource(provider, null));
+        } finally {
+            provider.shutdown(null);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void stopsWhenEverySessionHasDied() throws Exception {
+        RuntimeException cause = new IllegalStateException("no session");
+        BulkLoader loader = new BulkLoader(contentSource(null, cause));
+        loader.setSessions(2);
+        loader.setBatchSize(1);
+        loader.setQueueCapacity(1);
+
+        try {
+            // Far more batches than the queue holds, so the caller has to wait for room
+            loader.load(documents(1000));
+            fail("the load finished with no session to insert");
+        } catch (IllegalStateException e) {
+            assertEquals(cause, e);
+        }
+    }
+
+    /**
+     * @param newSession thrown by newSession, or null to return null
+     */
+    private static ContentSource contentSource(final ConnectionProvider provider, final RuntimeException newSession) {
+        return (ContentSource) Proxy.newProxyInstance(BulkLoaderTest.class.getClassLoader(),
+                new Class<?>[] { ContentSource.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getConnectionProvider")) {
+                            return provider;
+                        }
+                        if (method.getName().equals("newSession") && newSession != null) {
+                            throw newSession;
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static Iterator<Content> documents(final int count) {
+        return new Iterator<Content>() {
+            private int next = 1;
+
+            public boolean hasNext() {
+                return next <= count;
+            }
+
+            public Content next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int n = next++;
+                return ContentFactory.newContent("/test/" + n + ".json", "{}", ContentCreateOptions.newJsonInstance());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}